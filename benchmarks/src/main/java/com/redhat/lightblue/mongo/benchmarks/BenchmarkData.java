@@ -0,0 +1,208 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.redhat.lightblue.crud.MetadataResolver;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.PredefinedFields;
+import com.redhat.lightblue.metadata.TypeResolver;
+import com.redhat.lightblue.metadata.parser.Extensions;
+import com.redhat.lightblue.metadata.parser.JSONMetadataParser;
+import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.mongo.metadata.MongoDataStoreParser;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+
+/**
+ * Metadata and documents used by the benchmarks. Documents come in
+ * three shapes:
+ * <ul>
+ * <li>test: testMetadata.json and testdata1.json from the mongo module
+ * tests</li>
+ * <li>wide: a flat entity with many scalar fields</li>
+ * <li>deep: nested objects and arrays of objects</li>
+ * </ul>
+ */
+public class BenchmarkData implements MetadataResolver {
+
+    public static final String SHAPE_TEST = "test";
+    public static final String SHAPE_WIDE = "wide";
+    public static final String SHAPE_DEEP = "deep";
+
+    public static final JsonNodeFactory NODE_FACTORY = JsonNodeFactory.withExactBigDecimals(true);
+
+    private static final String[] TYPES = {"string", "integer", "boolean", "double"};
+
+    private final Map<String, EntityMetadata> entities = new HashMap<>();
+
+    public final EntityMetadata md;
+    public final JsonDoc doc;
+
+    /**
+     * Creates the data for the given shape
+     *
+     * @param shape test, wide, or deep
+     * @param size Number of fields for wide documents, and the nesting
+     * depth for deep documents
+     */
+    public BenchmarkData(String shape, int size) throws IOException {
+        JsonNode mdNode;
+        JsonNode docNode;
+        switch (shape) {
+            case SHAPE_TEST:
+                mdNode = JsonUtils.json(resource("testMetadata.json"));
+                docNode = JsonUtils.json(resource("testdata1.json"));
+                break;
+            case SHAPE_WIDE:
+                mdNode = JsonUtils.json(metadata(SHAPE_WIDE, wideFields(size)));
+                docNode = JsonUtils.json(wideDoc(size));
+                break;
+            case SHAPE_DEEP:
+                mdNode = JsonUtils.json(metadata(SHAPE_DEEP, deepFields(size)));
+                docNode = JsonUtils.json(deepDoc(size));
+                break;
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+        md = parseMetadata(mdNode);
+        entities.put(md.getName(), md);
+        doc = new JsonDoc(docNode);
+    }
+
+    @Override
+    public EntityMetadata getEntityMetadata(String entityName) {
+        return entities.get(entityName);
+    }
+
+    public static EntityMetadata parseMetadata(JsonNode node) {
+        Extensions<JsonNode> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new MongoDataStoreParser<JsonNode>());
+        TypeResolver resolver = new DefaultTypes();
+        JSONMetadataParser parser = new JSONMetadataParser(extensions, resolver, NODE_FACTORY);
+        EntityMetadata md = parser.parseEntityMetadata(node);
+        PredefinedFields.ensurePredefinedFields(md);
+        return md;
+    }
+
+    /**
+     * Reads a classpath resource
+     */
+    public static String resource(String name) throws IOException {
+        try (InputStream in = BenchmarkData.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Not found:" + name);
+            }
+            try (Scanner s = new Scanner(in, "UTF-8")) {
+                return s.useDelimiter("\\A").next();
+            }
+        }
+    }
+
+    private static String metadata(String name, String fields) {
+        return "{\"entityInfo\":{\"name\":\"" + name + "\","
+                + "\"indexes\":[{\"fields\":[{\"field\":\"f0\",\"dir\":\"$asc\",\"caseInsensitive\":true}]}],"
+                + "\"datastore\":{\"backend\":\"mongo\",\"collection\":\"" + name + "\"}},"
+                + "\"schema\":{\"name\":\"" + name + "\",\"version\":{\"value\":\"1.0\",\"changelog\":\"benchmark\"},"
+                + "\"status\":{\"value\":\"active\"},"
+                + "\"access\":{\"insert\":[\"anyone\"],\"update\":[\"anyone\"],\"delete\":[\"anyone\"],\"find\":[\"anyone\"]},"
+                + "\"fields\":{\"objectType\":{\"type\":\"string\"},\"_id\":{\"type\":\"string\"}," + fields + "}}}";
+    }
+
+    private static String wideFields(int n) {
+        StringBuilder bld = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                bld.append(',');
+            }
+            // f0 is case insensitive indexed, so it must be a string
+            bld.append("\"f").append(i).append("\":{\"type\":\"").append(TYPES[i % TYPES.length]).append("\"}");
+        }
+        return bld.toString();
+    }
+
+    private static String wideDoc(int n) {
+        StringBuilder bld = new StringBuilder("{\"objectType\":\"wide\",\"_id\":\"1\"");
+        for (int i = 0; i < n; i++) {
+            bld.append(",\"f").append(i).append("\":").append(value(TYPES[i % TYPES.length], i));
+        }
+        return bld.append('}').toString();
+    }
+
+    private static String value(String type, int i) {
+        switch (type) {
+            case "string":
+                return "\"Value " + i + "\"";
+            case "integer":
+                return Integer.toString(i);
+            case "boolean":
+                return (i % 2 == 0) ? "true" : "false";
+            default:
+                return i + ".5";
+        }
+    }
+
+    /**
+     * Each level has a string, an integer, an array of objects, and the
+     * next level
+     */
+    private static String deepFields(int depth) {
+        return "\"f0\":{\"type\":\"string\"}," + levelFields(depth);
+    }
+
+    private static String levelFields(int depth) {
+        String level = "\"s\":{\"type\":\"string\"},\"n\":{\"type\":\"integer\"},"
+                + "\"arr\":{\"type\":\"array\",\"items\":{\"type\":\"object\",\"fields\":{\"id\":{\"type\":\"integer\"},\"v\":{\"type\":\"string\"}}}}";
+        if (depth > 0) {
+            return level + ",\"child\":{\"type\":\"object\",\"fields\":{" + levelFields(depth - 1) + "}}";
+        }
+        return level;
+    }
+
+    private static String deepDoc(int depth) {
+        ObjectNode root = NODE_FACTORY.objectNode();
+        root.put("objectType", SHAPE_DEEP);
+        root.put("_id", "1");
+        root.put("f0", "Deep");
+        fillLevel(root, depth);
+        return root.toString();
+    }
+
+    private static void fillLevel(ObjectNode node, int depth) {
+        node.put("s", "level " + depth);
+        node.put("n", depth);
+        ArrayNode arr = node.putArray("arr");
+        for (int k = 0; k < 3; k++) {
+            arr.addObject().put("id", k).put("v", "elem " + k);
+        }
+        if (depth > 0) {
+            fillLevel(node.putObject("child"), depth - 1);
+        }
+    }
+}
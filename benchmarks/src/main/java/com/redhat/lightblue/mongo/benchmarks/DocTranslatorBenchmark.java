@@ -0,0 +1,81 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+import com.redhat.lightblue.mongo.crud.DocTranslator;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * JSON to BSON and BSON to JSON document translation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocTranslatorBenchmark {
+
+    @Param({BenchmarkData.SHAPE_TEST, BenchmarkData.SHAPE_WIDE, BenchmarkData.SHAPE_DEEP})
+    public String shape;
+
+    /**
+     * Number of fields of wide documents, depth of deep documents
+     */
+    @Param({"32"})
+    public int size;
+
+    private DocTranslator translator;
+    private JsonDoc doc;
+    private DBObject bson;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData data = new BenchmarkData(shape, size);
+        translator = new DocTranslator(data, BenchmarkData.NODE_FACTORY);
+        doc = data.doc;
+        bson = translator.toBson(doc).doc;
+    }
+
+    @Benchmark
+    public DocTranslator.TranslatedBsonDoc toBson() {
+        return translator.toBson(doc);
+    }
+
+    @Benchmark
+    public DocTranslator.TranslatedDoc toJson() {
+        return translator.toJson(bson);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.crud.ExpressionTranslator;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Sort;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Query, sort, and projection translation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionTranslatorBenchmark {
+
+    @Param({BenchmarkData.SHAPE_TEST, BenchmarkData.SHAPE_WIDE, BenchmarkData.SHAPE_DEEP})
+    public String shape;
+
+    @Param({"32"})
+    public int size;
+
+    private ExpressionTranslator translator;
+    private EntityMetadata md;
+    private QueryExpression query;
+    private Sort sort;
+    private Projection projection;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData data = new BenchmarkData(shape, size);
+        md = data.md;
+        translator = new ExpressionTranslator(data, BenchmarkData.NODE_FACTORY);
+        String q;
+        String s;
+        String p;
+        switch (shape) {
+            case BenchmarkData.SHAPE_TEST:
+                q = "{'$and':[{'field':'field1','op':'=','rvalue':'f1'},"
+                        + "{'field':'field6.nf3','op':'>','rvalue':1},"
+                        + "{'array':'field7','elemMatch':{'field':'elemf3','op':'=','rvalue':1}}]}";
+                s = "{'field3':'$desc'}";
+                p = "[{'field':'field6','recursive':true},{'field':'field7.*.elemf1'}]";
+                break;
+            case BenchmarkData.SHAPE_WIDE:
+                q = "{'$or':[{'field':'f0','op':'=','rvalue':'Value 0'},"
+                        + "{'field':'f1','op':'>=','rvalue':1},"
+                        + "{'field':'f5','op':'$in','values':[1,2,3,4,5]},"
+                        + "{'field':'f4','regex':'^Val.*','caseInsensitive':true}]}";
+                s = "{'f1':'$asc'}";
+                p = "[{'field':'f0'},{'field':'f1'},{'field':'f2'},{'field':'f3'}]";
+                break;
+            default:
+                q = "{'$and':[{'field':'child.child.s','op':'=','rvalue':'x'},"
+                        + "{'array':'child.arr','elemMatch':{'field':'id','op':'>','rvalue':1}}]}";
+                s = "{'child.n':'$asc'}";
+                p = "{'field':'child','recursive':true}";
+                break;
+        }
+        query = QueryExpression.fromJson(json(q));
+        sort = Sort.fromJson(json(s));
+        projection = Projection.fromJson(json(p));
+    }
+
+    private static JsonNode json(String s) throws IOException {
+        return JsonUtils.json(s.replace('\'', '"'));
+    }
+
+    @Benchmark
+    public DBObject translateQuery() {
+        return translator.translate(md, ExpressionTranslator.appendObjectType(query, md.getName()));
+    }
+
+    @Benchmark
+    public DBObject translateSort() {
+        return translator.translate(sort);
+    }
+
+    @Benchmark
+    public DBObject translateProjection() {
+        return translator.translateProjection(md, projection, query, sort);
+    }
+
+    @Benchmark
+    public Set<Path> getRequiredFields() {
+        return ExpressionTranslator.getRequiredFields(md, projection, query, sort);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.crud.BsonMerge;
+import com.redhat.lightblue.mongo.crud.DocTranslator;
+import com.redhat.lightblue.mongo.crud.DocVerUtil;
+
+/**
+ * Merging stored and updated documents, hidden field population, and
+ * document version bookkeeping. These mutate their input, so each
+ * invocation works on a copy. The copy benchmark is the baseline to
+ * subtract.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({BenchmarkData.SHAPE_TEST, BenchmarkData.SHAPE_WIDE, BenchmarkData.SHAPE_DEEP})
+    public String shape;
+
+    @Param({"32"})
+    public int size;
+
+    private EntityMetadata md;
+    private BsonMerge merge;
+    private BasicDBObject storedDoc;
+    private BasicDBObject updatedDoc;
+    private List<ObjectId> docVers;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData data = new BenchmarkData(shape, size);
+        md = data.md;
+        merge = new BsonMerge(md);
+        DocTranslator translator = new DocTranslator(data, BenchmarkData.NODE_FACTORY);
+        updatedDoc = (BasicDBObject) translator.toBson(data.doc).doc;
+        storedDoc = (BasicDBObject) updatedDoc.copy();
+        DocTranslator.populateDocHiddenFields(storedDoc, md);
+        // Two recent versions and two that are too old
+        docVers = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        docVers.add(new ObjectId(new Date(now)));
+        docVers.add(new ObjectId(new Date(now - 1000)));
+        docVers.add(new ObjectId(new Date(now - 2 * DocVerUtil.TOO_OLD_MS)));
+        docVers.add(new ObjectId(new Date(now - 3 * DocVerUtil.TOO_OLD_MS)));
+        DocVerUtil.getHidden(storedDoc, true).put(DocVerUtil.DOCVER, new ArrayList<>(docVers));
+    }
+
+    @Benchmark
+    public DBObject copy() {
+        return (DBObject) updatedDoc.copy();
+    }
+
+    @Benchmark
+    public DBObject merge() {
+        DBObject doc = (DBObject) updatedDoc.copy();
+        merge.merge(storedDoc, doc);
+        return doc;
+    }
+
+    @Benchmark
+    public DBObject populateDocHiddenFields() {
+        DBObject doc = (DBObject) updatedDoc.copy();
+        DocTranslator.populateDocHiddenFields(doc, md);
+        return doc;
+    }
+
+    @Benchmark
+    public DBObject docVer() {
+        DBObject doc = new BasicDBObject();
+        DocVerUtil.getHidden(doc, true).put(DocVerUtil.DOCVER, new ArrayList<>(docVers));
+        ObjectId docVer = new ObjectId();
+        DocVerUtil.setDocVer(doc, docVer);
+        DocVerUtil.cleanupOldDocVer(doc, docVer);
+        return doc;
+    }
+}
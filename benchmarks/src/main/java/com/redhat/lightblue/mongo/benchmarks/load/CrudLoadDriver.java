@@ -0,0 +1,438 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks.load;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.fakemongo.Fongo;
+import com.mongodb.DB;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.crud.validator.DefaultFieldConstraintValidators;
+import com.redhat.lightblue.crud.validator.EmptyEntityConstraintValidators;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.benchmarks.BenchmarkData;
+import com.redhat.lightblue.mongo.common.DBResolver;
+import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.config.MongoConfiguration;
+import com.redhat.lightblue.mongo.crud.MongoCRUDController;
+import com.redhat.lightblue.mongo.metrics.CommandMetricsListener;
+import com.redhat.lightblue.mongo.metrics.Histogram;
+import com.redhat.lightblue.mongo.metrics.MetricsRegistry;
+import com.redhat.lightblue.mongo.test.EmbeddedMongo;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.UpdateExpression;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Drives MongoCRUDController with a mixed workload from concurrent
+ * threads, and reports throughput, latency percentiles, and mongo
+ * round trips for each operation. Arguments are name=value pairs:
+ * <pre>
+ *   mongo=embedded|inprocess|host:port
+ *                             Mongo server, starts an embedded mongod by default.
+ *                             inprocess uses Fongo, which measures the JVM side
+ *                             only. Round trips are not counted then.
+ *   db=mongo                  Database name
+ *   shape=test|wide|deep      Document shape, see BenchmarkData
+ *   size=32                   Fields of wide docs, depth of deep docs
+ *   threads=8                 Concurrent clients
+ *   warmup=10                 Warmup seconds, not reported
+ *   duration=30               Measured seconds
+ *   preload=1000              Documents inserted before the run
+ *   batch=10                  Documents per insert call
+ *   mix=insert:10,save:10,update:20,find:40,findRange:10,delete:10
+ * </pre>
+ */
+public class CrudLoadDriver {
+
+    private static final String[] OPS = {"insert", "save", "update", "find", "findRange", "delete"};
+
+    private static final Projection ALL = projection("{'field':'*','recursive':true}");
+
+    private final MongoCRUDController controller;
+    private final Factory factory;
+    private final EntityMetadata md;
+    private final JsonDoc template;
+    private final String updateField;
+    private final int batch;
+    private final Map<String, Integer> mix;
+    private final int mixTotal;
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<String, OpStats> stats = new LinkedHashMap<>();
+    private static final ThreadLocal<OpStats> currentOp = new ThreadLocal<>();
+
+    private static final class OpStats {
+        final String name;
+        final Histogram latency = new Histogram();
+        final LongAdder roundTrips = new LongAdder();
+        final LongAdder documents = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        OpStats(String name) {
+            this.name = name;
+        }
+
+        void reset() {
+            latency.reset();
+            roundTrips.reset();
+            documents.reset();
+            errors.reset();
+        }
+    }
+
+    /**
+     * Attributes round trips reported by the command listener to the
+     * operation the current thread is running
+     */
+    private static final class LoadRegistry implements MetricsRegistry {
+        @Override
+        public void recordTime(String entity, String operation, String phase, long nanos) {
+        }
+
+        @Override
+        public void increment(String entity, String operation, String counter, long n) {
+            OpStats op = currentOp.get();
+            if (op != null && COUNTER_ROUND_TRIPS.equals(counter)) {
+                op.roundTrips.add(n);
+            }
+        }
+    }
+
+    public CrudLoadDriver(DB db, BenchmarkData data, int batch, Map<String, Integer> mix) {
+        this.factory = new Factory();
+        factory.addFieldConstraintValidators(new DefaultFieldConstraintValidators());
+        factory.addEntityConstraintValidators(new EmptyEntityConstraintValidators());
+        this.controller = new MongoCRUDController(null, new DBResolver() {
+            @Override
+            public DB get(MongoDataStore store) {
+                return db;
+            }
+
+            @Override
+            public MongoConfiguration getConfiguration(MongoDataStore store) {
+                return null;
+            }
+
+            @Override
+            public Collection<MongoConfiguration> getConfigurations() {
+                return Collections.emptyList();
+            }
+        });
+        controller.setMetricsRegistry(new LoadRegistry());
+        this.md = data.md;
+        this.template = data.doc;
+        this.updateField = BenchmarkData.SHAPE_TEST.equals(md.getName()) ? "field1" : "f0";
+        this.batch = batch;
+        this.mix = mix;
+        int t = 0;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            stats.put(entry.getKey(), new OpStats(entry.getKey()));
+            t += entry.getValue();
+        }
+        this.mixTotal = t;
+    }
+
+    private static String id(long n) {
+        return String.format("%012d", n);
+    }
+
+    private String randomId() {
+        long n = nextId.get();
+        return id(n == 0 ? 0 : ThreadLocalRandom.current().nextLong(n));
+    }
+
+    private JsonDoc newDoc(String id) {
+        JsonDoc doc = new JsonDoc(template.getRoot().deepCopy());
+        doc.modify(new Path("_id"), BenchmarkData.NODE_FACTORY.textNode(id), true);
+        return doc;
+    }
+
+    private static JsonNode json(String s) {
+        try {
+            return JsonUtils.json(s.replace('\'', '"'));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(s, e);
+        }
+    }
+
+    private static Projection projection(String s) {
+        return Projection.fromJson(json(s));
+    }
+
+    private static QueryExpression idQuery(String op, String id) {
+        return QueryExpression.fromJson(json("{'field':'_id','op':'" + op + "','rvalue':'" + id + "'}"));
+    }
+
+    public void preload(int n) {
+        while (nextId.get() < n) {
+            insert();
+        }
+    }
+
+    private String pickOp() {
+        int r = ThreadLocalRandom.current().nextInt(mixTotal);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        return OPS[0];
+    }
+
+    /**
+     * Runs one operation, and returns the number of documents it
+     * processed
+     */
+    private long run(String op) {
+        switch (op) {
+            case "insert":
+                return insert();
+            case "save": {
+                List<JsonDoc> docs = Collections.singletonList(newDoc(randomId()));
+                LoadContext ctx = new LoadContext(CRUDOperation.SAVE, md, factory, docs);
+                // Upsert, the document may have been deleted
+                controller.save(ctx, true, null);
+                return check(ctx, 1);
+            }
+            case "update": {
+                LoadContext ctx = new LoadContext(CRUDOperation.UPDATE, md, factory);
+                UpdateExpression u = UpdateExpression.fromJson(json("{'$set':{'" + updateField + "':'" + System.nanoTime() + "'}}"));
+                return check(ctx, controller.update(ctx, idQuery("=", randomId()), u, null).getNumUpdated());
+            }
+            case "find": {
+                LoadContext ctx = new LoadContext(CRUDOperation.FIND, md, factory);
+                controller.find(ctx, idQuery("=", randomId()), ALL, null, null, null);
+                return check(ctx, drain(ctx));
+            }
+            case "findRange": {
+                LoadContext ctx = new LoadContext(CRUDOperation.FIND, md, factory);
+                controller.find(ctx, idQuery(">=", randomId()), ALL, null, 0l, 19l);
+                return check(ctx, drain(ctx));
+            }
+            case "delete": {
+                LoadContext ctx = new LoadContext(CRUDOperation.DELETE, md, factory);
+                return check(ctx, controller.delete(ctx, idQuery("=", randomId())).getNumDeleted());
+            }
+            default:
+                throw new IllegalArgumentException(op);
+        }
+    }
+
+    private long insert() {
+        List<JsonDoc> docs = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            docs.add(newDoc(id(nextId.getAndIncrement())));
+        }
+        LoadContext ctx = new LoadContext(CRUDOperation.INSERT, md, factory, docs);
+        controller.insert(ctx, null);
+        return check(ctx, batch);
+    }
+
+    private static long drain(CRUDOperationContext ctx) {
+        long n = 0;
+        DocumentStream<DocCtx> stream = ctx.getDocumentStream();
+        if (stream != null) {
+            while (stream.hasNext()) {
+                stream.next();
+                n++;
+            }
+            stream.close();
+        }
+        return n;
+    }
+
+    private static long check(CRUDOperationContext ctx, long docs) {
+        boolean failed = ctx.getErrors() != null && !ctx.getErrors().isEmpty();
+        if (!failed && ctx.getInputDocuments() != null) {
+            for (DocCtx doc : ctx.getInputDocuments()) {
+                if (doc.hasErrors()) {
+                    failed = true;
+                    break;
+                }
+            }
+        }
+        OpStats op = currentOp.get();
+        if (failed && op != null) {
+            op.errors.increment();
+        }
+        return docs;
+    }
+
+    private void runFor(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < deadline) {
+            OpStats op = stats.get(pickOp());
+            currentOp.set(op);
+            long start = System.nanoTime();
+            try {
+                op.documents.add(run(op.name));
+            } catch (RuntimeException e) {
+                op.errors.increment();
+            }
+            op.latency.record(System.nanoTime() - start);
+            currentOp.remove();
+        }
+    }
+
+    /**
+     * Runs the workload on the given number of threads, first for the
+     * warmup period, then for the measured duration
+     */
+    public void run(int threads, long warmupMillis, long durationMillis) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            runPhase(executor, threads, warmupMillis);
+            for (OpStats op : stats.values()) {
+                op.reset();
+            }
+            runPhase(executor, threads, durationMillis);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void runPhase(ExecutorService executor, int threads, long millis) throws Exception {
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> runFor(millis)));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+    }
+
+    public void report(long durationMillis) {
+        System.out.println(String.format("%-10s %10s %10s %10s %8s %8s %8s %8s %8s %10s %8s",
+                "op", "count", "ops/s", "docs/s", "mean", "p50", "p95", "p99", "max", "rt/op", "errors"));
+        double secs = durationMillis / 1000.0;
+        for (OpStats op : stats.values()) {
+            long n = op.latency.getCount();
+            System.out.println(String.format("%-10s %10d %10.1f %10.1f %8.2f %8.2f %8.2f %8.2f %8.2f %10.2f %8d",
+                    op.name, n, n / secs, op.documents.sum() / secs,
+                    op.latency.getMeanNanos() / 1e6,
+                    op.latency.getPercentileNanos(0.5) / 1e6,
+                    op.latency.getPercentileNanos(0.95) / 1e6,
+                    op.latency.getPercentileNanos(0.99) / 1e6,
+                    op.latency.getMaxNanos() / 1e6,
+                    n == 0 ? 0.0 : (double) op.roundTrips.sum() / n,
+                    op.errors.sum()));
+        }
+        System.out.println("Latencies in msecs, percentiles are upper bounds of power of two buckets");
+    }
+
+    private static Map<String, Integer> parseMix(String s) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String x : s.split(",")) {
+            String[] kv = x.trim().split(":");
+            String op = kv[0].trim();
+            if (!Arrays.asList(OPS).contains(op)) {
+                throw new IllegalArgumentException("Unknown op:" + op);
+            }
+            int w = Integer.parseInt(kv[1].trim());
+            if (w > 0) {
+                mix.put(op, w);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix");
+        }
+        return mix;
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> map = new HashMap<>();
+        for (String arg : args) {
+            int ix = arg.indexOf('=');
+            if (ix <= 0) {
+                throw new IllegalArgumentException("Expected name=value:" + arg);
+            }
+            map.put(arg.substring(0, ix), arg.substring(ix + 1));
+        }
+        return map;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> a = parseArgs(args);
+        String mongo = a.getOrDefault("mongo", "embedded");
+        String dbName = a.getOrDefault("db", EmbeddedMongo.DATABASE_NAME);
+        int threads = Integer.parseInt(a.getOrDefault("threads", "8"));
+        MongoClient client;
+        if ("inprocess".equals(mongo)) {
+            client = new Fongo("load").getMongo();
+        } else {
+            ServerAddress address;
+            if ("embedded".equals(mongo)) {
+                // Starts mongod
+                EmbeddedMongo.getInstance();
+                address = new ServerAddress(EmbeddedMongo.HOSTNAME, EmbeddedMongo.PORT);
+            } else {
+                address = new ServerAddress(mongo);
+            }
+            client = new MongoClient(address, MongoClientOptions.builder().
+                    connectionsPerHost(Math.max(threads, 10)).
+                    addCommandListener(CommandMetricsListener.getInstance()).build());
+        }
+        try {
+            DB db = client.getDB(dbName);
+            BenchmarkData data = new BenchmarkData(a.getOrDefault("shape", BenchmarkData.SHAPE_TEST),
+                    Integer.parseInt(a.getOrDefault("size", "32")));
+            db.getCollection(((MongoDataStore) data.md.getDataStore()).getCollectionName()).drop();
+            CrudLoadDriver driver = new CrudLoadDriver(db, data,
+                    Integer.parseInt(a.getOrDefault("batch", "10")),
+                    parseMix(a.getOrDefault("mix", "insert:10,save:10,update:20,find:40,findRange:10,delete:10")));
+            driver.preload(Integer.parseInt(a.getOrDefault("preload", "1000")));
+            long warmup = TimeUnit.SECONDS.toMillis(Long.parseLong(a.getOrDefault("warmup", "10")));
+            long duration = TimeUnit.SECONDS.toMillis(Long.parseLong(a.getOrDefault("duration", "30")));
+            System.out.println("shape=" + data.md.getName() + " threads=" + threads + " duration=" + duration / 1000 + "s");
+            driver.run(threads, warmup, duration);
+            driver.report(duration);
+        } finally {
+            client.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.benchmarks.load;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.JsonDoc;
+
+/**
+ * Operation context for a single entity
+ */
+public class LoadContext extends CRUDOperationContext {
+
+    private final EntityMetadata md;
+
+    public LoadContext(CRUDOperation op, EntityMetadata md, Factory factory) {
+        super(op, md.getName(), factory, null, null);
+        this.md = md;
+    }
+
+    public LoadContext(CRUDOperation op, EntityMetadata md, Factory factory, List<JsonDoc> docs) {
+        this(op, md, factory);
+        List<DocCtx> list = new ArrayList<>(docs.size());
+        for (JsonDoc doc : docs) {
+            list.add(new DocCtx(doc));
+        }
+        setInputDocuments(list);
+    }
+
+    @Override
+    public EntityMetadata getEntityMetadata(String entityName) {
+        return md.getName().equals(entityName) ? md : null;
+    }
+}
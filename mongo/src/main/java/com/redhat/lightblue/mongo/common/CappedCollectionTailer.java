@@ -0,0 +1,251 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Follows a capped collection using a tailable, await-data cursor, and
+ * passes every new document to a listener. The tailer runs in its own
+ * daemon thread.
+ *
+ * The cursor reads the collection in natural (insertion) order, so no
+ * ordering of _id values is assumed. Documents that are already in the
+ * collection when the cursor is opened are skipped. A tailable cursor
+ * dies if the collection is empty, so the tailer inserts a marker
+ * document into an empty collection. Marker documents are not passed
+ * to the listener.
+ *
+ * If the cursor dies (network error, collection dropped, capped
+ * collection wrapped around the cursor position, etc.) the tailer
+ * waits for a while, reopens the cursor at the end of the collection,
+ * and calls the listener's onReconnect, because documents inserted
+ * while the cursor was closed are not delivered.
+ */
+public class CappedCollectionTailer implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CappedCollectionTailer.class);
+
+    public static final long DEFAULT_RETRY_MSECS = 1000l;
+
+    /**
+     * Field set in marker documents inserted by the tailer
+     */
+    public static final String MARKER = "_tailerMarker";
+
+    /**
+     * Receives documents inserted into the capped collection
+     */
+    public interface Listener {
+        /**
+         * Called for every new document
+         */
+        void onEvent(DBObject doc);
+
+        /**
+         * Called when the cursor is reopened after it died. Events
+         * might have been lost while the cursor was closed.
+         */
+        default void onReconnect() {
+        }
+    }
+
+    private final DBCollection coll;
+    private final Listener listener;
+    private long retryMsecs = DEFAULT_RETRY_MSECS;
+
+    private volatile boolean running = false;
+    private volatile boolean healthy = false;
+    private volatile Thread thread;
+    private volatile DBCursor currentCursor;
+
+    public CappedCollectionTailer(DBCollection coll, Listener listener) {
+        this.coll = coll;
+        this.listener = listener;
+    }
+
+    /**
+     * Makes sure a capped collection with the given name exists in the
+     * db, and returns it
+     */
+    public static DBCollection ensureCappedCollection(DB db, String name, long sizeBytes) {
+        if (!db.collectionExists(name)) {
+            try {
+                db.createCollection(name, new BasicDBObject("capped", true).append("size", sizeBytes));
+                LOGGER.info("Created capped collection {}.{}", db.getName(), name);
+            } catch (MongoException e) {
+                // Someone else may have created it
+                if (!db.collectionExists(name)) {
+                    throw e;
+                }
+            }
+        }
+        return db.getCollection(name);
+    }
+
+    public DBCollection getCollection() {
+        return coll;
+    }
+
+    public void setRetryMsecs(long l) {
+        retryMsecs = l;
+    }
+
+    /**
+     * Returns true if the tailer is running, and the last attempt to
+     * read from the collection did not fail. If the tailer is not
+     * healthy, listeners may miss events.
+     */
+    public boolean isHealthy() {
+        return running && healthy;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            thread = new Thread(this, "tailer-" + coll.getFullName());
+            thread.setDaemon(true);
+            thread.start();
+            LOGGER.debug("Started tailing {}", coll.getFullName());
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        healthy = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        // Unblock the tailer thread
+        DBCursor cursor = currentCursor;
+        if (cursor != null) {
+            try {
+                cursor.close();
+            } catch (RuntimeException e) {
+                LOGGER.debug("Cannot close cursor", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the _id of the last document in natural order, inserting
+     * a marker document if the collection is empty
+     */
+    private Object lastDocumentId() {
+        DBObject last = findLast();
+        if (last == null) {
+            coll.insert(new BasicDBObject(MARKER, Boolean.TRUE));
+            last = findLast();
+        }
+        return last == null ? null : last.get("_id");
+    }
+
+    private DBObject findLast() {
+        try (DBCursor c = coll.find().sort(new BasicDBObject("$natural", -1)).limit(1)) {
+            return c.hasNext() ? c.next() : null;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean reopen = false;
+        while (running) {
+            DBCursor cursor = null;
+            try {
+                // Everything up to and including this document was
+                // inserted before the cursor is opened
+                Object skipUntil = lastDocumentId();
+                cursor = coll.find().
+                        addOption(Bytes.QUERYOPTION_TAILABLE).
+                        addOption(Bytes.QUERYOPTION_AWAITDATA);
+                currentCursor = cursor;
+                // Skip existing documents. tryNext does not block, and
+                // returns null once we caught up with the collection
+                DBObject doc;
+                while (running && skipUntil != null && (doc = cursor.tryNext()) != null) {
+                    if (skipUntil.equals(doc.get("_id"))) {
+                        break;
+                    }
+                }
+                healthy = true;
+                if (reopen) {
+                    listener.onReconnect();
+                }
+                reopen = true;
+                // Blocks until there is a new document, or the cursor dies
+                while (running && cursor.hasNext()) {
+                    doc = cursor.next();
+                    if (doc.containsField(MARKER)) {
+                        continue;
+                    }
+                    try {
+                        listener.onEvent(doc);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("Error processing {} from {}", doc, coll.getFullName(), e);
+                    }
+                }
+                if (running) {
+                    LOGGER.warn("Tailable cursor on {} died", coll.getFullName());
+                    healthy = false;
+                }
+            } catch (RuntimeException e) {
+                if (running) {
+                    LOGGER.warn("Tailable cursor on {} failed: {}", coll.getFullName(), e.toString());
+                    healthy = false;
+                }
+            } finally {
+                currentCursor = null;
+                if (cursor != null) {
+                    try {
+                        cursor.close();
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Cannot close cursor", e);
+                    }
+                }
+            }
+            // Wait a bit and reopen. Anything inserted in the meantime
+            // is not delivered, the listener is told about it with
+            // onReconnect
+            if (running) {
+                try {
+                    Thread.sleep(retryMsecs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        healthy = false;
+        LOGGER.debug("Stopped tailing {}", coll.getFullName());
+    }
+}
@@ -22,6 +22,15 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
@@ -46,6 +55,7 @@ import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
 import com.redhat.lightblue.config.DataSourceConfiguration;
 import com.redhat.lightblue.mongo.metadata.MongoDataStoreParser;
+import com.redhat.lightblue.mongo.metrics.CommandMetricsListener;
 import com.redhat.lightblue.metadata.parser.DataStoreParser;
 
 import java.security.KeyManagementException;
@@ -70,6 +80,9 @@ public class MongoConfiguration implements DataSourceConfiguration {
     public static final long DEFAULT_MAX_QUERY_TIME_MS = 75000;
 
     public static final String PROPERTY_NAME_MAX_QUERY_TIME_MS = "maxQueryTimeMS";
+    public static final String PROPERTY_NAME_PREWARM_CONNECTIONS = "prewarmConnections";
+    public static final String PROPERTY_NAME_COMMAND_METRICS = "commandMetrics";
+    public static final String PROPERTY_NAME_COMMAND_METRICS_REPLY_SIZE = "commandMetricsReplySize";
 
     private static final long serialVersionUID = 1L;
 
@@ -79,6 +92,22 @@ public class MongoConfiguration implements DataSourceConfiguration {
     private transient ServerAddress theServer = null;
 
     private Integer connectionsPerHost;
+    private Integer minConnectionsPerHost;
+    private Integer threadsAllowedToBlockForConnectionMultiplier;
+    // Timeouts, in milliseconds
+    private Integer maxWaitTime;
+    private Integer connectTimeout;
+    private Integer socketTimeout;
+    private Integer maxConnectionIdleTime;
+    private Integer maxConnectionLifeTime;
+    private Integer heartbeatFrequency;
+    private Integer minHeartbeatFrequency;
+    private Integer heartbeatConnectTimeout;
+    private Integer heartbeatSocketTimeout;
+    private Integer localThreshold;
+    private Integer serverSelectionTimeout;
+    private int prewarmConnections = 0;
+    private boolean commandMetrics = false;
     private String database;
     private transient List<MongoCredential> credentials = new ArrayList<>();
     private boolean ssl = Boolean.FALSE;
@@ -168,6 +197,142 @@ public class MongoConfiguration implements DataSourceConfiguration {
         this.connectionsPerHost = connectionsPerHost;
     }
 
+    public Integer getMinConnectionsPerHost() {
+        return minConnectionsPerHost;
+    }
+
+    public void setMinConnectionsPerHost(Integer minConnectionsPerHost) {
+        this.minConnectionsPerHost = minConnectionsPerHost;
+    }
+
+    public Integer getThreadsAllowedToBlockForConnectionMultiplier() {
+        return threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public void setThreadsAllowedToBlockForConnectionMultiplier(Integer threadsAllowedToBlockForConnectionMultiplier) {
+        this.threadsAllowedToBlockForConnectionMultiplier = threadsAllowedToBlockForConnectionMultiplier;
+    }
+
+    public Integer getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    public void setMaxWaitTime(Integer maxWaitTime) {
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public Integer getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setSocketTimeout(Integer socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public Integer getMaxConnectionIdleTime() {
+        return maxConnectionIdleTime;
+    }
+
+    public void setMaxConnectionIdleTime(Integer maxConnectionIdleTime) {
+        this.maxConnectionIdleTime = maxConnectionIdleTime;
+    }
+
+    public Integer getMaxConnectionLifeTime() {
+        return maxConnectionLifeTime;
+    }
+
+    public void setMaxConnectionLifeTime(Integer maxConnectionLifeTime) {
+        this.maxConnectionLifeTime = maxConnectionLifeTime;
+    }
+
+    public Integer getHeartbeatFrequency() {
+        return heartbeatFrequency;
+    }
+
+    public void setHeartbeatFrequency(Integer heartbeatFrequency) {
+        this.heartbeatFrequency = heartbeatFrequency;
+    }
+
+    public Integer getMinHeartbeatFrequency() {
+        return minHeartbeatFrequency;
+    }
+
+    public void setMinHeartbeatFrequency(Integer minHeartbeatFrequency) {
+        this.minHeartbeatFrequency = minHeartbeatFrequency;
+    }
+
+    public Integer getHeartbeatConnectTimeout() {
+        return heartbeatConnectTimeout;
+    }
+
+    public void setHeartbeatConnectTimeout(Integer heartbeatConnectTimeout) {
+        this.heartbeatConnectTimeout = heartbeatConnectTimeout;
+    }
+
+    public Integer getHeartbeatSocketTimeout() {
+        return heartbeatSocketTimeout;
+    }
+
+    public void setHeartbeatSocketTimeout(Integer heartbeatSocketTimeout) {
+        this.heartbeatSocketTimeout = heartbeatSocketTimeout;
+    }
+
+    public Integer getLocalThreshold() {
+        return localThreshold;
+    }
+
+    public void setLocalThreshold(Integer localThreshold) {
+        this.localThreshold = localThreshold;
+    }
+
+    public Integer getServerSelectionTimeout() {
+        return serverSelectionTimeout;
+    }
+
+    public void setServerSelectionTimeout(Integer serverSelectionTimeout) {
+        this.serverSelectionTimeout = serverSelectionTimeout;
+    }
+
+    /**
+     * Number of connections opened concurrently when the shared client
+     * is created. 0 disables pre-warming.
+     */
+    public int getPrewarmConnections() {
+        return prewarmConnections;
+    }
+
+    /**
+     * Number of connections opened concurrently when the shared client
+     * is created. 0 disables pre-warming.
+     */
+    public void setPrewarmConnections(int n) {
+        prewarmConnections = n;
+    }
+
+    /**
+     * If true, driver commands are attributed to the running CRUD
+     * operation, see CommandMetricsListener
+     */
+    public boolean isCommandMetrics() {
+        return commandMetrics;
+    }
+
+    /**
+     * If true, driver commands are attributed to the running CRUD
+     * operation, see CommandMetricsListener
+     */
+    public void setCommandMetrics(boolean b) {
+        commandMetrics = b;
+    }
+
     /**
      * @return the ssl
      */
@@ -229,13 +394,31 @@ public class MongoConfiguration implements DataSourceConfiguration {
         }
     };
 
+    private static volatile SocketFactory trustAllSocketFactory;
+
+    /**
+     * Returns the socket factory that does not validate certificates.
+     * The same factory is returned for all configurations, so client
+     * options built with it compare equal, and clients can be shared.
+     */
+    private static SocketFactory getTrustAllSocketFactory() throws KeyManagementException, NoSuchAlgorithmException {
+        if (trustAllSocketFactory == null) {
+            synchronized (MongoConfiguration.class) {
+                if (trustAllSocketFactory == null) {
+                    SSLContext sc = SSLContext.getInstance("SSL");
+                    sc.init(null, trustAllCerts, new java.security.SecureRandom());
+                    trustAllSocketFactory = sc.getSocketFactory();
+                }
+            }
+        }
+        return trustAllSocketFactory;
+    }
+
     private SocketFactory getSocketFactory() {
         try {
             if (noCertValidation) {
                 LOGGER.warn("Certificate validation is off, don't use this in production");
-                SSLContext sc = SSLContext.getInstance("SSL");
-                sc.init(null, trustAllCerts, new java.security.SecureRandom());
-                return sc.getSocketFactory();
+                return getTrustAllSocketFactory();
             } else {
                 return SSLSocketFactory.getDefault();
             }
@@ -256,6 +439,45 @@ public class MongoConfiguration implements DataSourceConfiguration {
         if (connectionsPerHost != null) {
             builder.connectionsPerHost(connectionsPerHost);
         }
+        if (minConnectionsPerHost != null) {
+            builder.minConnectionsPerHost(minConnectionsPerHost);
+        }
+        if (threadsAllowedToBlockForConnectionMultiplier != null) {
+            builder.threadsAllowedToBlockForConnectionMultiplier(threadsAllowedToBlockForConnectionMultiplier);
+        }
+        if (maxWaitTime != null) {
+            builder.maxWaitTime(maxWaitTime);
+        }
+        if (connectTimeout != null) {
+            builder.connectTimeout(connectTimeout);
+        }
+        if (socketTimeout != null) {
+            builder.socketTimeout(socketTimeout);
+        }
+        if (maxConnectionIdleTime != null) {
+            builder.maxConnectionIdleTime(maxConnectionIdleTime);
+        }
+        if (maxConnectionLifeTime != null) {
+            builder.maxConnectionLifeTime(maxConnectionLifeTime);
+        }
+        if (heartbeatFrequency != null) {
+            builder.heartbeatFrequency(heartbeatFrequency);
+        }
+        if (minHeartbeatFrequency != null) {
+            builder.minHeartbeatFrequency(minHeartbeatFrequency);
+        }
+        if (heartbeatConnectTimeout != null) {
+            builder.heartbeatConnectTimeout(heartbeatConnectTimeout);
+        }
+        if (heartbeatSocketTimeout != null) {
+            builder.heartbeatSocketTimeout(heartbeatSocketTimeout);
+        }
+        if (localThreshold != null) {
+            builder.localThreshold(localThreshold);
+        }
+        if (serverSelectionTimeout != null) {
+            builder.serverSelectionTimeout(serverSelectionTimeout);
+        }
 
         if (this.readPreference != null) {
             builder.readPreference(readPreference);
@@ -268,6 +490,10 @@ public class MongoConfiguration implements DataSourceConfiguration {
         }
         builder.writeConcern(writeConcern);
 
+        if (commandMetrics) {
+            builder.addCommandListener(CommandMetricsListener.getInstance());
+        }
+
         return builder.build();
     }
 
@@ -281,8 +507,135 @@ public class MongoConfiguration implements DataSourceConfiguration {
         }
     }
 
+    /**
+     * Identifies a mongo client by the servers it connects to, the
+     * credentials it uses, and its options.
+     */
+    private static final class ClientKey {
+        private final ServerAddress server;
+        private final List<ServerAddress> servers;
+        private final List<MongoCredential> credentials;
+        private final MongoClientOptions options;
+
+        ClientKey(ServerAddress server, List<ServerAddress> servers, List<MongoCredential> credentials, MongoClientOptions options) {
+            this.server = server;
+            this.servers = new ArrayList<>(servers);
+            this.credentials = credentials == null ? new ArrayList<>() : new ArrayList<>(credentials);
+            this.options = options;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ClientKey) {
+                ClientKey k = (ClientKey) o;
+                return Objects.equals(server, k.server)
+                        && servers.equals(k.servers)
+                        && credentials.equals(k.credentials)
+                        && options.equals(k.options);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(server, servers, credentials, options);
+        }
+    }
+
+    /**
+     * Mongo clients shared by all configurations in this JVM
+     */
+    private static final ConcurrentHashMap<ClientKey, MongoClient> sharedClients = new ConcurrentHashMap<>();
+
+    /**
+     * Number of connections pre-warmed for each shared client.
+     * prewarmConnections is not a client option, so configurations
+     * sharing a client may ask for different numbers of connections.
+     */
+    private static final ConcurrentHashMap<MongoClient, Integer> prewarmedClients = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a mongo client shared by all configurations with the same
+     * servers, credentials, and client options. Each mongo client owns
+     * a connection pool and monitor threads for every server, so
+     * datasources pointing to the same cluster should use the same
+     * client. The returned client must not be closed.
+     */
+    public MongoClient getSharedMongoClient() {
+        MongoClientOptions options = getMongoClientOptions();
+        MongoClient client = sharedClients.computeIfAbsent(new ClientKey(theServer, servers, credentials, options), k -> {
+            LOGGER.debug("Creating shared mongo client with server: {}, servers:{} and options:{}", theServer, servers, options);
+            if (theServer != null) {
+                return new MongoClient(theServer, credentials, options);
+            } else {
+                return new MongoClient(servers, credentials, options);
+            }
+        });
+        // Pre-warm outside computeIfAbsent, the pings block
+        if (prewarmConnections > 0 && claimPrewarm(client)) {
+            prewarm(client, options);
+        }
+        return client;
+    }
+
+    /**
+     * Returns true if the client has not been pre-warmed with at least
+     * prewarmConnections connections yet, and records that this caller
+     * will do it
+     */
+    private boolean claimPrewarm(MongoClient client) {
+        while (true) {
+            Integer done = prewarmedClients.putIfAbsent(client, prewarmConnections);
+            if (done == null) {
+                return true;
+            }
+            if (done >= prewarmConnections) {
+                return false;
+            }
+            if (prewarmedClients.replace(client, done, prewarmConnections)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Opens connections to the cluster by running concurrent pings, so
+     * the first requests don't pay for connection setup. Together with
+     * minConnectionsPerHost, this keeps the pool warm from startup.
+     * Failures are logged and ignored, the pool will open connections
+     * on demand.
+     */
+    private void prewarm(MongoClient client, MongoClientOptions options) {
+        LOGGER.info("Opening {} connections to {}", prewarmConnections, theServer == null ? servers : theServer);
+        DB db = client.getDB(database == null ? "admin" : database);
+        // All pings wait on this, so they run at the same time and
+        // use separate connections
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(prewarmConnections);
+        try {
+            List<Future<?>> pings = new ArrayList<>();
+            for (int i = 0; i < prewarmConnections; i++) {
+                pings.add(executor.submit(() -> {
+                    start.await();
+                    return db.command("ping");
+                }));
+            }
+            start.countDown();
+            long timeout = Math.max(options.getServerSelectionTimeout(), 0) + options.getConnectTimeout();
+            for (Future<?> ping : pings) {
+                ping.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            LOGGER.warn("Cannot pre-warm connections to {}: {}", theServer == null ? servers : theServer, e.toString());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     public DB getDB() throws UnknownHostException {
-        return getMongoClient().getDB(database);
+        return getSharedMongoClient().getDB(database);
     }
 
     @Override
@@ -294,6 +647,21 @@ public class MongoConfiguration implements DataSourceConfiguration {
             bld.append("servers:").append(servers).append('\n');
         }
         bld.append("connectionsPerHost:").append(connectionsPerHost).append('\n').
+                append("minConnectionsPerHost:").append(minConnectionsPerHost).append('\n').
+                append("threadsAllowedToBlockForConnectionMultiplier:").append(threadsAllowedToBlockForConnectionMultiplier).append('\n').
+                append("maxWaitTime:").append(maxWaitTime).append('\n').
+                append("connectTimeout:").append(connectTimeout).append('\n').
+                append("socketTimeout:").append(socketTimeout).append('\n').
+                append("maxConnectionIdleTime:").append(maxConnectionIdleTime).append('\n').
+                append("maxConnectionLifeTime:").append(maxConnectionLifeTime).append('\n').
+                append("heartbeatFrequency:").append(heartbeatFrequency).append('\n').
+                append("minHeartbeatFrequency:").append(minHeartbeatFrequency).append('\n').
+                append("heartbeatConnectTimeout:").append(heartbeatConnectTimeout).append('\n').
+                append("heartbeatSocketTimeout:").append(heartbeatSocketTimeout).append('\n').
+                append("localThreshold:").append(localThreshold).append('\n').
+                append("serverSelectionTimeout:").append(serverSelectionTimeout).append('\n').
+                append("prewarmConnections:").append(prewarmConnections).append('\n').
+                append("commandMetrics:").append(commandMetrics).append('\n').
                 append("database:").append(database).append('\n').
                 append("ssl:").append(ssl).append('\n').
                 append("writeConcern:").append(writeConcern).append('\n').
@@ -508,10 +876,45 @@ public class MongoConfiguration implements DataSourceConfiguration {
                 if (maxResultSetSizeOption != null) {
                     this.maxResultSetSize = maxResultSetSizeOption.asInt();
                 }
+
+                connectionsPerHost = getIntOption(jsonNodeOptions, "connectionsPerHost", connectionsPerHost);
+                minConnectionsPerHost = getIntOption(jsonNodeOptions, "minConnectionsPerHost", minConnectionsPerHost);
+                threadsAllowedToBlockForConnectionMultiplier = getIntOption(jsonNodeOptions, "threadsAllowedToBlockForConnectionMultiplier", threadsAllowedToBlockForConnectionMultiplier);
+                maxWaitTime = getIntOption(jsonNodeOptions, "maxWaitTime", maxWaitTime);
+                connectTimeout = getIntOption(jsonNodeOptions, "connectTimeout", connectTimeout);
+                socketTimeout = getIntOption(jsonNodeOptions, "socketTimeout", socketTimeout);
+                maxConnectionIdleTime = getIntOption(jsonNodeOptions, "maxConnectionIdleTime", maxConnectionIdleTime);
+                maxConnectionLifeTime = getIntOption(jsonNodeOptions, "maxConnectionLifeTime", maxConnectionLifeTime);
+                heartbeatFrequency = getIntOption(jsonNodeOptions, "heartbeatFrequency", heartbeatFrequency);
+                minHeartbeatFrequency = getIntOption(jsonNodeOptions, "minHeartbeatFrequency", minHeartbeatFrequency);
+                heartbeatConnectTimeout = getIntOption(jsonNodeOptions, "heartbeatConnectTimeout", heartbeatConnectTimeout);
+                heartbeatSocketTimeout = getIntOption(jsonNodeOptions, "heartbeatSocketTimeout", heartbeatSocketTimeout);
+                localThreshold = getIntOption(jsonNodeOptions, "localThreshold", localThreshold);
+                serverSelectionTimeout = getIntOption(jsonNodeOptions, "serverSelectionTimeout", serverSelectionTimeout);
+
+                JsonNode commandMetricsOption = jsonNodeOptions.get(PROPERTY_NAME_COMMAND_METRICS);
+                if (commandMetricsOption != null) {
+                    this.commandMetrics = commandMetricsOption.asBoolean();
+                }
+                JsonNode replySizeOption = jsonNodeOptions.get(PROPERTY_NAME_COMMAND_METRICS_REPLY_SIZE);
+                if (replySizeOption != null && replySizeOption.asBoolean()) {
+                    // The listener is shared, so this applies to all datasources
+                    CommandMetricsListener.getInstance().setRecordReplySize(true);
+                }
+
+                JsonNode prewarmOption = jsonNodeOptions.get(PROPERTY_NAME_PREWARM_CONNECTIONS);
+                if (prewarmOption != null) {
+                    this.prewarmConnections = prewarmOption.asInt();
+                }
             }
         }
     }
 
+    private static Integer getIntOption(JsonNode options, String name, Integer defaultValue) {
+        JsonNode x = options.get(name);
+        return x == null ? defaultValue : Integer.valueOf(x.asInt());
+    }
+
     public WriteConcern getWriteConcern() {
         return writeConcern;
     }
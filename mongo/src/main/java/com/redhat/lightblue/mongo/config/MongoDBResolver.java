@@ -18,10 +18,11 @@
  */
 package com.redhat.lightblue.mongo.config;
 
+import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +38,8 @@ public class MongoDBResolver implements DBResolver {
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoDBResolver.class);
 
     private final Map<String, MongoConfiguration> datasources;
-    private final Map<String, DB> dbMap = new HashMap<>();
-    private final Map<String, DB> dsMap = new HashMap<>();
+    private final Map<String, DB> dbMap = new ConcurrentHashMap<>();
+    private final Map<String, DB> dsMap = new ConcurrentHashMap<>();
 
     public MongoDBResolver(DataSourcesConfiguration ds) {
         datasources = ds.getDataSourcesByType(MongoConfiguration.class);
@@ -70,26 +71,10 @@ public class MongoDBResolver implements DBResolver {
         try {
             if (store.getDatasourceName() != null) {
                 LOGGER.debug("datasource:{}", store.getDatasourceName());
-                db = dsMap.get(store.getDatasourceName());
-                if (db == null) {
-                    MongoConfiguration cfg = getConfiguration(store);
-                    if (cfg == null) {
-                        throw new IllegalArgumentException("No datasources for " + store.getDatasourceName());
-                    }
-                    db = cfg.getDB();
-                    dsMap.put(store.getDatasourceName(), db);
-                }
+                db = getOrCreate(dsMap, store.getDatasourceName(), store);
             } else if (store.getDatabaseName() != null) {
                 LOGGER.debug("databaseName:{}", store.getDatabaseName());
-                db = dbMap.get(store.getDatabaseName());
-                if (db == null) {
-                    MongoConfiguration cfg = getConfiguration(store);
-                    if (cfg == null) {
-                        throw new IllegalArgumentException("No datasources for " + store.getDatasourceName());
-                    }
-                    db = cfg.getDB();
-                    dbMap.put(store.getDatabaseName(), db);
-                }
+                db = getOrCreate(dbMap, store.getDatabaseName(), store);
             }
         } catch (RuntimeException re) {
             LOGGER.error("Cannot get {}:{}", store, re);
@@ -104,4 +89,34 @@ public class MongoDBResolver implements DBResolver {
         LOGGER.debug("Returning {} for {}", db, store);
         return db;
     }
+
+    /**
+     * Looks up the DB in the map, creating it if necessary. The DB is
+     * created outside the map, so a slow connection does not block
+     * other lookups. If two threads create the DB at the same time,
+     * both get the same shared client, and one of the DBs is kept.
+     */
+    private DB getOrCreate(Map<String, DB> map, String key, MongoDataStore store) {
+        DB db = map.get(key);
+        if (db == null) {
+            db = getDB(store);
+            DB existing = map.putIfAbsent(key, db);
+            if (existing != null) {
+                db = existing;
+            }
+        }
+        return db;
+    }
+
+    private DB getDB(MongoDataStore store) {
+        MongoConfiguration cfg = getConfiguration(store);
+        if (cfg == null) {
+            throw new IllegalArgumentException("No datasources for " + store);
+        }
+        try {
+            return cfg.getDB();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
 }
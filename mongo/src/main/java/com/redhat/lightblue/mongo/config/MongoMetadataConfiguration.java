@@ -19,6 +19,8 @@
 package com.redhat.lightblue.mongo.config;
 
 import org.bson.BSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.redhat.lightblue.config.AbstractMetadataConfiguration;
@@ -35,6 +37,7 @@ import com.redhat.lightblue.metadata.types.DefaultTypes;
 import com.redhat.lightblue.mongo.common.DBResolver;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.List;
@@ -42,10 +45,17 @@ import java.util.Map;
 
 public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoMetadataConfiguration.class);
+
     private String datasource;
     private String collection;
     private Long cachePeekInterval;
     private Long cacheTTL;
+    private Integer cacheMaxSize;
+    private String cacheEventsCollection;
+    private Long cacheEventsCollectionSize;
+    private boolean warmUpCache = false;
+    private String cacheSnapshotFile;
 
     private static final MetadataCache metadataCache = new MetadataCache();
 
@@ -78,6 +88,9 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             mdstore.setDatasourceName(datasource);
 
             metadataCache.setCacheParams(cachePeekInterval, cacheTTL);
+            if (cacheMaxSize != null) {
+                metadataCache.setMaxSize(cacheMaxSize);
+            }
 
             try {
                 MongoMetadata mongoMetadata = null;
@@ -89,6 +102,20 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
 
                 mongoMetadata.setRoleMap(getMappedRoles());
 
+                if (cacheEventsCollection != null) {
+                    metadataCache.enableInvalidationEvents(dbresolver.get(mdstore), cacheEventsCollection,
+                            cacheEventsCollectionSize == null ? MetadataCache.DEFAULT_EVENTS_COLLECTION_SIZE : cacheEventsCollectionSize);
+                }
+
+                if (warmUpCache) {
+                    try {
+                        mongoMetadata.warmUp(cacheSnapshotFile == null ? null : new File(cacheSnapshotFile));
+                    } catch (RuntimeException e) {
+                        // Entities will be loaded on demand
+                        LOGGER.warn("Metadata cache warm-up failed: {}", e.toString());
+                    }
+                }
+
                 return mongoMetadata;
             } catch (RuntimeException re) {
                 throw re;
@@ -155,6 +182,26 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             if (x != null) {
                 cacheTTL = x.asLong();
             }
+            x = node.get("cacheMaxSize");
+            if (x != null) {
+                cacheMaxSize = x.asInt();
+            }
+            x = node.get("cacheEventsCollection");
+            if (x != null) {
+                cacheEventsCollection = x.asText();
+            }
+            x = node.get("cacheEventsCollectionSize");
+            if (x != null) {
+                cacheEventsCollectionSize = x.asLong();
+            }
+            x = node.get("warmUpCache");
+            if (x != null) {
+                warmUpCache = x.asBoolean();
+            }
+            x = node.get("cacheSnapshotFile");
+            if (x != null) {
+                cacheSnapshotFile = x.asText();
+            }
         }
     }
 }
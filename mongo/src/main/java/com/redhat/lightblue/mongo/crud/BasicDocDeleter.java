@@ -42,6 +42,8 @@ import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * Basic document deletion with no transaction support
@@ -74,10 +76,11 @@ public class BasicDocDeleter implements DocDeleter {
         LOGGER.debug("Removing docs with {}", mongoQuery);
 
         int numDeleted = 0;
+        Deadline deadline = Deadline.get(ctx);
 
         if(!hookOptimization||ctx.getHookManager().hasHooks(ctx,CRUDOperation.DELETE)) {
             LOGGER.debug("There are hooks, retrieve-delete");
-            try (DBCursor cursor = collection.find(mongoQuery, null)) {
+            try (DBCursor cursor = deadline.apply(collection.find(mongoQuery, null), "delete")) {
                 // Set read preference to primary for read-for-update operations
                 cursor.setReadPreference(ReadPreference.primary());
 
@@ -85,7 +88,8 @@ public class BasicDocDeleter implements DocDeleter {
                 ArrayList<DocCtx> contextDocs=new ArrayList<>();
                 // ids to delete from the db
                 List<Object> idsToDelete = new ArrayList<>(batchSize);                
-                while (cursor.hasNext()) {
+                // If the deadline passes, the docs read so far are deleted
+                while (deadline.hasNext(ctx, cursor, "delete")) {
 
                     // We will use this index to access the documents deleted in this batch
                     int thisBatchIndex=contextDocs.size();
@@ -100,7 +104,7 @@ public class BasicDocDeleter implements DocDeleter {
                         idsToDelete.add(doc.get(MongoCRUDController.ID_STR));
                     }
                     
-                    if (idsToDelete.size() == batchSize || !cursor.hasNext()) {
+                    if (idsToDelete.size() == batchSize || !deadline.hasNext(ctx, cursor, "delete")) {
                         // batch built or run out of documents                        
                         BulkWriteOperation bw = collection.initializeUnorderedBulkOperation();
                         
@@ -111,13 +115,15 @@ public class BasicDocDeleter implements DocDeleter {
                         }
                         
                         BulkWriteResult result = null;
-                        try {
-                            if (writeConcern == null) {
+                        WriteConcern wc = deadline.writeConcern(writeConcern, collection);
+                        try (Tracer.Span span = Tracing.begin(Tracer.Phase.BULK_WRITE)) {
+                            span.documents(idsToDelete.size()).detail("delete");
+                            if (wc == null) {
                                 LOGGER.debug("Bulk deleting docs");
                                 result = bw.execute();
                             } else {
-                                LOGGER.debug("Bulk deleting docs with writeConcern={} from execution", writeConcern);
-                                result = bw.execute(writeConcern);
+                                LOGGER.debug("Bulk deleting docs with writeConcern={} from execution", wc);
+                                result = bw.execute(wc);
                             }
                             LOGGER.debug("Bulk deleted docs - attempted {}, deleted {}", idsToDelete.size(), result.getRemovedCount());
                         } catch (BulkWriteException bwe) {
@@ -140,10 +146,11 @@ public class BasicDocDeleter implements DocDeleter {
         } else {
             LOGGER.debug("There are no hooks, deleting in bulk");
             try {
-                if(writeConcern==null) {
+                WriteConcern wc=deadline.writeConcern(writeConcern,collection);
+                if(wc==null) {
                     numDeleted=collection.remove(mongoQuery).getN();
                 } else {
-                    numDeleted=collection.remove(mongoQuery,writeConcern).getN();
+                    numDeleted=collection.remove(mongoQuery,wc).getN();
                 }
             } catch(MongoException e) {
                 LOGGER.error("Deletion error",e);
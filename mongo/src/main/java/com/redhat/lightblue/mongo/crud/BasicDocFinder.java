@@ -20,10 +20,17 @@ package com.redhat.lightblue.mongo.crud;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.ReadPreference;
@@ -35,8 +42,9 @@ import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.ListDocumentStream;
 import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.mongo.metrics.OperationMetrics;
+import com.redhat.lightblue.mongo.metrics.QueryShapeStats;
 import com.redhat.lightblue.util.Error;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Basic doc search operation
@@ -46,10 +54,25 @@ public class BasicDocFinder implements DocFinder {
     private static final Logger LOGGER = LoggerFactory.getLogger(BasicDocFinder.class);
     private static final Logger RESULTSET_LOGGER = LoggerFactory.getLogger("com.redhat.lightblue.crud.mongo.slowresults");
 
+    private static final int MAX_PENDING_EXPLAINS = 16;
+
+    /**
+     * Runs sampled explains, so they are not on the request path.
+     * Explains are dropped if too many are pending.
+     */
+    private static final ExecutorService explainer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING_EXPLAINS), r -> {
+                Thread t = new Thread(r, "query-shape-explain");
+                t.setDaemon(true);
+                return t;
+            });
+
     private final DocTranslator translator;
     private ReadPreference readPreference;
     private int maxResultSetSize = 0;
     private long maxQueryTimeMS = 0;
+    private QueryShapeStats queryShapeStats;
+    private int explainSampleRate = 0;
 
     public BasicDocFinder(DocTranslator translator, ReadPreference readPreference) {
         this.translator = translator;
@@ -66,6 +89,21 @@ public class BasicDocFinder implements DocFinder {
         this.maxQueryTimeMS = maxQueryTimeMS;
     }
 
+    /**
+     * If set, executions are recorded in the query shape statistics
+     */
+    public void setQueryShapeStats(QueryShapeStats stats) {
+        this.queryShapeStats = stats;
+    }
+
+    /**
+     * Explain one out of every n executions of a query shape. 0
+     * disables explains.
+     */
+    public void setExplainSampleRate(int n) {
+        this.explainSampleRate = n;
+    }
+
     @Override
     public long find(CRUDOperationContext ctx,
                      DBCollection coll,
@@ -77,6 +115,8 @@ public class BasicDocFinder implements DocFinder {
         LOGGER.debug("Submitting query {}", mongoQuery);
 
         long executionTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        String shape = QueryShape.of(mongoQuery, mongoSort);
         DBCursor cursor = null;
         boolean cursorInUse=false;
         try {
@@ -97,6 +137,7 @@ public class BasicDocFinder implements DocFinder {
                 LOGGER.debug("Result set sorted");
             }
             int numMatched = cursor.count();
+            long queryNanos = System.nanoTime() - startNanos;
             int nRetrieve=numMatched;
 
            LOGGER.debug("Applying limits: {} - {}", from, to);
@@ -117,20 +158,26 @@ public class BasicDocFinder implements DocFinder {
                 cursor.limit(nRetrieve);
                 if (maxResultSetSize > 0 && nRetrieve > maxResultSetSize) {
                     LOGGER.warn("Too many results:{} of {}", nRetrieve, numMatched);
-                    RESULTSET_LOGGER.debug("resultset_size={}, requested={}, query={}", numMatched, nRetrieve, mongoQuery);
+                    RESULTSET_LOGGER.debug("resultset_size={}, requested={}, shape={}, query={}", numMatched, nRetrieve, shape, mongoQuery);
                     throw Error.get(MongoCrudConstants.ERR_TOO_MANY_RESULTS, Integer.toString(nRetrieve));
                 }
                 
                 LOGGER.debug("Retrieving results");
                 CursorStream stream=new CursorStream(cursor,translator,mongoQuery,executionTime,f,t);
+                stream.setQueryShape(shape);
+                stream.setMetrics(OperationMetrics.get(ctx));
                 ctx.setDocumentStream(stream);
                 cursorInUse=true;
             } else {
             	ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<>()));
             }
+            if (queryShapeStats != null) {
+                recordShape(ctx.getEntityName(), shape, queryNanos, nRetrieve > 0 ? nRetrieve : 0, coll, mongoQuery, mongoProjection, mongoSort);
+            }
             if (RESULTSET_LOGGER.isDebugEnabled() && (executionTime > 100 ) ) {
-                RESULTSET_LOGGER.debug("execution_time={}, query={}, from={}, to={}",
+                RESULTSET_LOGGER.debug("execution_time={}, shape={}, query={}, from={}, to={}",
                                        executionTime, 
+                                       shape,
                                        mongoQuery,
                                        f, t);
             }            
@@ -142,4 +189,72 @@ public class BasicDocFinder implements DocFinder {
         }
     }
 
+    private void recordShape(String entity,
+                             String shape,
+                             long queryNanos,
+                             long docsReturned,
+                             DBCollection coll,
+                             DBObject mongoQuery,
+                             DBObject mongoProjection,
+                             DBObject mongoSort) {
+        if (queryShapeStats.shouldExplain(entity, shape, explainSampleRate)) {
+            QueryShapeStats stats = queryShapeStats;
+            long maxTime = maxQueryTimeMS;
+            try {
+                explainer.execute(() -> explain(stats, entity, shape, coll, mongoQuery, mongoProjection, mongoSort, maxTime));
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Skipped explain of {}, too many pending", shape);
+            }
+        }
+        queryShapeStats.record(entity, shape, queryNanos, docsReturned);
+    }
+
+    /**
+     * Explains the query with executionStats verbosity, and records the
+     * result. Runs in the explainer thread. The explain command with
+     * find is only available on 3.2 and later, so falls back to
+     * explaining the cursor on older servers, which reports the
+     * documents examined there.
+     */
+    private static void explain(QueryShapeStats stats,
+                                String entity,
+                                String shape,
+                                DBCollection coll,
+                                DBObject mongoQuery,
+                                DBObject mongoProjection,
+                                DBObject mongoSort,
+                                long maxTime) {
+        try {
+            BasicDBObject find = new BasicDBObject("find", coll.getName());
+            if (mongoQuery != null) {
+                find.append("filter", mongoQuery);
+            }
+            if (mongoProjection != null) {
+                find.append("projection", mongoProjection);
+            }
+            if (mongoSort != null) {
+                find.append("sort", mongoSort);
+            }
+            if (maxTime > 0) {
+                find.append("maxTimeMS", maxTime);
+            }
+            CommandResult result = coll.getDB().command(new BasicDBObject("explain", find).append("verbosity", "executionStats"));
+            if (result.ok()) {
+                stats.recordExplain(entity, shape, result);
+                return;
+            }
+            LOGGER.debug("explain command failed: {}, explaining cursor", result.getErrorMessage());
+            try (DBCursor explainCursor = coll.find(mongoQuery, mongoProjection)) {
+                if (mongoSort != null) {
+                    explainCursor.sort(mongoSort);
+                }
+                if (maxTime > 0) {
+                    explainCursor.maxTime(maxTime, TimeUnit.MILLISECONDS);
+                }
+                stats.recordExplain(entity, shape, explainCursor.explain());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Cannot explain {}: {}", shape, e.toString());
+        }
+    }
 }
@@ -50,6 +50,8 @@ import com.redhat.lightblue.metadata.Type;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * Basic doc saver with no transaction support
@@ -150,17 +152,37 @@ public class BasicDocSaver implements DocSaver {
                          DocTranslator.TranslatedBsonDoc[] dbObjects,
                          DocCtx[] inputDocs) {
         // Operate in batches
+        Deadline deadline = Deadline.get(ctx);
         List<DocInfo> batch = new ArrayList<>(batchSize);
         for (int i = 0; i < dbObjects.length; i++) {
             DocInfo item = new DocInfo(dbObjects[i].doc, dbObjects[i].rmd,inputDocs[i]);
             batch.add(item);
             if (batch.size() >= batchSize) {
+                if (deadline.expired(ctx, op.toString())) {
+                    failRemaining(deadline, op, inputDocs, i + 1 - batch.size());
+                    return;
+                }
                 saveDocs(ctx, op, upsert, collection, batch);
                 batch.clear();
             }
         }
         if (!batch.isEmpty()) {
-            saveDocs(ctx, op, upsert, collection, batch);
+            if (deadline.expired(ctx, op.toString())) {
+                failRemaining(deadline, op, inputDocs, dbObjects.length - batch.size());
+            } else {
+                saveDocs(ctx, op, upsert, collection, batch);
+            }
+        }
+    }
+
+    /**
+     * Marks the docs starting at index from as not saved because the
+     * deadline passed
+     */
+    private void failRemaining(Deadline deadline, Op op, DocCtx[] inputDocs, int from) {
+        LOGGER.debug("Deadline passed, {} docs are not saved", inputDocs.length - from);
+        for (int i = from; i < inputDocs.length; i++) {
+            inputDocs[i].addError(deadline.error(op.toString()));
         }
     }
 
@@ -182,7 +204,7 @@ public class BasicDocSaver implements DocSaver {
             if (!idQueries.isEmpty()) {
                 BasicDBObject retrievalq = new BasicDBObject("$or", idQueries);
                 LOGGER.debug("Existing document retrieval query={}", retrievalq);
-                try (DBCursor cursor = collection.find(retrievalq, null)) {
+                try (DBCursor cursor = Deadline.get(ctx).apply(collection.find(retrievalq, null), op.toString())) {
                     // Make sure we read from primary, because that's where we'll write
                     cursor.setReadPreference(ReadPreference.primary());
                     List<DBObject> results = cursor.toArray();
@@ -270,13 +292,15 @@ public class BasicDocSaver implements DocSaver {
                         bw.insert(doc.newDoc);
                         doc.inputDoc.setCRUDOperationPerformed(CRUDOperation.INSERT);
                     }
-                    try {
-                        if (writeConcern == null) {
+                    WriteConcern wc = Deadline.get(ctx).writeConcern(writeConcern, collection);
+                    try (Tracer.Span span = Tracing.begin(Tracer.Phase.BULK_WRITE, md.getName())) {
+                        span.documents(insertionAttemptList.size()).detail("insert");
+                        if (wc == null) {
                             LOGGER.debug("Bulk inserting docs");
                             bw.execute();
                         } else {
-                            LOGGER.debug("Bulk inserting docs with writeConcern={} from execution", writeConcern);
-                            bw.execute(writeConcern);
+                            LOGGER.debug("Bulk inserting docs with writeConcern={} from execution", wc);
+                            bw.execute(wc);
                         }
                     } catch (BulkWriteException bwe) {
                         LOGGER.error("Bulk write exception", bwe);
@@ -40,6 +40,8 @@ import com.mongodb.ReadPreference;
 import org.bson.types.ObjectId;
 
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 public interface BatchUpdate {
 
@@ -87,7 +89,8 @@ public interface BatchUpdate {
         boolean ret=true;
         BulkWriteResult writeResult;
         logger.debug("attemptToUpdate={}",batchSize);
-        try {
+        try (Tracer.Span span=Tracing.begin(Tracer.Phase.BULK_WRITE)) {
+            span.documents(batchSize).detail("update");
             if(writeConcern==null) {
                 writeResult=bwo.execute();
             } else {
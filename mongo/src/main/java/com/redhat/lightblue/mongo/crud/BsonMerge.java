@@ -37,6 +37,8 @@ import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.util.DocComparator;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.MutablePath;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * During a save operation, the document provided by the client replaces the
@@ -226,6 +228,7 @@ public final class BsonMerge extends DocComparator<Object, Object, DBObject, Lis
      */
     public boolean merge(DBObject oldDoc, DBObject newDoc) {
         boolean ret = false;
+        Tracer.Span span = Tracing.begin(Tracer.Phase.MERGE, md.getName());
         try {
             LOGGER.debug("Merge start");
             DocComparator.Difference<Object> diff = compareNodesWithFallback(oldDoc, newDoc);
@@ -268,6 +271,8 @@ public final class BsonMerge extends DocComparator<Object, Object, DBObject, Lis
         } catch (Exception e) {
             LOGGER.error("Error in merge:{}",e,e);
             throw new RuntimeException(e);
+        } finally {
+            span.documents(1).close();
         }
         return ret;
     }
@@ -0,0 +1,256 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Rejects or throttles queries that would scan a whole collection. The
+ * first time a query shape is seen for a collection, the query planner
+ * is asked for the winning plan, and the result is cached for a while,
+ * together with the collection size if the plan is a collection scan.
+ * If the plan is a collection scan and the collection has more
+ * documents than the configured limit, the query is rejected, or
+ * only a limited number of such queries are allowed to run
+ * concurrently, depending on the mode.
+ *
+ * A throttled find holds its permit until the controller call
+ * returns. That covers running the query and counting the results,
+ * but not iterating the returned cursor, so a stream abandoned by the
+ * caller does not block the query shape.
+ *
+ * Callers can bypass the guard with the execution option
+ * allowCollectionScan=true.
+ *
+ * The explain command with find is only available on 3.2 and later.
+ * On older servers the plan is unknown, and queries are allowed.
+ */
+public class CollectionScanGuard {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CollectionScanGuard.class);
+
+    public static final long DEFAULT_MIN_COLLECTION_SIZE = 100000;
+    public static final long DEFAULT_PLAN_TTL_MS = 10 * 60 * 1000l;
+    public static final int DEFAULT_MAX_CONCURRENT = 1;
+    public static final long DEFAULT_MAX_WAIT_MS = 1000;
+
+    public enum Mode {
+        off, reject, throttle
+    }
+
+    /**
+     * Returned by check(). Must be closed when the query completes.
+     */
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit NO_PERMIT = () -> {
+    };
+
+    private static final class CachedPlan {
+        private final boolean collectionScan;
+        // Collection size, only counted for collection scans
+        private final long collectionSize;
+        private final long expiration;
+
+        CachedPlan(boolean collectionScan, long collectionSize, long expiration) {
+            this.collectionScan = collectionScan;
+            this.collectionSize = collectionSize;
+            this.expiration = expiration;
+        }
+    }
+
+    private final Mode mode;
+    private final long minCollectionSize;
+    private final long planTTL;
+    private final int maxConcurrent;
+    private final long maxWaitMS;
+
+    /**
+     * Winning plans, keyed by collection full name and query shape
+     */
+    private final ConcurrentHashMap<String, CachedPlan> plans = new ConcurrentHashMap<>();
+
+    /**
+     * Running collection scans, keyed by collection full name and query shape
+     */
+    private final ConcurrentHashMap<String, Semaphore> running = new ConcurrentHashMap<>();
+
+    public CollectionScanGuard(Mode mode, long minCollectionSize, long planTTL, int maxConcurrent, long maxWaitMS) {
+        this.mode = mode;
+        this.minCollectionSize = minCollectionSize;
+        this.planTTL = planTTL;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMS = maxWaitMS;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Checks the query. Throws ERR_COLLECTION_SCAN if the query is
+     * rejected. Otherwise, returns a permit that must be closed when
+     * the query completes.
+     */
+    public Permit check(ExecutionOptions options, DBCollection coll, DBObject query, DBObject sort) {
+        if (mode == Mode.off || MongoExecutionOptions.isCollectionScanAllowed(options)) {
+            return NO_PERMIT;
+        }
+        String shape = QueryShape.of(query, sort);
+        String key = coll.getFullName() + " " + shape;
+        CachedPlan plan = getPlan(key, coll, query, sort);
+        if (!plan.collectionScan) {
+            return NO_PERMIT;
+        }
+        long size = plan.collectionSize;
+        if (size < minCollectionSize) {
+            return NO_PERMIT;
+        }
+        if (mode == Mode.reject) {
+            LOGGER.warn("Rejected collection scan on {} ({} docs): {}", coll.getFullName(), size, shape);
+            throw Error.get(MongoCrudConstants.ERR_COLLECTION_SCAN, coll.getName() + ":" + shape);
+        }
+        Semaphore sem = running.computeIfAbsent(key, k -> new Semaphore(maxConcurrent));
+        try {
+            if (!sem.tryAcquire(maxWaitMS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Throttled collection scan on {} ({} docs): {}", coll.getFullName(), size, shape);
+                throw Error.get(MongoCrudConstants.ERR_COLLECTION_SCAN, coll.getName() + ":" + shape);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(MongoCrudConstants.ERR_COLLECTION_SCAN, coll.getName() + ":" + shape);
+        }
+        return new Permit() {
+            private boolean released = false;
+
+            @Override
+            public void close() {
+                if (!released) {
+                    released = true;
+                    sem.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Drops all cached plans. Called when indexes change.
+     */
+    public void invalidate() {
+        plans.clear();
+    }
+
+    private CachedPlan getPlan(String key, DBCollection coll, DBObject query, DBObject sort) {
+        long now = System.currentTimeMillis();
+        CachedPlan plan = plans.get(key);
+        if (plan == null || plan.expiration < now) {
+            boolean scan;
+            long size = 0;
+            try {
+                DBObject explain = explain(coll, query, sort);
+                // Don't block queries if the plan is unknown
+                scan = explain != null && isCollectionScan(explain);
+                if (scan) {
+                    // Cheap for a query-less count, it uses collection metadata
+                    size = coll.count();
+                }
+            } catch (RuntimeException e) {
+                // Don't block queries if we can't tell
+                LOGGER.debug("Cannot explain {}: {}", key, e.toString());
+                scan = false;
+            }
+            plan = new CachedPlan(scan, size, now + planTTL);
+            plans.put(key, plan);
+            LOGGER.debug("Plan for {}: collection scan={}, size={}", key, scan, size);
+        }
+        return plan;
+    }
+
+    /**
+     * Runs the query planner without executing the query. Returns null
+     * if the explain command fails, e.g. on servers older than 3.2.
+     * Explaining a cursor is not an alternative, because it executes
+     * the query.
+     */
+    private DBObject explain(DBCollection coll, DBObject query, DBObject sort) {
+        BasicDBObject find = new BasicDBObject("find", coll.getName());
+        if (query != null) {
+            find.append("filter", query);
+        }
+        if (sort != null) {
+            find.append("sort", sort);
+        }
+        CommandResult result = coll.getDB().command(new BasicDBObject("explain", find).append("verbosity", "queryPlanner"));
+        if (result.ok()) {
+            return result;
+        }
+        LOGGER.debug("explain command failed: {}", result.getErrorMessage());
+        return null;
+    }
+
+    /**
+     * Returns true if the winning plan is a collection scan. Understands
+     * both 3.x (queryPlanner.winningPlan) and 2.6 (cursor: BasicCursor)
+     * explain output.
+     */
+    static boolean isCollectionScan(DBObject explain) {
+        Object planner = explain.get("queryPlanner");
+        if (planner instanceof DBObject) {
+            Object winningPlan = ((DBObject) planner).get("winningPlan");
+            return winningPlan instanceof DBObject && hasCollectionScan((DBObject) winningPlan);
+        }
+        Object cursor = explain.get("cursor");
+        return cursor instanceof String && ((String) cursor).startsWith("BasicCursor");
+    }
+
+    private static boolean hasCollectionScan(DBObject stage) {
+        if ("COLLSCAN".equals(stage.get("stage"))) {
+            return true;
+        }
+        Object input = stage.get("inputStage");
+        if (input instanceof DBObject && hasCollectionScan((DBObject) input)) {
+            return true;
+        }
+        Object inputs = stage.get("inputStages");
+        if (inputs instanceof List) {
+            for (Object x : (List) inputs) {
+                if (x instanceof DBObject && hasCollectionScan((DBObject) x)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
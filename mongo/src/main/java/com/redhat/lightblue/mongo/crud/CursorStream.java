@@ -30,6 +30,10 @@ import com.mongodb.DBCursor;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.mongo.metrics.MetricsRegistry;
+import com.redhat.lightblue.mongo.metrics.OperationMetrics;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 public class CursorStream implements DocumentStream<DocCtx> {
     private static final Logger RESULTSET_LOGGER = LoggerFactory.getLogger("com.redhat.lightblue.crud.mongo.slowresults");
@@ -43,6 +47,8 @@ public class CursorStream implements DocumentStream<DocCtx> {
     private final long from;
     private final long to;
     private final ArrayList<Consumer<DocCtx>> listeners=new ArrayList<>();
+    private OperationMetrics metrics;
+    private String queryShape;
 
     public CursorStream(DBCursor cursor,DocTranslator translator,DBObject mongoQuery,long executionTime,long from,long to) {
         this.cursor=cursor;
@@ -53,6 +59,18 @@ public class CursorStream implements DocumentStream<DocCtx> {
         this.to=to;
     }
 
+    /**
+     * Time spent reading and translating documents, and the size of
+     * the documents are added to these metrics
+     */
+    public void setMetrics(OperationMetrics metrics) {
+        this.metrics=metrics;
+    }
+
+    public void setQueryShape(String shape) {
+        this.queryShape=shape;
+    }
+
     @Override
     public boolean hasNext() {
         boolean next=cursor.hasNext();
@@ -63,15 +81,25 @@ public class CursorStream implements DocumentStream<DocCtx> {
     public DocCtx next() {
         if(retrievalStart==0)
             retrievalStart=System.currentTimeMillis();
-        DBObject obj=cursor.next();
+        long start=System.nanoTime();
+        DBObject obj;
+        try (Tracer.Span span=Tracing.begin(Tracer.Phase.CURSOR_FETCH)) {
+            obj=cursor.next();
+            span.documents(1);
+        }
         DocTranslator.TranslatedDoc d=translator.toJson(obj);
-        dataSize+=DocTranslator.size(d);
+        int size=DocTranslator.size(d);
+        dataSize+=size;
+        if(metrics!=null) {
+            metrics.accumulate(MetricsRegistry.PHASE_ITERATE,System.nanoTime()-start);
+            metrics.addBytes(size);
+        }
         if(!hasNext()) {
             long retrievalTime=System.currentTimeMillis()-retrievalStart;
             if (RESULTSET_LOGGER.isDebugEnabled() && (retrievalTime > 100 ) ) {
-                RESULTSET_LOGGER.debug("execution_time={}, retrieval_time={}, resultset_size={}, data_size={}, query={}, from={}, to={}",
+                RESULTSET_LOGGER.debug("execution_time={}, retrieval_time={}, resultset_size={}, data_size={}, shape={}, query={}, from={}, to={}",
                                        executionTime, retrievalTime, cursor.numSeen(),dataSize,
-                                       mongoQuery, from, to);
+                                       queryShape, mongoQuery, from, to);
             }
         }
         
@@ -0,0 +1,257 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.WriteConcern;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * A wall clock budget for a single CRUD operation, given by the
+ * deadlineMS execution option. The remaining time is used as the
+ * maxTimeMS of the cursors and as the wtimeout of replicated writes,
+ * and loops that make round trips (batches, retries, lock waits) stop
+ * when the deadline passes. The operation then returns what it has
+ * done so far, with a deadline exceeded error.
+ *
+ * An instance is stored in the operation context under PROP_DEADLINE,
+ * and is also bound to the current thread while the controller runs
+ * the operation, so code that does not see the context (update
+ * protocols, locking) can use it. An operation that does not set a
+ * deadline inherits the deadline of the operation it runs in, if any.
+ */
+public final class Deadline {
+
+    /**
+     * Name of the property for the operation context that keeps the
+     * deadline of the current operation
+     */
+    public static final String PROP_DEADLINE = "MongoCRUDController:deadline";
+
+    /**
+     * No deadline
+     */
+    public static final Deadline NONE = new Deadline(0, Long.MAX_VALUE, null);
+
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    private final long budgetMS;
+    private final long expiresAtNanos;
+    private final Deadline outer;
+    private boolean reported = false;
+
+    private Deadline(long budgetMS, long expiresAtNanos, Deadline outer) {
+        this.budgetMS = budgetMS;
+        this.expiresAtNanos = expiresAtNanos;
+        this.outer = outer;
+    }
+
+    /**
+     * Starts the deadline for an operation using the deadlineMS
+     * execution option, stores it in the context, and binds it to the
+     * current thread. The returned deadline must be passed to end()
+     * when the operation completes. Returns NONE if there is no
+     * deadline.
+     */
+    public static Deadline start(CRUDOperationContext ctx) {
+        long ms = MongoExecutionOptions.getDeadlineMS(ctx.getExecutionOptions());
+        Deadline outer = current.get();
+        Deadline d;
+        if (ms > 0) {
+            long expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+            if (outer != null && outer.expiresAtNanos - expires < 0) {
+                d = new Deadline(outer.budgetMS, outer.expiresAtNanos, outer);
+            } else {
+                d = new Deadline(ms, expires, outer);
+            }
+        } else if (outer != null) {
+            d = new Deadline(outer.budgetMS, outer.expiresAtNanos, outer);
+        } else {
+            return NONE;
+        }
+        ctx.setProperty(PROP_DEADLINE, d);
+        current.set(d);
+        return d;
+    }
+
+    /**
+     * Unbinds a deadline returned by start() from the current thread
+     */
+    public static void end(Deadline d) {
+        if (d != NONE && current.get() == d) {
+            if (d.outer == null) {
+                current.remove();
+            } else {
+                current.set(d.outer);
+            }
+        }
+    }
+
+    /**
+     * Returns the deadline of the operation, or NONE
+     */
+    public static Deadline get(CRUDOperationContext ctx) {
+        Object x = ctx.getProperty(PROP_DEADLINE);
+        return x instanceof Deadline ? (Deadline) x : NONE;
+    }
+
+    /**
+     * Returns the deadline of the operation running in the current
+     * thread, or NONE
+     */
+    public static Deadline current() {
+        Deadline d = current.get();
+        return d == null ? NONE : d;
+    }
+
+    public boolean isSet() {
+        return this != NONE;
+    }
+
+    public long getBudgetMS() {
+        return budgetMS;
+    }
+
+    /**
+     * Returns the remaining time in msecs, 0 if the deadline passed,
+     * or Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingMS() {
+        if (!isSet()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime()), 0);
+    }
+
+    public boolean isExpired() {
+        return isSet() && expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Returns a deadline exceeded error for the operation
+     */
+    public Error error(String operation) {
+        return Error.get(operation, MongoCrudConstants.ERR_DEADLINE_EXCEEDED, budgetMS + "ms");
+    }
+
+    /**
+     * Throws a deadline exceeded error if the deadline passed
+     */
+    public void check(String operation) {
+        if (isExpired()) {
+            throw error(operation);
+        }
+    }
+
+    /**
+     * Returns true if the deadline passed. The first time, a deadline
+     * exceeded error is added to the context, so the caller can stop
+     * and return partial results.
+     */
+    public boolean expired(CRUDOperationContext ctx, String operation) {
+        if (isExpired()) {
+            report(ctx, operation);
+            return true;
+        }
+        return false;
+    }
+
+    private void report(CRUDOperationContext ctx, String operation) {
+        if (!reported) {
+            reported = true;
+            ctx.addError(error(operation));
+        }
+    }
+
+    /**
+     * Returns the maxTimeMS to use for a query given the configured
+     * limit, which can be 0 for no limit. Throws a deadline exceeded
+     * error if the deadline passed.
+     */
+    public long maxTimeMS(long configuredMS, String operation) {
+        if (!isSet()) {
+            return configuredMS;
+        }
+        check(operation);
+        long remaining = Math.max(remainingMS(), 1);
+        return configuredMS > 0 ? Math.min(configuredMS, remaining) : remaining;
+    }
+
+    /**
+     * Sets the remaining time as the maxTimeMS of the cursor
+     */
+    public DBCursor apply(DBCursor cursor, String operation) {
+        if (isSet()) {
+            cursor.maxTime(maxTimeMS(0, operation), TimeUnit.MILLISECONDS);
+        }
+        return cursor;
+    }
+
+    /**
+     * Cursor iteration that stops when the deadline passes, or when the
+     * server stops the query because its maxTimeMS is used up. In both
+     * cases the deadline exceeded error is added to the context, and
+     * false is returned.
+     */
+    public boolean hasNext(CRUDOperationContext ctx, DBCursor cursor, String operation) {
+        if (expired(ctx, operation)) {
+            return false;
+        }
+        try {
+            return cursor.hasNext();
+        } catch (MongoExecutionTimeoutException e) {
+            if (!isSet()) {
+                throw e;
+            }
+            report(ctx, operation);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the write concern to use for a write. If the write waits
+     * for replication, its wtimeout is capped by the remaining time.
+     * Otherwise the write concern is returned unchanged.
+     *
+     * @param writeConcern The write concern of the operation, can be
+     * null to use the collection default
+     * @param coll The collection
+     */
+    public WriteConcern writeConcern(WriteConcern writeConcern, DBCollection coll) {
+        if (!isSet()) {
+            return writeConcern;
+        }
+        WriteConcern base = writeConcern == null ? coll.getWriteConcern() : writeConcern;
+        Object w = base.getWObject();
+        boolean replicated = w instanceof String || (w instanceof Integer && (Integer) w > 1);
+        if (!replicated) {
+            return writeConcern;
+        }
+        long remaining = Math.max(remainingMS(), 1);
+        if (base.getWtimeout() > 0 && base.getWtimeout() <= remaining) {
+            return writeConcern;
+        }
+        return base.withWTimeout(remaining, TimeUnit.MILLISECONDS);
+    }
+}
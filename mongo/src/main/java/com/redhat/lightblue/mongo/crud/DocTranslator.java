@@ -65,6 +65,8 @@ import com.redhat.lightblue.util.JsonNodeCursor;
 import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.Util;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * Translations between BSON and JSON. This class is thread-safe, and can be
@@ -144,10 +146,13 @@ public class DocTranslator {
         if (md == null) {
             throw Error.get(ERR_INVALID_OBJECTTYPE, node.asText());
         }
-        ResultMetadata rmd=new ResultMetadata();
-        DBObject bsonDoc = toBson(doc, md,rmd);
-        LOGGER.debug("toBson() return");
-        return new TranslatedBsonDoc(bsonDoc,rmd);
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.TO_BSON, md.getName())) {
+            ResultMetadata rmd=new ResultMetadata();
+            DBObject bsonDoc = toBson(doc, md,rmd);
+            span.documents(1);
+            LOGGER.debug("toBson() return");
+            return new TranslatedBsonDoc(bsonDoc,rmd);
+        }
     }
 
     /**
@@ -163,9 +168,15 @@ public class DocTranslator {
         if (md == null) {
             throw Error.get(ERR_INVALID_OBJECTTYPE, type.toString());
         }
-        TranslatedDoc doc = toJson(object, md);
-        LOGGER.debug("toJson() return");
-        return doc;
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.TO_JSON, md.getName())) {
+            TranslatedDoc doc = toJson(object, md);
+            span.documents(1);
+            if (span.isRecording()) {
+                span.bytes(size(doc));
+            }
+            LOGGER.debug("toJson() return");
+            return doc;
+        }
     }
 
     /**
@@ -88,6 +88,8 @@ import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.Util;
 
 import com.redhat.lightblue.mongo.crud.js.JSQueryTranslator;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * Translations between BSON and JSON. This class is thread-safe, and can be
@@ -231,6 +233,7 @@ public class ExpressionTranslator {
      */
     public DBObject translate(EntityMetadata md, QueryExpression query) {
         Error.push("translateQuery");
+        Tracer.Span span = Tracing.begin(Tracer.Phase.TRANSLATE_QUERY, md.getName());
         FieldTreeNode mdRoot = md.getFieldTreeRoot();
         try {
             return translate(mdRoot, query, md, new MutablePath());
@@ -242,6 +245,7 @@ public class ExpressionTranslator {
             LOGGER.error(e.getMessage(), e);
             throw Error.get(MongoCrudConstants.ERR_INVALID_OBJECT, e.getMessage());
         } finally {
+            span.close();
             Error.pop();
         }
     }
@@ -54,6 +54,8 @@ import com.redhat.lightblue.metadata.Type;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.Measure;
+import com.redhat.lightblue.mongo.metrics.MetricsRegistry;
+import com.redhat.lightblue.mongo.metrics.OperationMetrics;
 import com.redhat.lightblue.util.JsonDoc;
 
 /**
@@ -157,6 +159,8 @@ public class IterateAndUpdate implements DocUpdater {
         LOGGER.debug("iterateUpdate: start");
         LOGGER.debug("Computing the result set for {}", query);
         Measure measure=new Measure();
+        OperationMetrics metrics=OperationMetrics.get(ctx);
+        Deadline deadline=Deadline.get(ctx);
         BatchUpdate sup=getUpdateProtocol(ctx,collection,query,md,measure);
         DBCursor cursor = null;
         int docIndex = 0;
@@ -170,15 +174,20 @@ public class IterateAndUpdate implements DocUpdater {
         try {
             ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
             measure.begin("collection.find");
-            cursor = collection.find(query, null);
+            metrics.begin(MetricsRegistry.PHASE_QUERY);
+            cursor = deadline.apply(collection.find(query, null), "update");
             // Read from primary for read-for-update operations
             cursor.setReadPreference(ReadPreference.primary());
             measure.end("collection.find");
             LOGGER.debug("Found {} documents", cursor.count());
+            metrics.end(MetricsRegistry.PHASE_QUERY);
             // read-update-write
             measure.begin("iteration");
+            metrics.begin(MetricsRegistry.PHASE_ITERATE);
             int batchStartIndex=0; // docUpdateAttempts[batchStartIndex] is the first doc in this batch
-            while (cursor.hasNext()) {
+            // If the deadline passes, stop here and write the docs
+            // already updated in memory
+            while (deadline.hasNext(ctx, cursor, "update")) {
                 DBObject document = cursor.next();
                 numMatched++;
                 boolean hasErrors = false;
@@ -223,7 +232,9 @@ public class IterateAndUpdate implements DocUpdater {
                             // update in batches
                             if (docUpdateAttempts.size()-batchStartIndex>= batchSize) {
                                 measure.begin("bulkUpdate");
+                                long bulkStart=System.nanoTime();
                                 Map<Integer,Error> updateErrors=sup.commit();
+                                metrics.accumulate(MetricsRegistry.PHASE_BULK_WRITE,System.nanoTime()-bulkStart);
                                 measure.end("bulkUpdate");
                                 for(Map.Entry<Integer,Error> entry:updateErrors.entrySet()) {
                                     docUpdateAttempts.get(entry.getKey()+batchStartIndex).addError(entry.getValue());
@@ -256,9 +267,12 @@ public class IterateAndUpdate implements DocUpdater {
                 docIndex++;
             }
             measure.end("iteration");
+            metrics.end(MetricsRegistry.PHASE_ITERATE);
             // if we have any remaining items to update
             if (docUpdateAttempts.size() > batchStartIndex) {
+                long bulkStart=System.nanoTime();
                 Map<Integer,Error> updateErrors=sup.commit();
+                metrics.accumulate(MetricsRegistry.PHASE_BULK_WRITE,System.nanoTime()-bulkStart);
                 for(Map.Entry<Integer,Error> entry:updateErrors.entrySet()) {
                     docUpdateAttempts.get(entry.getKey()+batchStartIndex).addError(entry.getValue());
                 }
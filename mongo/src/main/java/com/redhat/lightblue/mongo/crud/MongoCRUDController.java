@@ -21,7 +21,6 @@ package com.redhat.lightblue.mongo.crud;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -36,7 +35,6 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mongodb.BasicDBObject;
-import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -46,7 +44,6 @@ import com.mongodb.MongoException;
 import com.mongodb.MongoExecutionTimeoutException;
 import com.mongodb.MongoSocketException;
 import com.mongodb.MongoTimeoutException;
-import com.mongodb.ServerAddress;
 import com.mongodb.util.JSON;
 import com.redhat.lightblue.config.ControllerConfiguration;
 import com.redhat.lightblue.crud.CRUDController;
@@ -90,6 +87,10 @@ import com.redhat.lightblue.mongo.common.DBResolver;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
 import com.redhat.lightblue.mongo.config.MongoConfiguration;
 import com.redhat.lightblue.mongo.metadata.MongoMetadataConstants;
+import com.redhat.lightblue.mongo.metrics.JmxMetricsRegistry;
+import com.redhat.lightblue.mongo.metrics.MetricsRegistry;
+import com.redhat.lightblue.mongo.metrics.OperationMetrics;
+import com.redhat.lightblue.mongo.metrics.QueryShapeStats;
 import com.redhat.lightblue.query.FieldProjection;
 import com.redhat.lightblue.query.Projection;
 import com.redhat.lightblue.query.ProjectionList;
@@ -133,6 +134,84 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     public static final String OP_FIND = "find";
     public static final String OP_UPDATE = "update";
     public static final String OP_DELETE = "delete";
+    public static final String OP_EXPLAIN = "explain";
+
+    /**
+     * Controller option selecting the metrics registry. "jmx" (the
+     * default) registers metrics as MBeans, "none" disables metrics.
+     * Any other value is the name of a MetricsRegistry implementation
+     * with a no-arg constructor.
+     */
+    public static final String OPT_METRICS = "metrics";
+
+    /**
+     * Controller option enabling per query shape statistics for find
+     * operations. Enabled by default.
+     */
+    public static final String OPT_QUERY_SHAPE_STATS = "queryShapeStats";
+
+    /**
+     * Controller option: explain one out of every n executions of a
+     * query shape to collect documents examined. 0 (the default)
+     * disables explains.
+     */
+    public static final String OPT_QUERY_SHAPE_EXPLAIN_SAMPLE_RATE = "queryShapeExplainSampleRate";
+
+    /**
+     * Controller option for the collection scan guard for find, update,
+     * and delete: "off" (the default), "reject", or "throttle".
+     */
+    public static final String OPT_COLLECTION_SCAN_GUARD = "collectionScanGuard";
+
+    /**
+     * Controller option: collection scans are only guarded on
+     * collections with at least this many documents
+     */
+    public static final String OPT_COLLECTION_SCAN_GUARD_MIN_DOCS = "collectionScanGuardMinDocs";
+
+    /**
+     * Controller option: in throttle mode, the number of collection
+     * scans of a query shape that can run concurrently
+     */
+    public static final String OPT_COLLECTION_SCAN_GUARD_MAX_CONCURRENT = "collectionScanGuardMaxConcurrent";
+
+    /**
+     * Controller option: in throttle mode, how long to wait for a
+     * running collection scan to finish before rejecting
+     */
+    public static final String OPT_COLLECTION_SCAN_GUARD_MAX_WAIT_MS = "collectionScanGuardMaxWaitMS";
+
+    /**
+     * Controller option: how long the winning plan of a query shape is
+     * cached
+     */
+    public static final String OPT_COLLECTION_SCAN_GUARD_PLAN_TTL_MS = "collectionScanGuardPlanTTLMS";
+
+    /**
+     * Controller option: how often the health of the databases is
+     * checked in the background. If 0, every health probe checks the
+     * databases.
+     */
+    public static final String OPT_HEALTH_CHECK_REFRESH_MS = "healthCheckRefreshMS";
+
+    /**
+     * Controller option: health check results older than this are
+     * reported as not OK. Defaults to three refresh periods.
+     */
+    public static final String OPT_HEALTH_CHECK_MAX_AGE_MS = "healthCheckMaxAgeMS";
+
+    /**
+     * Controller option: how long to wait for a database to respond to
+     * a health check
+     */
+    public static final String OPT_HEALTH_CHECK_TIMEOUT_MS = "healthCheckTimeoutMS";
+
+    /**
+     * Controller option: the health check fails if a replica set
+     * secondary lags the primary more than this. 0 (the default)
+     * disables the check.
+     */
+    public static final String OPT_HEALTH_CHECK_MAX_REPLICATION_LAG_MS = "healthCheckMaxReplicationLagMS";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoCRUDController.class);
 
@@ -144,12 +223,44 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
 
     private final int batchSize;
     private final ConcurrentModificationDetectionCfg concurrentModificationDetection;
+    private MetricsRegistry metricsRegistry;
+    private final QueryShapeStats queryShapeStats;
+    private final int queryShapeExplainSampleRate;
+    private final CollectionScanGuard collectionScanGuard;
+    private final MongoHealthChecker healthChecker;
 
     public MongoCRUDController(ControllerConfiguration controllerCfg, DBResolver dbResolver) {        
         this.dbResolver = dbResolver;
         this.controllerCfg = controllerCfg;
         this.batchSize=getIntOption("updateBatchSize",64);
         this.concurrentModificationDetection=new ConcurrentModificationDetectionCfg(controllerCfg);
+        this.metricsRegistry=createMetricsRegistry(getOption(OPT_METRICS,"jmx"));
+        this.queryShapeStats=getBooleanOption(OPT_QUERY_SHAPE_STATS,true)?QueryShapeStats.getInstance():null;
+        this.queryShapeExplainSampleRate=getIntOption(OPT_QUERY_SHAPE_EXPLAIN_SAMPLE_RATE,0);
+        this.collectionScanGuard=new CollectionScanGuard(CollectionScanGuard.Mode.valueOf(getOption(OPT_COLLECTION_SCAN_GUARD,"off")),
+                                                         getIntOption(OPT_COLLECTION_SCAN_GUARD_MIN_DOCS,(int)CollectionScanGuard.DEFAULT_MIN_COLLECTION_SIZE),
+                                                         getIntOption(OPT_COLLECTION_SCAN_GUARD_PLAN_TTL_MS,(int)CollectionScanGuard.DEFAULT_PLAN_TTL_MS),
+                                                         getIntOption(OPT_COLLECTION_SCAN_GUARD_MAX_CONCURRENT,CollectionScanGuard.DEFAULT_MAX_CONCURRENT),
+                                                         getIntOption(OPT_COLLECTION_SCAN_GUARD_MAX_WAIT_MS,(int)CollectionScanGuard.DEFAULT_MAX_WAIT_MS));
+        int healthRefresh=getIntOption(OPT_HEALTH_CHECK_REFRESH_MS,(int)MongoHealthChecker.DEFAULT_REFRESH_MS);
+        this.healthChecker=new MongoHealthChecker(dbResolver,
+                                                  healthRefresh,
+                                                  getIntOption(OPT_HEALTH_CHECK_MAX_AGE_MS,3*healthRefresh),
+                                                  getIntOption(OPT_HEALTH_CHECK_TIMEOUT_MS,(int)MongoHealthChecker.DEFAULT_TIMEOUT_MS),
+                                                  getIntOption(OPT_HEALTH_CHECK_MAX_REPLICATION_LAG_MS,0));
+    }
+
+    private static MetricsRegistry createMetricsRegistry(String name) {
+        switch(name) {
+        case "jmx": return JmxMetricsRegistry.getInstance();
+        case "none": return MetricsRegistry.NOOP;
+        default:
+            try {
+                return (MetricsRegistry)Class.forName(name).newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException(OPT_METRICS+":"+name,e);
+            }
+        }
     }
     
     private String getOption(String optionName,String defaultValue) {
@@ -194,6 +305,29 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return controllerCfg;
     }
 
+    public MetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    public void setMetricsRegistry(MetricsRegistry registry) {
+        metricsRegistry=registry==null?MetricsRegistry.NOOP:registry;
+    }
+
+    /**
+     * Returns the query shape statistics, or null if disabled
+     */
+    public QueryShapeStats getQueryShapeStats() {
+        return queryShapeStats;
+    }
+
+    public CollectionScanGuard getCollectionScanGuard() {
+        return collectionScanGuard;
+    }
+
+    public MongoHealthChecker getHealthChecker() {
+        return healthChecker;
+    }
+
     /**
      * Insertion operation for mongo
      */
@@ -234,13 +368,18 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         }
         LOGGER.debug("saveOrInsert() start");
         Error.push("mongo:"+operation);
+        OperationMetrics metrics = OperationMetrics.start(ctx, metricsRegistry, operation);
         DocTranslator translator = new DocTranslator(ctx, ctx.getFactory().getNodeFactory());
+        Deadline deadline = Deadline.NONE;
         try {
+            deadline = Deadline.start(ctx);
             FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(ctx.getEntityMetadata(ctx.getEntityName()),
                     ctx.getCallerRoles());
             LOGGER.debug("saveOrInsert: Translating docs");
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
+            metrics.begin(MetricsRegistry.PHASE_TRANSLATE);
             DocTranslator.TranslatedBsonDoc[] dbObjects = translator.toBson(documents);
+            metrics.end(MetricsRegistry.PHASE_TRANSLATE);
             // dbObjects[i] is the translation of documents.get(i)
             if (dbObjects != null) {
                 LOGGER.debug("saveOrInsert: {} docs translated to bson", dbObjects.length);
@@ -262,13 +401,16 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                                                    getWriteConcern(ctx.getExecutionOptions()), batchSize,concurrentModificationDetection);
                 ctx.setProperty(PROP_SAVER, saver);
 
+                metrics.begin(MetricsRegistry.PHASE_BULK_WRITE);
                 saver.saveDocs(ctx,
                         operation.equals(OP_INSERT) ? DocSaver.Op.insert : DocSaver.Op.save,
                         upsert,
                         collection,
                         dbObjects,
                         documents.toArray(new DocCtx[documents.size()]));
+                metrics.end(MetricsRegistry.PHASE_BULK_WRITE);
 
+                metrics.begin(MetricsRegistry.PHASE_PROJECT);
                 for (int docIndex = 0; docIndex < dbObjects.length; docIndex++) {
                     DocCtx inputDoc = documents.get(docIndex);
                     DocTranslator.TranslatedDoc jsonDoc = translator.toJson(dbObjects[docIndex].doc);
@@ -285,16 +427,24 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                         ret++;
                     }
                 }
+                metrics.end(MetricsRegistry.PHASE_PROJECT);
+                metrics.addDocuments(ret);
+                metrics.addErrors(documents.size() - ret);
 
                 ctx.getHookManager().queueHooks(ctx);
             }
         } catch (Error e) {
             LOGGER.error("Error in saveOrInsert",e);
+            metrics.addErrors(1);
             ctx.addError(e);
         } catch (Exception e) {
             LOGGER.error("Exception in saveOrInsert",e);
+            metrics.addErrors(1);
             ctx.addError(analyzeException(e, CrudConstants.ERR_CRUD));
         } finally {
+            Deadline.end(deadline);
+            metrics.complete();
+            metrics.detach();
             Error.pop();
         }
         LOGGER.debug("saveOrInsert() end: {} docs requested, {} saved", documents.size(), ret);
@@ -308,10 +458,14 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                                      Projection projection) {
         LOGGER.debug("update start: q:{} u:{} p:{}", query, update, projection);
         Error.push("mongo:"+OP_UPDATE);
+        OperationMetrics metrics = OperationMetrics.start(ctx, metricsRegistry, OP_UPDATE);
+        CollectionScanGuard.Permit permit = null;
+        Deadline deadline = Deadline.NONE;
         CRUDUpdateResponse response = new CRUDUpdateResponse();
         DocTranslator translator = new DocTranslator(ctx, ctx.getFactory().getNodeFactory());
         ExpressionTranslator xtranslator = new ExpressionTranslator(ctx, ctx.getFactory().getNodeFactory());
         try {
+            deadline = Deadline.start(ctx);
             if (query == null) {
                 throw Error.get("update", MongoCrudConstants.ERR_NULL_QUERY, "");
             }
@@ -320,8 +474,10 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             if (md.getAccess().getUpdate().hasAccess(ctx.getCallerRoles())) {
                 ConstraintValidator validator = ctx.getFactory().getConstraintValidator(md);
                 LOGGER.debug("Translating query {}", query);
+                metrics.begin(MetricsRegistry.PHASE_TRANSLATE);
                 DBObject mongoQuery = xtranslator.translate(md,
                                                             ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
+                metrics.end(MetricsRegistry.PHASE_TRANSLATE);
                 LOGGER.debug("Translated query {}", mongoQuery);
                 FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
 
@@ -351,18 +507,29 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                                                              batchSize,
                                                              concurrentModificationDetection);
                 ctx.setProperty(PROP_UPDATER, docUpdater);
+                permit = collectionScanGuard.check(ctx.getExecutionOptions(), coll, mongoQuery, null);
                 docUpdater.update(ctx, coll, md, response, mongoQuery);
+                metrics.addDocuments(response.getNumUpdated());
+                metrics.addErrors(response.getNumFailed());
                 ctx.getHookManager().queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "update:" + ctx.getEntityName()));
             }
         } catch (Error e) {
             LOGGER.error("Error in update",e);
+            metrics.addErrors(1);
             ctx.addError(e);
         } catch (Exception e) {
             LOGGER.error("Exception in update",e);
+            metrics.addErrors(1);
             ctx.addError(analyzeException(e, CrudConstants.ERR_CRUD));
         } finally {
+            Deadline.end(deadline);
+            if (permit != null) {
+                permit.close();
+            }
+            metrics.complete();
+            metrics.detach();
             Error.pop();
         }
         LOGGER.debug("update end: updated: {}, failed: {}", response.getNumUpdated(), response.getNumFailed());
@@ -374,10 +541,14 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                                      QueryExpression query) {
         LOGGER.debug("delete start: q:{}", query);
         Error.push("mongo:"+OP_DELETE);
+        OperationMetrics metrics = OperationMetrics.start(ctx, metricsRegistry, OP_DELETE);
+        CollectionScanGuard.Permit permit = null;
+        Deadline deadline = Deadline.NONE;
         CRUDDeleteResponse response = new CRUDDeleteResponse();
         DocTranslator translator = new DocTranslator(ctx, ctx.getFactory().getNodeFactory());
         ExpressionTranslator xtranslator = new ExpressionTranslator(ctx, ctx.getFactory().getNodeFactory());
         try {
+            deadline = Deadline.start(ctx);
             if (query == null) {
                 throw Error.get("delete", MongoCrudConstants.ERR_NULL_QUERY, "");
             }
@@ -385,25 +556,39 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             if (md.getAccess().getDelete().hasAccess(ctx.getCallerRoles())) {
                 LOGGER.debug("Translating query {}", query);
+                metrics.begin(MetricsRegistry.PHASE_TRANSLATE);
                 DBObject mongoQuery = xtranslator.translate(md, ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
+                metrics.end(MetricsRegistry.PHASE_TRANSLATE);
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
                 DocDeleter deleter = new BasicDocDeleter(translator, MongoExecutionOptions.
                         getWriteConcern(ctx.getExecutionOptions()), batchSize);
                 ctx.setProperty(PROP_DELETER, deleter);
+                permit = collectionScanGuard.check(ctx.getExecutionOptions(), coll, mongoQuery, null);
+                metrics.begin(MetricsRegistry.PHASE_BULK_WRITE);
                 deleter.delete(ctx, coll, mongoQuery, response);
+                metrics.end(MetricsRegistry.PHASE_BULK_WRITE);
+                metrics.addDocuments(response.getNumDeleted());
                 ctx.getHookManager().queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "delete:" + ctx.getEntityName()));
             }
         } catch (Error e) {
             LOGGER.error("Error in delete",e);
+            metrics.addErrors(1);
             ctx.addError(e);
         } catch (Exception e) {
             LOGGER.error("Exception in delete",e);
+            metrics.addErrors(1);
             ctx.addError(analyzeException(e, CrudConstants.ERR_CRUD));
         } finally {
+            Deadline.end(deadline);
+            if (permit != null) {
+                permit.close();
+            }
+            metrics.complete();
+            metrics.detach();
             Error.pop();
         }
         LOGGER.debug("delete end: deleted: {}}", response.getNumDeleted());
@@ -447,15 +632,22 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                                  Long to) {
         LOGGER.debug("find start: q:{} p:{} sort:{} from:{} to:{}", query, projection, sort, from, to);
         Error.push("mongo:"+OP_FIND);
+        OperationMetrics metrics = OperationMetrics.start(ctx, metricsRegistry, OP_FIND);
+        // If results are streamed, metrics are completed when the stream is consumed
+        boolean streaming = false;
+        CollectionScanGuard.Permit permit = null;
+        Deadline deadline = Deadline.NONE;
         CRUDFindResponse response = new CRUDFindResponse();
         DocTranslator translator = new DocTranslator(ctx, ctx.getFactory().getNodeFactory());
         ExpressionTranslator xtranslator = new ExpressionTranslator(ctx, ctx.getFactory().getNodeFactory());
         try {
+            deadline = Deadline.start(ctx);
             ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_FIND, ctx);
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             if (md.getAccess().getFind().hasAccess(ctx.getCallerRoles())) {
                 FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
                 LOGGER.debug("Translating query {}", query);
+                metrics.begin(MetricsRegistry.PHASE_TRANSLATE);
                 DBObject mongoQuery = xtranslator.translate(md, ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DBObject mongoSort;
@@ -467,39 +659,61 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                     mongoSort = null;
                 }
                 DBObject mongoProjection = xtranslator.translateProjection(md, getProjectionFields(projection, md), query, sort);
+                metrics.end(MetricsRegistry.PHASE_TRANSLATE);
                 LOGGER.debug("Translated projection {}", mongoProjection);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
                 LOGGER.debug("Retrieve db collection:" + coll);
-                DocFinder finder = new BasicDocFinder(translator, MongoExecutionOptions.
+                BasicDocFinder finder = new BasicDocFinder(translator, MongoExecutionOptions.
                         getReadPreference(ctx.getExecutionOptions()));
+                finder.setQueryShapeStats(queryShapeStats);
+                finder.setExplainSampleRate(queryShapeExplainSampleRate);
                 MongoConfiguration cfg = dbResolver.getConfiguration((MongoDataStore) md.getDataStore());
                 if (cfg != null) {
                     finder.setMaxResultSetSize(cfg.getMaxResultSetSize());
                 }
-                finder.setMaxQueryTimeMS(getMaxQueryTimeMS(cfg, ctx));
+                finder.setMaxQueryTimeMS(deadline.maxTimeMS(getMaxQueryTimeMS(cfg, ctx), OP_FIND));
                 ctx.setProperty(PROP_FINDER, finder);
+                permit = collectionScanGuard.check(ctx.getExecutionOptions(), coll, mongoQuery, mongoSort);
+                metrics.begin(MetricsRegistry.PHASE_QUERY);
                 response.setSize(finder.find(ctx, coll, mongoQuery, mongoProjection, mongoSort, from, to));
+                metrics.end(MetricsRegistry.PHASE_QUERY);
                 // Project results
                 Projector projector = Projector.getInstance(projection == null ? EMPTY_PROJECTION
                         : Projection.add(projection, roleEval.getExcludedFields(FieldAccessRoleEvaluator.Operation.find)), md);
-                ctx.setDocumentStream(DocumentStream.map(ctx.getDocumentStream(),d->{
+                ctx.setDocumentStream(metrics.track(DocumentStream.map(ctx.getDocumentStream(),d->{
                             ctx.measure.begin("projectFound");
+                            long projectStart=System.nanoTime();
                             d.setOutputDocument(projector.project(d, JsonNodeFactory.instance));
+                            metrics.accumulate(MetricsRegistry.PHASE_PROJECT,System.nanoTime()-projectStart);
                             ctx.measure.end("projectFound");
                             return d;
-                        }));
+                        })));
+                streaming = true;
                 ctx.getHookManager().queueHooks(ctx);
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "find:" + ctx.getEntityName()));
             }
         } catch (Error e) {
             LOGGER.error("Error in find",e);
+            metrics.addErrors(1);
             ctx.addError(e);
         } catch (Exception e) {
             LOGGER.error("Error during find:", e);
+            metrics.addErrors(1);
             ctx.addError(analyzeException(e, CrudConstants.ERR_CRUD));
         } finally {
+            Deadline.end(deadline);
+            // The query ran in finder.find, release the permit even if
+            // the results are streamed, the caller may never close them
+            if (permit != null) {
+                permit.close();
+            }
+            if (!streaming) {
+                metrics.complete();
+            }
+            // Streamed results attach the metrics again while they are iterated
+            metrics.detach();
             Error.pop();
         }
         LOGGER.debug("find end: query: {} results: {}", response.getSize());
@@ -517,21 +731,26 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
 
         LOGGER.debug("explain start: q:{} p:{} sort:{} from:{} to:{}", query, projection, sort, from, to);
         Error.push("explain");
+        OperationMetrics metrics = OperationMetrics.start(ctx, metricsRegistry, OP_EXPLAIN);
         ExpressionTranslator xtranslator = new ExpressionTranslator(ctx, ctx.getFactory().getNodeFactory());
         try {
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
             FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
             LOGGER.debug("Translating query {}", query);
+            metrics.begin(MetricsRegistry.PHASE_TRANSLATE);
             DBObject mongoQuery = xtranslator.translate(md, ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
             LOGGER.debug("Translated query {}", mongoQuery);
             DBObject mongoProjection = xtranslator.translateProjection(md, getProjectionFields(projection, md), query, sort);
+            metrics.end(MetricsRegistry.PHASE_TRANSLATE);
             LOGGER.debug("Translated projection {}", mongoProjection);
             DB db = dbResolver.get((MongoDataStore) md.getDataStore());
             DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
             LOGGER.debug("Retrieve db collection:" + coll);
 
             try (DBCursor cursor=coll.find(mongoQuery,mongoProjection)) {
+                metrics.begin(MetricsRegistry.PHASE_QUERY);
                 DBObject plan=cursor.explain();
+                metrics.end(MetricsRegistry.PHASE_QUERY);
                 JsonNode jsonPlan=DocTranslator.rawObjectToJson(plan);
                 if(mongoQuery!=null)
                     destDoc.modify(new Path("mongo.query"),DocTranslator.rawObjectToJson(mongoQuery),true);
@@ -541,11 +760,15 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             }
 
         } catch (Error e) {
+            metrics.addErrors(1);
             ctx.addError(e);
         } catch (Exception e) {
             LOGGER.error("Error during explain:", e);
+            metrics.addErrors(1);
             ctx.addError(analyzeException(e, CrudConstants.ERR_CRUD));
         } finally {
+            metrics.complete();
+            metrics.detach();
             Error.pop();
         }
         LOGGER.debug("explain end: query: {} ", query);
@@ -584,6 +807,7 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     @Override
     public void afterUpdateEntityInfo(Metadata md, EntityInfo ei, boolean newEntity) {
         createUpdateEntityInfoIndexes(ei, md);
+        collectionScanGuard.invalidate();
     }
 
     @Override
@@ -1091,6 +1315,8 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             MongoException me = (MongoException) e;
             if (me.getCode() == 18) {
                 return Error.get(CrudConstants.ERR_AUTH_FAILED, e.getMessage());
+            } else if (me instanceof MongoExecutionTimeoutException && Deadline.current().isExpired()) {
+                return Error.get(MongoCrudConstants.ERR_DEADLINE_EXCEEDED, e.getMessage());
             } else if (me instanceof MongoTimeoutException
                     || me instanceof MongoExecutionTimeoutException) {
                 LOGGER.error(CrudConstants.ERR_DATASOURCE_TIMEOUT, e);
@@ -1113,51 +1339,12 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         }
     }
     
+    /**
+     * Returns the result of the last background health check. See
+     * {@link MongoHealthChecker}.
+     */
     @Override
     public CRUDHealth checkHealth() {
-        boolean isHealthy = true;
-        Collection<MongoConfiguration> configs = dbResolver.getConfigurations();
-        List<String> details = new ArrayList<>(configs.size());
-        DBObject ping = new BasicDBObject("ping", 1);
-
-        DB db = null;
-        for (MongoConfiguration config : configs) {
-            try {
-                db = dbResolver.get(new MongoDataStore(config.getDatabase(), null, null));
-                CommandResult result = db.command(ping);
-                if (!result.get("ok").equals(1.0)) {
-                    isHealthy = false;
-                    details.add(new StringBuilder(getMongoConfigDetails(config)).append("=>").append("ping:NOT_OK")
-                            .toString());
-                } else {
-                    details.add(
-                            new StringBuilder(getMongoConfigDetails(config)).append("=>").append("ping:OK").toString());
-                }
-            } catch (Exception e) {
-                isHealthy = false;
-                details.add(new StringBuilder(getMongoConfigDetails(config)).append("=>").append("ping_error:")
-                        .append(e.getMessage()).toString());
-            }
-        }
-
-        return new CRUDHealth(isHealthy, details.toString());
-    }
-    
-    private String getMongoConfigDetails(MongoConfiguration config) {
-        StringBuilder detailsBuilder = new StringBuilder("Mongo Config [");
-
-        if (config.getServer() != null) {
-            detailsBuilder.append(config.getServer());
-        } else {
-            Iterator<ServerAddress> iterator = config.getServerAddresses();
-            while(iterator.hasNext()){
-                detailsBuilder.append(iterator.next());
-            }
-        }
-        detailsBuilder.append(", DatabaseName: ");
-        detailsBuilder.append(config.getDatabase());
-        detailsBuilder.append("]");
-        
-        return detailsBuilder.toString();
+        return healthChecker.getHealth();
     }
 }
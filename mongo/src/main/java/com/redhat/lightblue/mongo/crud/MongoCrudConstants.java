@@ -53,6 +53,8 @@ public final class MongoCrudConstants {
     public static final String ERR_CONCURRENT_UPDATE = "mongo-crud:ConcurrentUpdate";
 
     public static final String ERR_TOO_MANY_RESULTS = "mongo-crud:TooManyResults";
+    public static final String ERR_COLLECTION_SCAN = "mongo-crud:CollectionScan";
+    public static final String ERR_DEADLINE_EXCEEDED = "mongo-crud:DeadlineExceeded";
     public static final String ERR_RESERVED_FIELD = "mongo-crud:ReservedFieldInMetadata";
 
     public static boolean isDuplicate(int code) {
@@ -31,6 +31,8 @@ public class MongoExecutionOptions {
     // see https://jewzaam.gitbooks.io/lightblue-specifications/content/language_specification/execution.html
     public static final String OPT_READ_PREFERENCE = "readPreference";
     public static final String OPT_WRITE_CONCERN = "writeConcern";
+    public static final String OPT_ALLOW_COLLECTION_SCAN = "allowCollectionScan";
+    public static final String OPT_DEADLINE_MS = "deadlineMS";
 
     public static final String OPT_READ_PREFERENCE_NEAREST = MongoReadPreference.READ_PREFERENCE_NEAREST;
     public static final String OPT_READ_PREFERENCE_PRIMARY = MongoReadPreference.READ_PREFERENCE_PRIMARY;
@@ -79,4 +81,35 @@ public class MongoExecutionOptions {
         return null;
     }
 
+
+    /**
+     * Returns true if the caller asked to bypass the collection scan
+     * guard with allowCollectionScan=true
+     */
+    public static boolean isCollectionScanAllowed(ExecutionOptions options) {
+        if (options != null) {
+            String value = options.getOptions().get(OPT_ALLOW_COLLECTION_SCAN);
+            if (value != null) {
+                return Boolean.valueOf(value.trim());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the wall clock budget of the operation in msecs given by
+     * the deadlineMS option, or 0 if there is no deadline
+     */
+    public static long getDeadlineMS(ExecutionOptions options) {
+        if (options != null) {
+            String value = options.getOptions().get(OPT_DEADLINE_MS);
+            if (value != null) {
+                value = value.trim();
+                if (value.length() > 0) {
+                    return Long.parseLong(value);
+                }
+            }
+        }
+        return 0;
+    }
 }
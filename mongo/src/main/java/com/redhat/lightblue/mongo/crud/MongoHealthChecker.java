@@ -0,0 +1,462 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import com.redhat.lightblue.crud.CRUDHealth;
+import com.redhat.lightblue.mongo.common.DBResolver;
+import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.config.MongoConfiguration;
+
+/**
+ * Checks the health of all configured databases in the background,
+ * and keeps the last result so health probes return immediately.
+ *
+ * Every refresh pings all databases in parallel. A database that does
+ * not answer within the timeout is reported as unhealthy, and it is
+ * not pinged again until the pending ping returns, so one slow server
+ * does not hold up the others, or pile up threads. For replica sets,
+ * the member states and replication lag are included, and the check
+ * fails if there is no primary, or if a secondary lags more than the
+ * configured limit. The connection pool usage of every server is read
+ * from the pool MBeans the driver registers.
+ *
+ * The first call to getHealth() runs a check synchronously and
+ * schedules the background refreshes. If the last result is older
+ * than the freshness bound, because the refresher is stuck or
+ * failing, the health is reported as not OK. If the refresh period is
+ * 0, every call to getHealth() runs a check.
+ */
+public class MongoHealthChecker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoHealthChecker.class);
+
+    public static final long DEFAULT_REFRESH_MS = 5000;
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    private static final String POOL_MBEANS = "org.mongodb.driver:type=ConnectionPool,*";
+    private static final String[] POOL_ATTRIBUTES = {"Host", "Port", "Size", "CheckedOutCount", "MaxSize", "WaitQueueSize"};
+
+    private static final int STATE_PRIMARY = 1;
+    private static final int STATE_SECONDARY = 2;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Schedules refreshes for all health checkers in this JVM
+     */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mongo-health-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Runs the checks. Only one check per database can be pending, so
+     * the number of threads is bounded by the number of databases.
+     */
+    private static final ExecutorService checkers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "mongo-health-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final DBResolver dbResolver;
+    private final long refreshMS;
+    private final long maxAgeMS;
+    private final long timeoutMS;
+    private final long maxReplicationLagMS;
+
+    /**
+     * Checks that did not complete in time, by database
+     */
+    private final Map<String, Future<DatabaseHealth>> pending = new ConcurrentHashMap<>();
+
+    private volatile Snapshot last;
+    private ScheduledFuture<?> schedule;
+
+    private static final class Snapshot {
+        private final CRUDHealth health;
+        private final String details;
+        private final long time;
+
+        Snapshot(boolean healthy, String details, long time) {
+            this.health = new CRUDHealth(healthy, details);
+            this.details = details;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Result of checking a single database
+     */
+    static final class DatabaseHealth {
+        boolean healthy = true;
+        final List<String> details = new ArrayList<>();
+
+        void fail(String detail) {
+            healthy = false;
+            details.add(detail);
+        }
+
+        void add(String detail) {
+            details.add(detail);
+        }
+    }
+
+    /**
+     * @param dbResolver The databases to check
+     * @param refreshMS How often to check in the background. If 0,
+     * every getHealth() call runs a check.
+     * @param maxAgeMS The maximum age of a result before the health is
+     * reported as not OK
+     * @param timeoutMS How long to wait for a database to respond
+     * @param maxReplicationLagMS The maximum replication lag of a
+     * secondary. If 0, lag is reported but not checked.
+     */
+    public MongoHealthChecker(DBResolver dbResolver, long refreshMS, long maxAgeMS, long timeoutMS, long maxReplicationLagMS) {
+        this.dbResolver = dbResolver;
+        this.refreshMS = refreshMS;
+        this.maxAgeMS = maxAgeMS;
+        this.timeoutMS = timeoutMS;
+        this.maxReplicationLagMS = maxReplicationLagMS;
+    }
+
+    public long getRefreshMS() {
+        return refreshMS;
+    }
+
+    public long getMaxAgeMS() {
+        return maxAgeMS;
+    }
+
+    /**
+     * Returns the last health check result. Runs a check if there are
+     * no results yet, or if background checks are disabled.
+     */
+    public CRUDHealth getHealth() {
+        if (refreshMS <= 0) {
+            return check().health;
+        }
+        Snapshot s = last;
+        if (s == null) {
+            synchronized (this) {
+                s = last;
+                if (s == null) {
+                    s = refresh();
+                    startRefresh();
+                }
+            }
+        }
+        long age = System.currentTimeMillis() - s.time;
+        if (maxAgeMS > 0 && age > maxAgeMS) {
+            return new CRUDHealth(false, "stale:last check " + age + "ms ago, " + s.details);
+        }
+        return s.health;
+    }
+
+    /**
+     * Stops the background checks
+     */
+    public synchronized void stop() {
+        if (schedule != null) {
+            schedule.cancel(false);
+            schedule = null;
+        }
+    }
+
+    private void startRefresh() {
+        if (schedule == null) {
+            // The task does not keep the checker alive, it stops when
+            // the controller is gone
+            WeakReference<MongoHealthChecker> ref = new WeakReference<>(this);
+            ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+            synchronized (self) {
+                schedule = self[0] = scheduler.scheduleWithFixedDelay(() -> {
+                    MongoHealthChecker checker = ref.get();
+                    if (checker == null) {
+                        synchronized (self) {
+                            self[0].cancel(false);
+                        }
+                    } else {
+                        try {
+                            checker.refresh();
+                        } catch (RuntimeException e) {
+                            LOGGER.error("Health check failed", e);
+                        }
+                    }
+                }, refreshMS, refreshMS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private Snapshot refresh() {
+        Snapshot s = check();
+        last = s;
+        return s;
+    }
+
+    /**
+     * Checks all databases in parallel
+     */
+    private Snapshot check() {
+        Collection<MongoConfiguration> configs = dbResolver.getConfigurations();
+        Map<MongoConfiguration, Future<DatabaseHealth>> futures = new LinkedHashMap<>();
+        for (MongoConfiguration config : configs) {
+            Future<DatabaseHealth> f = pending.get(getMongoConfigDetails(config));
+            if (f == null) {
+                f = checkers.submit(() -> checkDatabase(config));
+            }
+            futures.put(config, f);
+        }
+        boolean isHealthy = true;
+        List<String> details = new ArrayList<>(configs.size());
+        long deadline = System.currentTimeMillis() + timeoutMS;
+        for (Map.Entry<MongoConfiguration, Future<DatabaseHealth>> entry : futures.entrySet()) {
+            String key = getMongoConfigDetails(entry.getKey());
+            StringBuilder bld = new StringBuilder(key).append("=>");
+            try {
+                DatabaseHealth h = entry.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                pending.remove(key);
+                isHealthy &= h.healthy;
+                bld.append(String.join(", ", h.details));
+            } catch (TimeoutException e) {
+                // Keep waiting for it in the next round
+                pending.put(key, entry.getValue());
+                isHealthy = false;
+                bld.append("ping_timeout:no response in ").append(timeoutMS).append("ms");
+            } catch (ExecutionException e) {
+                pending.remove(key);
+                isHealthy = false;
+                bld.append("ping_error:").append(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                isHealthy = false;
+                bld.append("ping_error:interrupted");
+            }
+            details.add(bld.toString());
+        }
+        return new Snapshot(isHealthy, details.toString(), System.currentTimeMillis());
+    }
+
+    private DatabaseHealth checkDatabase(MongoConfiguration config) {
+        DatabaseHealth h = new DatabaseHealth();
+        DB db = dbResolver.get(new MongoDataStore(config.getDatabase(), null, null));
+        long start = System.nanoTime();
+        CommandResult result = db.command(new BasicDBObject("ping", 1));
+        long pingMS = (System.nanoTime() - start) / 1000000;
+        if (!result.ok()) {
+            h.fail("ping:NOT_OK");
+        } else {
+            h.add("ping:OK " + pingMS + "ms");
+        }
+        Set<String> hosts = new HashSet<>();
+        if (config.getServer() != null) {
+            hosts.add(hostPort(config.getServer().getHost(), config.getServer().getPort()));
+        } else {
+            for (Iterator<ServerAddress> itr = config.getServerAddresses(); itr.hasNext();) {
+                ServerAddress a = itr.next();
+                hosts.add(hostPort(a.getHost(), a.getPort()));
+            }
+        }
+        checkReplicaSet(db, h, hosts);
+        checkPools(h, hosts);
+        return h;
+    }
+
+    /**
+     * Adds the replica set member states and replication lag. Fails if
+     * there is no primary, or if a secondary lags too much. Nothing is
+     * added if the server is not a replica set member, or if the user
+     * is not allowed to run replSetGetStatus.
+     */
+    private void checkReplicaSet(DB db, DatabaseHealth h, Set<String> hosts) {
+        CommandResult status;
+        try {
+            status = db.getSisterDB("admin").command(new BasicDBObject("replSetGetStatus", 1));
+        } catch (RuntimeException e) {
+            LOGGER.debug("replSetGetStatus failed: {}", e.toString());
+            return;
+        }
+        if (!status.ok()) {
+            LOGGER.debug("replSetGetStatus: {}", status.getErrorMessage());
+            return;
+        }
+        List<DBObject> members = new ArrayList<>();
+        Object m = status.get("members");
+        if (m instanceof List) {
+            for (Object x : (List<?>) m) {
+                if (x instanceof DBObject) {
+                    members.add((DBObject) x);
+                }
+            }
+        }
+        h.details.addAll(replicaSetDetails(status.getString("set"), members, maxReplicationLagMS, h));
+        for (DBObject member : members) {
+            Object name = member.get("name");
+            if (name != null) {
+                hosts.add(name.toString());
+            }
+        }
+    }
+
+    /**
+     * Builds the replica set details from the replSetGetStatus members,
+     * and marks h unhealthy if there is no primary or a secondary lags
+     * more than maxLagMS
+     */
+    static List<String> replicaSetDetails(String setName, List<DBObject> members, long maxLagMS, DatabaseHealth h) {
+        List<String> details = new ArrayList<>();
+        Date primaryOptime = null;
+        for (DBObject member : members) {
+            if (intValue(member.get("state")) == STATE_PRIMARY && member.get("optimeDate") instanceof Date) {
+                primaryOptime = (Date) member.get("optimeDate");
+            }
+        }
+        if (primaryOptime == null) {
+            h.healthy = false;
+            details.add("replSet " + setName + ":NO_PRIMARY");
+        } else {
+            details.add("replSet " + setName);
+        }
+        for (DBObject member : members) {
+            StringBuilder bld = new StringBuilder("member ").append(member.get("name")).append(':').append(member.get("stateStr"));
+            if (intValue(member.get("health")) != 1) {
+                bld.append(" DOWN");
+            }
+            if (primaryOptime != null && intValue(member.get("state")) == STATE_SECONDARY
+                    && member.get("optimeDate") instanceof Date) {
+                long lag = Math.max(primaryOptime.getTime() - ((Date) member.get("optimeDate")).getTime(), 0);
+                bld.append(" lag=").append(lag).append("ms");
+                if (maxLagMS > 0 && lag > maxLagMS) {
+                    h.healthy = false;
+                    bld.append(" LAGGING");
+                }
+            }
+            details.add(bld.toString());
+        }
+        return details;
+    }
+
+    /**
+     * Adds the connection pool usage for the given hosts. If there is
+     * more than one pool for a host, the largest usage is reported.
+     */
+    private static void checkPools(DatabaseHealth h, Set<String> hosts) {
+        Map<String, long[]> pools = new LinkedHashMap<>();
+        try {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : mbs.queryNames(new ObjectName(POOL_MBEANS), null)) {
+                AttributeList attrs = mbs.getAttributes(name, POOL_ATTRIBUTES);
+                Map<String, Object> values = new LinkedHashMap<>();
+                for (Attribute a : attrs.asList()) {
+                    values.put(a.getName(), a.getValue());
+                }
+                String host = hostPort(String.valueOf(values.get("Host")), intValue(values.get("Port")));
+                if (hosts.contains(host)) {
+                    long[] usage = new long[]{intValue(values.get("CheckedOutCount")),
+                                              intValue(values.get("MaxSize")),
+                                              intValue(values.get("WaitQueueSize"))};
+                    long[] prev = pools.get(host);
+                    if (prev == null || usage[0] > prev[0]) {
+                        pools.put(host, usage);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Cannot read connection pool statistics: {}", e.toString());
+            return;
+        }
+        for (Map.Entry<String, long[]> entry : pools.entrySet()) {
+            h.add(poolDetails(entry.getKey(), entry.getValue()[0], entry.getValue()[1], entry.getValue()[2]));
+        }
+    }
+
+    static String poolDetails(String host, long inUse, long maxSize, long waiting) {
+        StringBuilder bld = new StringBuilder("pool ").append(host).append(":inUse=").append(inUse).append('/').append(maxSize);
+        if (maxSize > 0) {
+            bld.append(" (").append(inUse * 100 / maxSize).append("%)");
+        }
+        bld.append(" waiting=").append(waiting);
+        if (waiting > 0 || (maxSize > 0 && inUse >= maxSize)) {
+            bld.append(" SATURATED");
+        }
+        return bld.toString();
+    }
+
+    private static String hostPort(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static int intValue(Object o) {
+        return o instanceof Number ? ((Number) o).intValue() : 0;
+    }
+
+    static String getMongoConfigDetails(MongoConfiguration config) {
+        StringBuilder detailsBuilder = new StringBuilder("Mongo Config [");
+
+        if (config.getServer() != null) {
+            detailsBuilder.append(config.getServer());
+        } else {
+            Iterator<ServerAddress> iterator = config.getServerAddresses();
+            while (iterator.hasNext()) {
+                detailsBuilder.append(iterator.next());
+            }
+        }
+        detailsBuilder.append(", DatabaseName: ");
+        detailsBuilder.append(config.getDatabase());
+        detailsBuilder.append("]");
+
+        return detailsBuilder.toString();
+    }
+}
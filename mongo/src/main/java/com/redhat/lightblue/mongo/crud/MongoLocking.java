@@ -21,12 +21,14 @@ package com.redhat.lightblue.mongo.crud;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.DuplicateKeyException;
@@ -35,6 +37,9 @@ import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.redhat.lightblue.extensions.synch.InvalidLockException;
 import com.redhat.lightblue.extensions.synch.Locking;
+import com.redhat.lightblue.mongo.common.CappedCollectionTailer;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 public class MongoLocking implements Locking {
 
@@ -45,15 +50,38 @@ public class MongoLocking implements Locking {
     public static final String EXPIRATION = "exp";
     public static final String COUNT = "n";
     public static final String VERSION = "ver";
+    public static final String COLLECTION = "coll";
+
+    public static final long DEFAULT_EVENTS_COLLECTION_SIZE = 1024l * 1024l;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoLocking.class);
 
     private DBCollection coll;
     private long defaultTTL = 60l * 60l * 1000l;// 1 hr
+    private long pollInterval = 1000l;
+    private DBCollection eventsColl;
 
     // a set of locking collections which were already initialized
     private static Set<String> initializedCollections = new CopyOnWriteArraySet<>();
 
+    // Callers waiting for a lock in this JVM, keyed by lock collection
+    // name and resource id
+    private static final ConcurrentHashMap<String, ResourceMonitor> monitors = new ConcurrentHashMap<>();
+
+    // Tailers following lock event collections, keyed by events collection name
+    private static final ConcurrentHashMap<String, CappedCollectionTailer> eventTailers = new ConcurrentHashMap<>();
+
+    /**
+     * Waiters for a resource wait on this object. releaseCount is
+     * incremented every time the resource is released, so a waiter
+     * can tell whether it missed a notification between its last
+     * acquisition attempt and the call to wait()
+     */
+    private static final class ResourceMonitor {
+        private long releaseCount;
+        private int numWaiters;
+    }
+
     public MongoLocking(DBCollection coll) {
         this(coll, false);
     }
@@ -84,6 +112,42 @@ public class MongoLocking implements Locking {
         defaultTTL = l;
     }
 
+    public long getDefaultTTL() {
+        return defaultTTL;
+    }
+
+    /**
+     * Sets the maximum amount of time a blocking acquire waits before
+     * checking the lock in the db again. Releases in this JVM, and
+     * releases reported through the lock events collection wake up
+     * the waiters earlier.
+     */
+    public void setPollInterval(long l) {
+        pollInterval = l;
+    }
+
+    /**
+     * Enables lock release events. Every release of a lock writes a
+     * document to the given capped collection, and a background
+     * thread tails that collection to wake up callers in this JVM
+     * that are waiting for the released resource. The capped
+     * collection is created if it does not exist.
+     */
+    public void enableReleaseEvents(DB db, String eventsCollection, long size) {
+        eventsColl = CappedCollectionTailer.ensureCappedCollection(db, eventsCollection, size);
+        eventTailers.computeIfAbsent(eventsColl.getFullName(), k -> {
+            CappedCollectionTailer tailer = new CappedCollectionTailer(eventsColl, doc -> {
+                Object c = doc.get(COLLECTION);
+                Object r = doc.get(RESOURCEID);
+                if (c != null && r != null) {
+                    notifyReleased(c.toString() + "|" + r.toString());
+                }
+            });
+            tailer.start();
+            return tailer;
+        });
+    }
+
     /**
      * Attempts to insert a lock record to the db
      *
@@ -114,6 +178,13 @@ public class MongoLocking implements Locking {
      * false.
      */
     public boolean acquire(String callerId, String resourceId, Long ttl) {
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.LOCK)) {
+            span.detail("acquire:" + resourceId);
+            return acquireLock(callerId, resourceId, ttl);
+        }
+    }
+
+    private boolean acquireLock(String callerId, String resourceId, Long ttl) {
         /*
           Creating an atomic acquire() method in mongodb is not
           easy. The key is to use the uniqueness of a unique index, in
@@ -224,10 +295,110 @@ public class MongoLocking implements Locking {
         return locked;
     }
 
+    /**
+     * Attempt to acquire a lock, waiting at most maxWait msecs for it
+     * to become available. Returns true if the lock is acquired.
+     *
+     * The caller is parked in this JVM until the resource is released
+     * locally, a release event is received for the resource, the
+     * current lock expires, or the poll interval passes, whichever
+     * comes first. Then the lock is tried again.
+     *
+     * If called during a CRUD operation with a deadline, the wait ends
+     * at the deadline.
+     */
+    public boolean acquire(String callerId, String resourceId, Long ttl, long maxWait) {
+        maxWait = Math.min(maxWait, Deadline.current().remainingMS());
+        LOGGER.debug("acquire({}/{},ttl={},maxWait={})", callerId, resourceId, ttl, maxWait);
+        long start = System.currentTimeMillis();
+        // Long.MAX_VALUE means wait forever, don't overflow
+        long deadline = maxWait >= Long.MAX_VALUE - start ? Long.MAX_VALUE : start + maxWait;
+        String key = monitorKey(resourceId);
+        ResourceMonitor monitor = monitors.compute(key, (k, m) -> {
+            if (m == null) {
+                m = new ResourceMonitor();
+            }
+            m.numWaiters++;
+            return m;
+        });
+        try {
+            while (true) {
+                long releaseCount;
+                synchronized (monitor) {
+                    releaseCount = monitor.releaseCount;
+                }
+                if (acquire(callerId, resourceId, ttl)) {
+                    return true;
+                }
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    LOGGER.debug("{}/{}: timed out waiting for lock", callerId, resourceId);
+                    return false;
+                }
+                long waitFor = Math.min(deadline - now, pollInterval);
+                // The lock may expire before anyone releases it
+                DBObject lock = coll.findOne(new BasicDBObject(RESOURCEID, resourceId), new BasicDBObject(EXPIRATION, 1), ReadPreference.primary());
+                if (lock == null) {
+                    continue;
+                }
+                Object exp = lock.get(EXPIRATION);
+                if (exp instanceof Date) {
+                    waitFor = Math.min(waitFor, Math.max(((Date) exp).getTime() - now, 0l) + 1);
+                }
+                synchronized (monitor) {
+                    if (monitor.releaseCount == releaseCount) {
+                        monitor.wait(waitFor);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            monitors.computeIfPresent(key, (k, m) -> --m.numWaiters <= 0 ? null : m);
+        }
+    }
+
+    private String monitorKey(String resourceId) {
+        return coll.getFullName() + "|" + resourceId;
+    }
+
+    private static void notifyReleased(String key) {
+        ResourceMonitor monitor = monitors.get(key);
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.releaseCount++;
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    private void released(String callerId, String resourceId) {
+        notifyReleased(monitorKey(resourceId));
+        if (eventsColl != null) {
+            try {
+                eventsColl.insert(new BasicDBObject(COLLECTION, coll.getFullName()).
+                        append(RESOURCEID, resourceId).
+                        append(CALLERID, callerId).
+                        append(TIMESTAMP, new Date()), WriteConcern.UNACKNOWLEDGED);
+            } catch (RuntimeException e) {
+                // Waiters will eventually poll
+                LOGGER.warn("Cannot write release event for {}/{}: {}", callerId, resourceId, e.toString());
+            }
+        }
+    }
+
     /**
      * Release the lock. Returns true if the lock is released by this call
      */
     public boolean release(String callerId, String resourceId) {
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.LOCK)) {
+            span.detail("release:" + resourceId);
+            return releaseLock(callerId, resourceId);
+        }
+    }
+
+    private boolean releaseLock(String callerId, String resourceId) {
         LOGGER.debug("release({}/{})", callerId, resourceId);
         Date now = new Date();
         // If lock count is only one, we can remove the lock
@@ -240,6 +411,7 @@ public class MongoLocking implements Locking {
         WriteResult wr = coll.remove(query, WriteConcern.ACKNOWLEDGED);
         if (wr.getN() == 1) {
             LOGGER.debug("{}/{} released", callerId, resourceId);
+            released(callerId, resourceId);
             return true;
         }
         // Retrieve the lock
@@ -292,6 +464,13 @@ public class MongoLocking implements Locking {
     }
 
     public void ping(String callerId, String resourceId) {
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.LOCK)) {
+            span.detail("ping:" + resourceId);
+            pingLock(callerId, resourceId);
+        }
+    }
+
+    private void pingLock(String callerId, String resourceId) {
         Date now = new Date();
         BasicDBObject q = new BasicDBObject().
                 append(CALLERID, callerId).
@@ -99,7 +99,25 @@ public class MongoLockingSupport implements LockingSupport {
         if (collection == null) {
             throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR, "locking." + domain + ".collection");
         }
-        return new MongoLocking(db.getCollection(collection.asText()));
+        // Local striping is off unless explicitly turned on
+        JsonNode localStriping = domainNode.get("localStriping");
+        MongoLocking locking;
+        if (localStriping != null && localStriping.asBoolean()) {
+            locking = new StripedMongoLocking(db.getCollection(collection.asText()));
+        } else {
+            locking = new MongoLocking(db.getCollection(collection.asText()));
+        }
+        JsonNode pollInterval = domainNode.get("pollIntervalMS");
+        if (pollInterval != null) {
+            locking.setPollInterval(pollInterval.asLong());
+        }
+        JsonNode eventsCollection = domainNode.get("eventsCollection");
+        if (eventsCollection != null) {
+            JsonNode eventsSize = domainNode.get("eventsCollectionSize");
+            locking.enableReleaseEvents(db, eventsCollection.asText(),
+                    eventsSize == null ? MongoLocking.DEFAULT_EVENTS_COLLECTION_SIZE : eventsSize.asLong());
+        }
+        return locking;
     }
 
     private ObjectNode findDomainNode(String domain) {
@@ -44,6 +44,8 @@ import com.mongodb.BulkWriteError;
 import org.bson.types.ObjectId;
 
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * This class implements a safe update protocol. Mongo updates are
@@ -232,7 +234,7 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
     public Map<Integer,Error> commit() {
         Map<Integer,Error> results=new HashMap<>();
         if(!batch.isEmpty()) {
-            if(!BatchUpdate.batchUpdate(bwo,writeConcern,batch.size(),results,LOGGER))
+            if(!BatchUpdate.batchUpdate(bwo,Deadline.current().writeConcern(writeConcern,collection),batch.size(),results,LOGGER))
                 findConcurrentModifications(results);
         }
         retryConcurrentUpdateErrorsIfNeeded(results);
@@ -242,11 +244,20 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
 
     public void retryConcurrentUpdateErrorsIfNeeded(Map<Integer,Error> results) {
         int nRetries=cfg.getFailureRetryCount();
+        Deadline deadline=Deadline.current();
         while(nRetries-->0) {
+            if(deadline.isExpired()) {
+                // Leave the concurrent update errors, the client can retry
+                LOGGER.debug("Deadline passed, not retrying concurrent update errors");
+                break;
+            }
             // Get the documents with concurrent modification errors
             List<Integer> failedDocs=getFailedDocIndexes(results);
             if(!failedDocs.isEmpty()) {
-                failedDocs=retryFailedDocs(failedDocs,results);
+                try (Tracer.Span span=Tracing.begin(Tracer.Phase.RETRY)) {
+                    span.documents(failedDocs.size()).detail(collection.getName());
+                    failedDocs=retryFailedDocs(failedDocs,results);
+                }
             } else {
                 break;
             }
@@ -263,7 +274,13 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
 
     private List<Integer> retryFailedDocs(List<Integer> failedDocs,Map<Integer,Error> results) {
         List<Integer> newFailedDocs=new ArrayList<>(failedDocs.size());
+        Deadline deadline=Deadline.current();
         for(Integer index:failedDocs) {            
+            if(deadline.isExpired()) {
+                // The remaining docs keep their errors
+                newFailedDocs.add(index);
+                continue;
+            }
             BatchDoc doc=batch.get(index);
             // Read the doc
             DBObject findQuery=new BasicDBObject("_id",doc.id);
@@ -18,8 +18,8 @@
  */
 package com.redhat.lightblue.mongo.crud;
 
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,8 +27,9 @@ import org.slf4j.LoggerFactory;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
-import com.mongodb.ReadPreference;
-import com.mongodb.WriteConcern;
+import com.mongodb.MongoException;
+import com.redhat.lightblue.mongo.metrics.Tracer;
+import com.redhat.lightblue.mongo.metrics.Tracing;
 
 /**
  * Sequence generation using a MongoDB collection.
@@ -36,6 +37,25 @@ import com.mongodb.WriteConcern;
  * Each sequence is a document uniquely identified by the sequence name. The
  * document contains initial value for the sequence, the increment, and the
  * value.
+ *
+ * A sequence value is generated using a single findAndModify call. The
+ * generator remembers the increment of every sequence it used, and
+ * increments the sequence value by that amount, with the increment
+ * also used as a query condition. If the sequence does not exist, or
+ * if its increment is changed, the call does not match anything. Then
+ * the sequence is upserted with its initial value and increment, and
+ * the increment is learned from the sequence document.
+ *
+ * The unique index on sequence name is created when the generator is
+ * constructed, so generator instances should be reused. See
+ * MongoSequenceSupport.
+ *
+ * Sequence values can also be reserved in blocks. A block is reserved
+ * by incrementing the sequence value by increment*blockSize in one
+ * call, and values from that block are then handed out from memory.
+ * Values are still unique across nodes, but values generated by
+ * different nodes are not ordered, and values of a block not used
+ * before the generator is discarded are lost.
  */
 public class MongoSequenceGenerator {
 
@@ -46,20 +66,45 @@ public class MongoSequenceGenerator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoSequenceGenerator.class);
 
+    private static final int MAX_RETRIES = 10;
+
     private final DBCollection coll;
 
-    // a set of sequances collections which were already initialized
-    private static Set<String> initializedCollections = new CopyOnWriteArraySet<>();
+    // Known sequence increments, keyed by sequence name
+    private final ConcurrentHashMap<String, Long> increments = new ConcurrentHashMap<>();
+
+    // Reserved sequence blocks, keyed by sequence name. Blocks belong
+    // to the generator, because the same collection name may exist
+    // in different clusters
+    private final ConcurrentHashMap<String, SequenceBlock> blocks = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> blockLocks = new ConcurrentHashMap<>();
+
+    /**
+     * A range of sequence values reserved in the db. The values are
+     * first, first+increment, ..., first+(size-1)*increment
+     */
+    private static final class SequenceBlock {
+        private final long first;
+        private final long increment;
+        private final long size;
+        private final AtomicLong nextIndex = new AtomicLong();
+
+        SequenceBlock(long first, long increment, long size) {
+            this.first = first;
+            this.increment = increment;
+            this.size = size;
+        }
+    }
 
     public MongoSequenceGenerator(DBCollection coll) {
         this.coll = coll;
+        // Here, we also make sure we have the indexes setup properly
+        initIndex();
+        LOGGER.info("Initialized sequences collection {}", coll.getFullName());
+    }
 
-        if (!initializedCollections.contains(coll.getFullName())) {
-            // Here, we also make sure we have the indexes setup properly
-            initIndex();
-            initializedCollections.add(coll.getFullName());
-            LOGGER.info("Initialized sequances collection {}", coll.getFullName());
-        }
+    public DBCollection getCollection() {
+        return coll;
     }
 
     private void initIndex() {
@@ -88,40 +133,125 @@ public class MongoSequenceGenerator {
      */
     public long getNextSequenceValue(String name, long init, long inc) {
         LOGGER.debug("getNextSequenceValue({})", name);
-        // Read the sequence document
-        BasicDBObject q = new BasicDBObject(NAME, name);
-        DBObject doc = coll.findOne(q,null,ReadPreference.primary());
-        if (doc == null) {
-            // Sequence document does not exist. Insert a new document using the init and inc
-            LOGGER.debug("inserting sequence record name={}, init={}, inc={}", name, init, inc);
-            if (inc == 0) {
-                inc = 1;
+        return reserve(name, init, inc, 1).first;
+    }
+
+    /**
+     * Returns the next sequence value from the block of values reserved
+     * for this sequence. If there is no block, or if the block is
+     * exhausted, a new block of <code>blockSize</code> values is
+     * reserved.
+     *
+     * @param name The sequence name
+     * @param init The initial value of the sequence, used only if the
+     * sequence does not exist
+     * @param inc The increment, used only if the sequence does not exist
+     * @param blockSize Number of values to reserve at once. If less than
+     * 2, values are not reserved in blocks.
+     */
+    public long getNextSequenceValue(String name, long init, long inc, long blockSize) {
+        if (blockSize < 2) {
+            return getNextSequenceValue(name, init, inc);
+        }
+        while (true) {
+            SequenceBlock block = blocks.get(name);
+            if (block != null) {
+                long index = block.nextIndex.getAndIncrement();
+                if (index < block.size) {
+                    return block.first + index * block.increment;
+                }
+            }
+            // Block is exhausted. Only one thread reserves the next block
+            synchronized (blockLocks.computeIfAbsent(name, k -> new Object())) {
+                if (blocks.get(name) == block) {
+                    LOGGER.debug("Reserving block of {} for {}|{}", blockSize, coll.getFullName(), name);
+                    blocks.put(name, reserve(name, init, inc, blockSize));
+                }
             }
+        }
+    }
 
-            BasicDBObject u = new BasicDBObject().
-                    append(NAME, name).
-                    append(INIT, init).
+    /**
+     * Reserves <code>count</code> sequence values with one atomic
+     * increment, and returns them.
+     *
+     * @param name The sequence name
+     * @param init The initial value of the sequence, used only if the
+     * sequence does not exist
+     * @param inc The increment, used only if the sequence does not exist
+     * @param count Number of values to return
+     */
+    public long[] getNextSequenceValues(String name, long init, long inc, int count) {
+        LOGGER.debug("getNextSequenceValues({},{})", name, count);
+        long[] values = new long[count];
+        if (count > 0) {
+            SequenceBlock block = reserve(name, init, inc, count);
+            for (int i = 0; i < count; i++) {
+                values[i] = block.first + i * block.increment;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Atomically increments the sequence value by n*increment, and
+     * returns the reserved block of values. Creates the sequence if
+     * it does not exist.
+     */
+    private SequenceBlock reserve(String name, long init, long inc, long n) {
+        try (Tracer.Span span = Tracing.begin(Tracer.Phase.SEQUENCE)) {
+            span.detail(name + ":" + n);
+            return reserveBlock(name, init, inc, n);
+        }
+    }
+
+    private SequenceBlock reserveBlock(String name, long init, long inc, long n) {
+        if (inc == 0) {
+            inc = 1;
+        }
+        for (int retry = 0; retry < MAX_RETRIES; retry++) {
+            Long increment = increments.get(name);
+            if (increment != null) {
+                BasicDBObject q = new BasicDBObject(NAME, name).append(INC, increment);
+                BasicDBObject u = new BasicDBObject("$inc", new BasicDBObject(VALUE, increment * n));
+                // This call returns the unmodified document
+                DBObject doc = coll.findAndModify(q, null, null, false, u, false, false);
+                if (doc != null) {
+                    long l = ((Number) doc.get(VALUE)).longValue();
+                    LOGGER.debug("{} -> {} ({} values)", name, l, n);
+                    return new SequenceBlock(l, increment, n);
+                }
+                // Sequence is removed, or increment is changed
+                increments.remove(name);
+            }
+            // Create the sequence if it does not exist, reserving the
+            // first n values. If it exists, this is a no-op that
+            // returns the sequence document
+            LOGGER.debug("upserting sequence record name={}, init={}, inc={}", name, init, inc);
+            BasicDBObject q = new BasicDBObject(NAME, name);
+            BasicDBObject u = new BasicDBObject("$setOnInsert", new BasicDBObject(INIT, init).
                     append(INC, inc).
-                    append(VALUE, init);
+                    append(VALUE, init + inc * n));
+            DBObject doc;
             try {
-                coll.insert(u, WriteConcern.ACKNOWLEDGED);
-            } catch (Exception e) {
-                // Someone else might have inserted already, try to re-read
-                LOGGER.debug("Insertion failed with {}, trying to read", e);
+                doc = coll.findAndModify(q, null, null, false, u, false, true);
+            } catch (MongoException e) {
+                if (e.getCode() == 11000 || e.getCode() == 11001) {
+                    // Someone else inserted the sequence, try again
+                    LOGGER.debug("Upsert failed with {}, retrying", e);
+                    continue;
+                }
+                throw e;
             }
-            doc = coll.findOne(q,null,ReadPreference.primary());
             if (doc == null) {
-                throw new RuntimeException("Cannot generate value for " + name);
+                // Inserted a new sequence
+                increments.put(name, inc);
+                LOGGER.debug("{} -> {} ({} values)", name, init, n);
+                return new SequenceBlock(init, inc, n);
             }
+            LOGGER.debug("Sequence doc={}", doc);
+            increments.put(name, ((Number) doc.get(INC)).longValue());
         }
-        LOGGER.debug("Sequence doc={}", doc);
-        Long increment = (Long) doc.get(INC);
-        BasicDBObject u = new BasicDBObject().
-                append("$inc", new BasicDBObject(VALUE, increment));
-        // This call returns the unmodified document
-        doc = coll.findAndModify(q, u);
-        Long l = (Long) doc.get(VALUE);
-        LOGGER.debug("{} -> {}", name, l);
-        return l;
+        throw new RuntimeException("Cannot generate value for " + name);
     }
 }
@@ -18,13 +18,17 @@
  */
 package com.redhat.lightblue.mongo.crud;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.Mongo;
 
 import com.redhat.lightblue.metadata.ValueGenerator;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
@@ -55,6 +59,11 @@ import com.redhat.lightblue.extensions.valuegenerator.ValueGeneratorSupport;
  * <li>increment: Optional parameter, if ommitted, 1 is assumed. Gives the
  * increment value of the sequence.<li>
  *
+ * <li>blockSize: Optional parameter, if ommitted, values are not reserved
+ * in blocks. If given, this many sequence values are reserved with one
+ * call to the db, and handed out from memory. Values remain unique, but
+ * they are not ordered across nodes.</li>
+ *
  * </ul>
  */
 public class MongoSequenceSupport implements ValueGeneratorSupport {
@@ -69,9 +78,44 @@ public class MongoSequenceSupport implements ValueGeneratorSupport {
     public static final String PROP_COLLECTION = "collection";
     public static final String PROP_INITIAL_VALUE = "initialValue";
     public static final String PROP_INCREMENT = "increment";
+    public static final String PROP_BLOCK_SIZE = "blockSize";
 
     private static final ValueGenerator.ValueGeneratorType[] TYPES = {ValueGenerator.ValueGeneratorType.IntSequence};
 
+    // Sequence generators, keyed by the client and the full name of
+    // the sequences collection. A generator initializes the collection
+    // indexes, and remembers sequence increments and reserved blocks,
+    // so they are shared.
+    private static final ConcurrentHashMap<GeneratorKey, MongoSequenceGenerator> generators = new ConcurrentHashMap<>();
+
+    /**
+     * The same collection name may exist in different clusters, so
+     * generators are also keyed by the client instance
+     */
+    private static final class GeneratorKey {
+        private final Mongo client;
+        private final String collection;
+
+        GeneratorKey(DBCollection coll) {
+            this.client = coll.getDB().getMongo();
+            this.collection = coll.getFullName();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof GeneratorKey) {
+                GeneratorKey k = (GeneratorKey) o;
+                return client == k.client && collection.equals(k.collection);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(client) * 31 + collection.hashCode();
+        }
+    }
+
     public MongoSequenceSupport(MongoCRUDController controller) {
         this.controller = controller;
     }
@@ -83,33 +127,83 @@ public class MongoSequenceSupport implements ValueGeneratorSupport {
 
     @Override
     public Object generateValue(EntityMetadata md, ValueGenerator generator) {
-        Properties p = generator.getProperties();
-        // We expect to see at least a name for the generator
-        String name = p.getProperty(PROP_NAME);
-        if (name == null) {
-            throw Error.get(MongoCrudConstants.ERR_NO_SEQUENCE_NAME);
+        SequenceParams params = new SequenceParams(generator);
+        MongoSequenceGenerator gen = getGenerator(md, params);
+        return gen.getNextSequenceValue(params.name, params.initialValue, params.increment, params.blockSize);
+    }
+
+    /**
+     * Generates <code>count</code> values for the given generator. The
+     * values are reserved with a single atomic increment of the
+     * sequence, so callers inserting many documents can generate all
+     * the values for a batch in one call. If the generator uses
+     * blocks, and the request fits into a block, the values are taken
+     * from the in-memory block.
+     */
+    public List<Object> generateValues(EntityMetadata md, ValueGenerator generator, int count) {
+        SequenceParams params = new SequenceParams(generator);
+        MongoSequenceGenerator gen = getGenerator(md, params);
+        List<Object> list = new ArrayList<>(count);
+        if (count < params.blockSize) {
+            for (int i = 0; i < count; i++) {
+                list.add(gen.getNextSequenceValue(params.name, params.initialValue, params.increment, params.blockSize));
+            }
+        } else {
+            for (long l : gen.getNextSequenceValues(params.name, params.initialValue, params.increment, count)) {
+                list.add(l);
+            }
         }
-        String collection = p.getProperty(PROP_COLLECTION);
-        if (collection == null) {
-            collection = DEFAULT_COLLECTION_NAME;
+        return list;
+    }
+
+    private MongoSequenceGenerator getGenerator(EntityMetadata md, SequenceParams params) {
+        DB db = controller.getDbResolver().get((MongoDataStore) md.getDataStore());
+        DBCollection coll = db.getCollection(params.collection);
+        GeneratorKey key = new GeneratorKey(coll);
+        MongoSequenceGenerator gen = generators.get(key);
+        if (gen == null) {
+            // The generator creates the index, so it is not created in
+            // computeIfAbsent. If another thread wins, its generator
+            // is used
+            gen = new MongoSequenceGenerator(coll);
+            MongoSequenceGenerator existing = generators.putIfAbsent(key, gen);
+            if (existing != null) {
+                gen = existing;
+            }
         }
-        String initialValueStr = p.getProperty(PROP_INITIAL_VALUE);
-        long initialValue;
-        if (initialValueStr == null) {
-            initialValue = 1;
-        } else {
-            initialValue = Long.valueOf(initialValueStr).longValue();
+        return gen;
+    }
+
+    /**
+     * Sequence parameters parsed from value generator properties
+     */
+    private static final class SequenceParams {
+        private final String name;
+        private final String collection;
+        private final long initialValue;
+        private final long increment;
+        private final long blockSize;
+
+        SequenceParams(ValueGenerator generator) {
+            Properties p = generator.getProperties();
+            // We expect to see at least a name for the generator
+            name = p.getProperty(PROP_NAME);
+            if (name == null) {
+                throw Error.get(MongoCrudConstants.ERR_NO_SEQUENCE_NAME);
+            }
+            collection = p.getProperty(PROP_COLLECTION, DEFAULT_COLLECTION_NAME);
+            initialValue = getLong(p, PROP_INITIAL_VALUE, 1);
+            increment = getLong(p, PROP_INCREMENT, 1);
+            blockSize = getLong(p, PROP_BLOCK_SIZE, 1);
         }
-        String incrementStr = p.getProperty(PROP_INCREMENT);
-        long increment;
-        if (incrementStr == null) {
-            increment = 1;
-        } else {
-            increment = Long.valueOf(incrementStr).longValue();
+
+        private static long getLong(Properties p, String property, long defaultValue) {
+            String value = p.getProperty(property);
+            if (value == null) {
+                return defaultValue;
+            } else {
+                return Long.valueOf(value).longValue();
+            }
         }
-        DB db = controller.getDbResolver().get((MongoDataStore) md.getDataStore());
-        DBCollection coll = db.getCollection(collection);
-        MongoSequenceGenerator gen = new MongoSequenceGenerator(coll);
-        return gen.getNextSequenceValue(name, initialValue, increment);
     }
 }
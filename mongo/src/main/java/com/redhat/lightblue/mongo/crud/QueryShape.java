@@ -0,0 +1,110 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+
+/**
+ * Computes the shape of a translated mongo query. The shape keeps field
+ * names and operators, and replaces all literal values with '?', so
+ * queries that differ only in their values have the same shape. Arrays
+ * of values (e.g. $in, $all) are collapsed into a single '?', because
+ * the number of values does not change how the query is evaluated.
+ * Arrays of subqueries ($and, $or, $nor) keep their elements.
+ *
+ * The sort is part of the shape, because it affects index selection.
+ */
+public final class QueryShape {
+
+    private QueryShape() {
+    }
+
+    /**
+     * Returns the shape of the query and sort. Either can be null.
+     */
+    public static String of(BSONObject query, BSONObject sort) {
+        StringBuilder bld = new StringBuilder();
+        if (query == null) {
+            bld.append("{}");
+        } else {
+            appendObject(bld, query);
+        }
+        if (sort != null) {
+            bld.append(" sort:");
+            // Sort direction matters, keep it
+            bld.append('{');
+            boolean first = true;
+            for (String key : sort.keySet()) {
+                if (first) {
+                    first = false;
+                } else {
+                    bld.append(',');
+                }
+                bld.append(key).append(':').append(sort.get(key));
+            }
+            bld.append('}');
+        }
+        return bld.toString();
+    }
+
+    private static void appendObject(StringBuilder bld, BSONObject obj) {
+        bld.append('{');
+        boolean first = true;
+        for (String key : obj.keySet()) {
+            if (first) {
+                first = false;
+            } else {
+                bld.append(',');
+            }
+            bld.append(key).append(':');
+            appendValue(bld, key, obj.get(key));
+        }
+        bld.append('}');
+    }
+
+    private static void appendValue(StringBuilder bld, String key, Object value) {
+        if (value instanceof List && isLogicalOperator(key)) {
+            bld.append('[');
+            boolean first = true;
+            for (Object x : (List) value) {
+                if (first) {
+                    first = false;
+                } else {
+                    bld.append(',');
+                }
+                appendValue(bld, null, x);
+            }
+            bld.append(']');
+        } else if (value instanceof BSONObject && !(value instanceof List)) {
+            appendObject(bld, (BSONObject) value);
+        } else if (value instanceof Pattern) {
+            // Regex options change how the query runs, the pattern does not
+            bld.append("/?/").append(((Pattern) value).flags());
+        } else {
+            bld.append('?');
+        }
+    }
+
+    private static boolean isLogicalOperator(String key) {
+        return "$and".equals(key) || "$or".equals(key) || "$nor".equals(key);
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.Mongo;
+import com.redhat.lightblue.extensions.synch.InvalidLockException;
+
+/**
+ * MongoLocking with an in-JVM front. Locks acquired by callers in
+ * this JVM are remembered locally, so:
+ *
+ * <ul>
+ * <li>Only one thread in this JVM tries to acquire a free resource in
+ * the db at a time. Other threads wait for that attempt to complete
+ * instead of writing to the lock collection.</li>
+ *
+ * <li>If a resource is held by another caller in this JVM, acquire
+ * fails after reading the lock from the db to make sure it is still
+ * held, without trying to insert or update it.</li>
+ *
+ * <li>Reentrant acquisitions with the same ttl are counted locally,
+ * after reading the lock from the db to make sure the caller still
+ * owns it. Releases of those acquisitions also check the db, and throw
+ * InvalidLockException if the lock is lost. Reentrant acquisitions
+ * with a different ttl go to the db, so the new ttl applies.</li>
+ * </ul>
+ *
+ * The lock count in the db only includes the acquisitions that went
+ * to the db. getLockCount returns the total.
+ *
+ * Local state is keyed by client, lock collection and resource id,
+ * and shared by all instances using the same lock collection. Local
+ * stripes are only locked while local state is updated, never during
+ * calls to the db.
+ */
+public class StripedMongoLocking extends MongoLocking {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripedMongoLocking.class);
+
+    private static final int NUM_STRIPES = 256;
+
+    // How long to wait at a time for another thread acquiring a lock in the db
+    private static final long PENDING_WAIT_MS = 100;
+
+    private static final ReentrantLock[] stripes = new ReentrantLock[NUM_STRIPES];
+
+    static {
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Locks held by callers in this JVM
+     */
+    private static final ConcurrentHashMap<HoldKey, LocalHold> holds = new ConcurrentHashMap<>();
+
+    /**
+     * The same collection name may exist in different clusters, so
+     * holds are also keyed by the client instance
+     */
+    private static final class HoldKey {
+        private final Mongo client;
+        private final String collection;
+        private final String resourceId;
+
+        HoldKey(DBCollection coll, String resourceId) {
+            this.client = coll.getDB().getMongo();
+            this.collection = coll.getFullName();
+            this.resourceId = resourceId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof HoldKey) {
+                HoldKey k = (HoldKey) o;
+                return client == k.client && collection.equals(k.collection) && resourceId.equals(k.resourceId);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(client) * 31 + collection.hashCode()) * 31 + resourceId.hashCode();
+        }
+    }
+
+    /**
+     * Fields are accessed with the stripe of the key locked
+     */
+    private static final class LocalHold {
+        private final String callerId;
+        // Set while the caller is acquiring the lock in the db
+        private boolean pending = true;
+        private long ttl;
+        // All acquisitions, including the ones recorded in the db
+        private int count;
+        // Acquisitions recorded in the db
+        private int dbCount;
+        // Conservative estimate of when the lock expires in the db
+        private long expiration;
+
+        LocalHold(String callerId, long ttl) {
+            this.callerId = callerId;
+            this.ttl = ttl;
+        }
+    }
+
+    private final DBCollection coll;
+
+    public StripedMongoLocking(DBCollection coll) {
+        this(coll, false);
+    }
+
+    public StripedMongoLocking(DBCollection coll, boolean forceCollectionInit) {
+        super(coll, forceCollectionInit);
+        this.coll = coll;
+    }
+
+    private static ReentrantLock stripe(HoldKey key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    /**
+     * Forgets the hold if it is still the current hold for the key
+     */
+    private static void dropHold(HoldKey key, LocalHold hold) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            holds.remove(key, hold);
+        } finally {
+            stripe.unlock();
+        }
+        synchronized (hold) {
+            hold.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the hold of the caller, or null
+     */
+    private static LocalHold getHold(HoldKey key, String callerId) {
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            LocalHold hold = holds.get(key);
+            return hold != null && !hold.pending && hold.callerId.equals(callerId) ? hold : null;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Reads the lock from the db, returns true if the caller owns it
+     */
+    private boolean isHeld(String callerId, String resourceId) {
+        try {
+            return super.getLockCount(callerId, resourceId) > 0;
+        } catch (InvalidLockException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean acquire(String callerId, String resourceId, Long ttl) {
+        if (ttl == null) {
+            ttl = getDefaultTTL();
+        }
+        HoldKey key = new HoldKey(coll, resourceId);
+        ReentrantLock stripe = stripe(key);
+        while (true) {
+            LocalHold hold;
+            boolean created = false;
+            long holdTTL = 0;
+            stripe.lock();
+            try {
+                hold = holds.get(key);
+                if (hold != null && !hold.pending && hold.expiration <= System.currentTimeMillis()) {
+                    holds.remove(key);
+                    hold = null;
+                }
+                if (hold == null) {
+                    hold = new LocalHold(callerId, ttl);
+                    holds.put(key, hold);
+                    created = true;
+                } else {
+                    holdTTL = hold.ttl;
+                }
+            } finally {
+                stripe.unlock();
+            }
+
+            if (created) {
+                return acquireInDb(key, hold, callerId, resourceId, ttl);
+            }
+            if (hold.pending) {
+                // Another thread in this JVM is trying the db, wait for it
+                synchronized (hold) {
+                    try {
+                        hold.wait(PENDING_WAIT_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                continue;
+            }
+            if (!hold.callerId.equals(callerId)) {
+                if (isHeld(hold.callerId, resourceId)) {
+                    LOGGER.debug("{}/{}: locked by {} in this JVM", callerId, resourceId, hold.callerId);
+                    return false;
+                }
+                // The lock expired or was lost in the db
+                dropHold(key, hold);
+                continue;
+            }
+            if (holdTTL != ttl) {
+                // The db takes care of the new ttl
+                return acquireReentrantInDb(key, hold, callerId, resourceId, ttl);
+            }
+            if (!isHeld(callerId, resourceId)) {
+                // We had the lock, but lost it in the db. Try again.
+                dropHold(key, hold);
+                continue;
+            }
+            stripe.lock();
+            try {
+                if (holds.get(key) == hold) {
+                    hold.count++;
+                    LOGGER.debug("{}/{}: local lock count {}", callerId, resourceId, hold.count);
+                    return true;
+                }
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    private boolean acquireInDb(HoldKey key, LocalHold hold, String callerId, String resourceId, long ttl) {
+        boolean acquired = false;
+        long now = System.currentTimeMillis();
+        try {
+            acquired = super.acquire(callerId, resourceId, ttl);
+        } finally {
+            ReentrantLock stripe = stripe(key);
+            stripe.lock();
+            try {
+                if (acquired) {
+                    hold.pending = false;
+                    hold.count = 1;
+                    hold.dbCount = 1;
+                    hold.expiration = now + ttl;
+                } else {
+                    holds.remove(key, hold);
+                }
+            } finally {
+                stripe.unlock();
+            }
+            synchronized (hold) {
+                hold.notifyAll();
+            }
+        }
+        return acquired;
+    }
+
+    private boolean acquireReentrantInDb(HoldKey key, LocalHold hold, String callerId, String resourceId, long ttl) {
+        long now = System.currentTimeMillis();
+        boolean acquired;
+        try {
+            acquired = super.acquire(callerId, resourceId, ttl);
+        } catch (RuntimeException e) {
+            dropHold(key, hold);
+            throw e;
+        }
+        if (!acquired) {
+            dropHold(key, hold);
+            return false;
+        }
+        ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            hold.count++;
+            hold.dbCount++;
+            hold.ttl = ttl;
+            hold.expiration = now + ttl;
+        } finally {
+            stripe.unlock();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean release(String callerId, String resourceId) {
+        HoldKey key = new HoldKey(coll, resourceId);
+        ReentrantLock stripe = stripe(key);
+        LocalHold hold = getHold(key, callerId);
+        if (hold != null) {
+            boolean local;
+            stripe.lock();
+            try {
+                local = hold.count > hold.dbCount;
+            } finally {
+                stripe.unlock();
+            }
+            if (local) {
+                // Only counted locally, but the caller must still own the lock
+                if (!isHeld(callerId, resourceId)) {
+                    dropHold(key, hold);
+                    throw new InvalidLockException(resourceId);
+                }
+                stripe.lock();
+                try {
+                    if (holds.get(key) == hold && hold.count > hold.dbCount) {
+                        hold.count--;
+                        LOGGER.debug("{}/{}: local lock count {}", callerId, resourceId, hold.count);
+                        return false;
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        boolean released;
+        try {
+            released = super.release(callerId, resourceId);
+        } catch (RuntimeException e) {
+            if (hold != null) {
+                dropHold(key, hold);
+            }
+            throw e;
+        }
+        if (hold != null) {
+            if (released) {
+                dropHold(key, hold);
+            } else {
+                stripe.lock();
+                try {
+                    hold.count--;
+                    hold.dbCount--;
+                    // Decrementing the db lock count extends the lock
+                    hold.expiration = now + hold.ttl;
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        }
+        return released;
+    }
+
+    @Override
+    public int getLockCount(String callerId, String resourceId) {
+        HoldKey key = new HoldKey(coll, resourceId);
+        LocalHold hold = getHold(key, callerId);
+        int n;
+        try {
+            n = super.getLockCount(callerId, resourceId);
+        } catch (InvalidLockException e) {
+            if (hold != null) {
+                dropHold(key, hold);
+            }
+            throw e;
+        }
+        if (hold != null) {
+            ReentrantLock stripe = stripe(key);
+            stripe.lock();
+            try {
+                n += hold.count - hold.dbCount;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void ping(String callerId, String resourceId) {
+        HoldKey key = new HoldKey(coll, resourceId);
+        LocalHold hold = getHold(key, callerId);
+        long now = System.currentTimeMillis();
+        try {
+            super.ping(callerId, resourceId);
+        } catch (InvalidLockException e) {
+            if (hold != null) {
+                dropHold(key, hold);
+            }
+            throw e;
+        }
+        if (hold != null) {
+            ReentrantLock stripe = stripe(key);
+            stripe.lock();
+            try {
+                hold.expiration = now + hold.ttl;
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+}
@@ -132,7 +132,7 @@ public class UpdateIfSameProtocol implements BatchUpdate {
     public Map<Integer,Error> commit() {
         Map<Integer,Error> results=new HashMap<>();
         if(!batch.isEmpty()) {
-            if(!BatchUpdate.batchUpdate(bwo,writeConcern,batch.size(),results,LOGGER))
+            if(!BatchUpdate.batchUpdate(bwo,Deadline.current().writeConcern(writeConcern,collection),batch.size(),results,LOGGER))
                 findConcurrentModifications(results);
         }
         batch.clear();
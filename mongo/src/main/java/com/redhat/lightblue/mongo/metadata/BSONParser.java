@@ -18,12 +18,24 @@
  */
 package com.redhat.lightblue.mongo.metadata;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,9 +64,102 @@ public class BSONParser extends MetadataParser<Object> {
 
     public static final String DELIMITER_ID = "|";
 
+    public static final int DEFAULT_PARSED_SCHEMA_CACHE_SIZE = 1024;
+
+    /**
+     * Serialized parsed schemas keyed by the content hash of the
+     * metadata document. Access ordered, so the least recently used
+     * schema is dropped when the map is full. Schemas are mutable, so
+     * they are not shared: every hit deserializes a new copy.
+     */
+    private final Map<String, byte[]> parsedSchemas;
+
+    private final LongAdder parsedSchemaHits = new LongAdder();
+
     public BSONParser(Extensions<Object> ex,
                       TypeResolver resolver) {
+        this(ex, resolver, DEFAULT_PARSED_SCHEMA_CACHE_SIZE);
+    }
+
+    public BSONParser(Extensions<Object> ex,
+                      TypeResolver resolver,
+                      final int parsedSchemaCacheSize) {
         super(ex, resolver);
+        parsedSchemas = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > parsedSchemaCacheSize;
+            }
+        });
+    }
+
+    /**
+     * Parses the entity schema. If a metadata document with identical
+     * contents was parsed before, returns a copy of that schema
+     * instead. The returned schema is never shared, callers may modify
+     * it.
+     */
+    public EntitySchema parseEntitySchemaCached(Object object) {
+        String hash = contentHash((BSONObject) object);
+        if (hash == null) {
+            return parseEntitySchema(object);
+        }
+        byte[] serialized = parsedSchemas.get(hash);
+        if (serialized != null) {
+            EntitySchema copy = deserialize(serialized);
+            if (copy != null) {
+                parsedSchemaHits.increment();
+                LOGGER.debug("Reusing parsed schema {}", ((BSONObject) object).get("_id"));
+                return copy;
+            }
+        }
+        EntitySchema schema = parseEntitySchema(object);
+        serialized = serialize(schema);
+        if (serialized != null) {
+            parsedSchemas.put(hash, serialized);
+        }
+        return schema;
+    }
+
+    private static byte[] serialize(EntitySchema schema) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(schema);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Cannot serialize schema, not caching it: {}", e.toString());
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static EntitySchema deserialize(byte[] serialized) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (EntitySchema) in.readObject();
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            LOGGER.debug("Cannot deserialize cached schema: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of times a parsed schema was reused
+     */
+    public long getParsedSchemaHitCount() {
+        return parsedSchemaHits.sum();
+    }
+
+    /**
+     * Returns a hash of the BSON encoding of the document, or null if
+     * the document cannot be encoded
+     */
+    private static String contentHash(BSONObject doc) {
+        try {
+            byte[] bytes = new BasicBSONEncoder().encode(doc);
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException | RuntimeException e) {
+            LOGGER.debug("Cannot hash metadata document: {}", e.toString());
+            return null;
+        }
     }
 
     @Override
@@ -18,32 +18,112 @@
  */
 package com.redhat.lightblue.mongo.metadata;
 
-import java.lang.ref.WeakReference;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.redhat.lightblue.EntityVersion;
+import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.VersionInfo;
+import com.redhat.lightblue.mongo.common.CappedCollectionTailer;
 
+/**
+ * A size-bounded metadata cache. Cached entries are invalidated when
+ * the collection version stored in the metadata collection changes,
+ * and each entry expires cacheTTLMsecs after it is loaded. When the
+ * cache grows beyond its maximum size, the least recently used entries
+ * are evicted.
+ *
+ * Lookups do not lock. Loads are single-flight: if several threads
+ * miss the same entity version at the same time, only one of them
+ * loads it, and the others wait for the result.
+ *
+ * Entries loaded with lookupOrLoad are refreshed ahead: when such an
+ * entry expires, lookups keep returning it while a background thread
+ * reloads it, and the reloaded entry replaces it atomically. An
+ * expired entry is served for at most another TTL period. Entities
+ * invalidated because they changed in the db are also reloaded in the
+ * background. Requests for them wait for that reload instead of
+ * loading them again.
+ *
+ * Entity infos, entity name lists and entity version lists are also
+ * cached, and they are invalidated together with the entity
+ * metadata.
+ *
+ * Along with the collection version, the collection version document
+ * keeps a change counter for every entity. Every metadata change
+ * increments the collection version and the counter of the changed
+ * entity by one. When the collection version changes, only the
+ * entities whose counters changed are invalidated. If the counter
+ * changes do not add up to the collection version change, someone
+ * changed the collection version without updating entity counters
+ * (an older version of this code, or a manual update), and the whole
+ * cache is cleared.
+ *
+ * If invalidation events are enabled, metadata changes are also
+ * written to a capped collection as entity-level events, and a
+ * background thread tails that collection and invalidates only the
+ * changed entity. While the event tailer is healthy, the collection
+ * version is still polled, but EVENTS_VERSION_LOOKUP_FACTOR times less
+ * often, to catch changes whose events were lost. If the tailer fails,
+ * the cache is cleared when it reconnects, and the normal polling
+ * period is used until then.
+ */
 public class MetadataCache {
 
     private static Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
 
     private static final String LITERAL_COLL_VER = "collectionVersion";
+    private static final String LITERAL_ENTITY_VERSIONS = "entityVersions";
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    public static final String EVENT_ENTITY_NAME = "entityName";
+    public static final String EVENT_TIMESTAMP = "t";
+
+    public static final long DEFAULT_EVENTS_COLLECTION_SIZE = 1024l * 1024l;
+
+    /**
+     * While invalidation events are healthy, the collection version
+     * lookup period is multiplied by this
+     */
+    public static final long EVENTS_VERSION_LOOKUP_FACTOR = 6l;
 
     /**
      * This is the collection version number we expect to see in the database.
      * If this doesn't match the value in db, someone updated metadata, we
      * refresh
      */
-    private long expectedCollectionVersion;
+    private volatile long expectedCollectionVersion;
+
+    /**
+     * Entity change counters we expect to see in the database, keyed
+     * by escaped entity name. Null until the collection version is
+     * read for the first time.
+     */
+    private volatile Map<String, Long> expectedEntityVersions;
 
     /**
      * Last time we retrieved collection version
@@ -53,19 +133,114 @@ public class MetadataCache {
     /**
      * The collection version lookup period
      */
-    private long versionLookupPeriodMsecs = 10l * 1000l;
+    private volatile long versionLookupPeriodMsecs = 10l * 1000l;
+
+    /**
+     * Cache entry TTL
+     */
+    private volatile long cacheTTLMsecs = 10l * 60l * 1000l;
+
+    /**
+     * Max number of cached entity versions
+     */
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Set while a thread is reading the collection version
+     */
+    private final AtomicBoolean versionLookupInProgress = new AtomicBoolean(false);
+
+    /**
+     * Incremented every time the cache is cleared. Loads that started
+     * before a clear are not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
 
     /**
-     * Cache clear period
+     * Incremented every time an entity is invalidated, keyed by entity
+     * name. Loads of an entity that started before it was invalidated
+     * are not cached. Loads of other entities are not affected.
      */
-    private long cacheTTLMsecs = 10l * 60l * 1000l;
+    private final ConcurrentHashMap<String, AtomicLong> entityGenerations = new ConcurrentHashMap<>();
 
     /**
-     * Last time we refreshed cache
+     * Incremented every time any entity is invalidated. Entity name
+     * lists loaded before that are not cached.
      */
-    private volatile long lastCacheRefreshTime = 0l;
+    private final AtomicLong namesGeneration = new AtomicLong();
+
+    private final ConcurrentHashMap<EntityVersion, CacheEntry> cache = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<EntityVersion, CompletableFuture<EntityMetadata>> loading = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, CachedValue<EntityInfo>> entityInfos = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CachedValue<String[]>> entityNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CachedValue<VersionInfo[]>> entityVersions = new ConcurrentHashMap<>();
 
-    private final Map<EntityVersion, WeakReference<EntityMetadata>> cache = new HashMap<>();
+    private volatile CappedCollectionTailer eventTailer;
+
+    /**
+     * Reloads expired and invalidated entries
+     */
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "metadata-cache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Cumulative counts since the cache was created. They are not
+    // reset by clear().
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+
+    private static final class CacheEntry {
+        private final EntityMetadata md;
+        private final long loadTime;
+        private volatile long lastAccess;
+        // Used to reload the entry, null if the entry is not loaded by the cache
+        private final Supplier<EntityMetadata> loader;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        CacheEntry(EntityMetadata md, long now, Supplier<EntityMetadata> loader) {
+            this.md = md;
+            this.loadTime = now;
+            this.lastAccess = now;
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * The invalidation state of the cache when a load started. The
+     * loaded value is only cached if the cache was not cleared, and
+     * its entity was not invalidated, since then.
+     */
+    static final class Snapshot {
+        private final long generation;
+        private final long namesGeneration;
+        // Generations of the entities the snapshot is for
+        private final Map<String, Long> entityGenerations;
+
+        Snapshot(long generation, long namesGeneration, Map<String, Long> entityGenerations) {
+            this.generation = generation;
+            this.namesGeneration = namesGeneration;
+            this.entityGenerations = entityGenerations;
+        }
+    }
+
+    private static final class CachedValue<T> {
+        private final T value;
+        private final long loadTime;
+
+        CachedValue(T value, long now) {
+            this.value = value;
+            this.loadTime = now;
+        }
+    }
 
     /**
      * Sets cache parameters. If null is passed, that parameter is not changed.
@@ -80,36 +255,470 @@ public class MetadataCache {
         }
     }
 
+    /**
+     * Sets the maximum number of entity versions kept in the cache
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
     public EntityMetadata lookup(DBCollection collection, String entityName, String version) {
         long now = System.currentTimeMillis();
-        if (lastCacheRefreshTime + cacheTTLMsecs < now) {
-            fullRefresh(collection, now);
-        } else if (lastVersionLookupTime + versionLookupPeriodMsecs < now) {
-            refreshCollectionVersion(collection, now, false);
+        if (isVersionLookupNeeded(now)) {
+            refreshCollectionVersion(collection, now);
         }
 
-        EntityMetadata md;
         EntityVersion v = new EntityVersion(entityName, version);
-        WeakReference<EntityMetadata> ref = cache.get(v);
-        if (ref != null) {
-            md = ref.get();
+        CacheEntry entry = cache.get(v);
+        if (entry != null) {
+            if (entry.loadTime + cacheTTLMsecs < now) {
+                if (entry.loader != null && entry.loadTime + 2 * cacheTTLMsecs >= now) {
+                    // Serve the stale entry, and reload it in the background
+                    if (entry.refreshing.compareAndSet(false, true)) {
+                        reloadAsync(v, entry.loader, entry);
+                    }
+                    staleHits.increment();
+                } else {
+                    cache.remove(v, entry);
+                    entry = null;
+                }
+            }
+        }
+        if (entry != null) {
+            entry.lastAccess = now;
+            hits.increment();
+            return entry.md;
         } else {
-            md = null;
+            misses.increment();
+            return null;
+        }
+    }
+
+    /**
+     * Looks up an entity version, and if it is not in the cache, loads
+     * it using the loader and caches it. If another thread is already
+     * loading the same entity version, waits for that thread to finish
+     * and returns its result.
+     */
+    public EntityMetadata lookupOrLoad(DBCollection collection, String entityName, String version, Supplier<EntityMetadata> loader) {
+        EntityMetadata md = lookup(collection, entityName, version);
+        if (md != null) {
+            return md;
+        }
+        EntityVersion v = new EntityVersion(entityName, version);
+        CompletableFuture<EntityMetadata> future = new CompletableFuture<>();
+        CompletableFuture<EntityMetadata> existing = loading.putIfAbsent(v, future);
+        if (existing != null) {
+            LOGGER.debug("Waiting for {}:{} to be loaded by another thread", entityName, version);
+            try {
+                md = existing.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            if (md != null) {
+                return md;
+            }
+            // The other load was abandoned, load it here
+            return load(v, loader);
+        }
+        try {
+            md = load(v, loader);
+            future.complete(md);
+            return md;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(v, future);
+        }
+    }
+
+    /**
+     * Reloads an entity version in the background. If stale is not
+     * null, it is the expired entry being refreshed.
+     */
+    private void reloadAsync(EntityVersion v, Supplier<EntityMetadata> loader, CacheEntry stale) {
+        CompletableFuture<EntityMetadata> future = new CompletableFuture<>();
+        if (loading.putIfAbsent(v, future) != null) {
+            // Already being loaded
+            return;
         }
+        try {
+            refresher.execute(() -> {
+                try {
+                    future.complete(load(v, loader));
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Cannot reload {}: {}", v, e.toString());
+                    future.completeExceptionally(e);
+                    if (stale != null) {
+                        // Try again later
+                        stale.refreshing.set(false);
+                    }
+                } finally {
+                    loading.remove(v, future);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(v, future);
+            future.complete(null);
+            if (stale != null) {
+                stale.refreshing.set(false);
+            }
+        }
+    }
 
+    private EntityMetadata load(EntityVersion v, Supplier<EntityMetadata> loader) {
+        Snapshot snapshot = snapshot(v.getEntity());
+        long start = System.nanoTime();
+        EntityMetadata md;
+        try {
+            md = loader.get();
+        } catch (RuntimeException e) {
+            loadFailures.increment();
+            throw e;
+        } finally {
+            loads.increment();
+            loadTimeNanos.add(System.nanoTime() - start);
+        }
+        if (md != null) {
+            put(md, snapshot, loader);
+        }
         return md;
     }
 
-    public synchronized void put(EntityMetadata md) {
-        cache.put(new EntityVersion(md.getName(), md.getVersion().getValue()), new WeakReference(md));
+    public void put(EntityMetadata md) {
+        put(md, snapshot(md.getName()), null);
+    }
+
+    /**
+     * Reads the collection version from the db if it is time to do
+     * so, and returns the collection version the cache entries are
+     * valid for. Returns null if the collection version cannot be
+     * read.
+     */
+    public Long getCollectionVersion(DBCollection collection) {
+        long now = System.currentTimeMillis();
+        if (expectedEntityVersions == null || isVersionLookupNeeded(now)) {
+            refreshCollectionVersion(collection, now);
+        }
+        return expectedEntityVersions == null ? null : expectedCollectionVersion;
+    }
+
+    /**
+     * Puts an entity version loaded outside the cache, with a loader
+     * that can be used to reload it
+     */
+    public void put(EntityMetadata md, Supplier<EntityMetadata> loader) {
+        put(md, snapshot(md.getName()), loader);
+    }
+
+    /**
+     * Puts an entity version that was loaded after the snapshot was
+     * taken. If the cache was cleared or the entity was invalidated
+     * since, the entity version is not cached.
+     */
+    void put(EntityMetadata md, Snapshot snapshot, Supplier<EntityMetadata> loader) {
+        EntityVersion v = new EntityVersion(md.getName(), md.getVersion().getValue());
+        CacheEntry entry = new CacheEntry(md, System.currentTimeMillis(), loader);
+        cache.put(v, entry);
+        // If the entity is invalidated while this was being loaded,
+        // the entry may be stale
+        if (!isCurrent(snapshot, md.getName())) {
+            cache.remove(v, entry);
+        }
+        evictIfNecessary();
+    }
+
+    private long entityGeneration(String entityName) {
+        AtomicLong gen = entityGenerations.get(entityName);
+        return gen == null ? 0 : gen.get();
+    }
+
+    /**
+     * Returns the invalidation state of the given entities. If no
+     * entity is given, the snapshot is for all entities.
+     */
+    Snapshot snapshot(String... entityNames) {
+        Map<String, Long> gens = new HashMap<>();
+        if (entityNames.length == 0) {
+            for (Map.Entry<String, AtomicLong> e : entityGenerations.entrySet()) {
+                gens.put(e.getKey(), e.getValue().get());
+            }
+        } else {
+            for (String name : entityNames) {
+                gens.put(name, entityGeneration(name));
+            }
+        }
+        return new Snapshot(generation.get(), namesGeneration.get(), gens);
+    }
+
+    private boolean isCurrent(Snapshot snapshot, String entityName) {
+        if (generation.get() != snapshot.generation) {
+            return false;
+        }
+        // Entities not in the snapshot were never invalidated when it was taken
+        Long gen = snapshot.entityGenerations.get(entityName);
+        return entityGeneration(entityName) == (gen == null ? 0 : gen);
+    }
+
+    /**
+     * Removes least recently used entries until the cache size is
+     * within limits
+     */
+    private void evictIfNecessary() {
+        while (cache.size() > maxSize) {
+            Map.Entry<EntityVersion, CacheEntry> oldest = null;
+            for (Map.Entry<EntityVersion, CacheEntry> e : cache.entrySet()) {
+                if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess) {
+                    oldest = e;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            if (cache.remove(oldest.getKey(), oldest.getValue())) {
+                evictions.increment();
+                LOGGER.debug("Evicted {}", oldest.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the entity info from the cache, or loads it using the
+     * loader. Null values are not cached.
+     */
+    public EntityInfo lookupEntityInfo(DBCollection collection, String entityName, Supplier<EntityInfo> loader) {
+        return lookupOrLoad(collection, entityInfos, entityName, true, loader);
+    }
+
+    /**
+     * Returns the entity names for the given status key from the
+     * cache, or loads them using the loader. The returned array is a
+     * copy.
+     */
+    public String[] lookupEntityNames(DBCollection collection, String statusKey, Supplier<String[]> loader) {
+        String[] names = lookupOrLoad(collection, entityNames, statusKey, false, loader);
+        return names == null ? null : names.clone();
+    }
+
+    /**
+     * Returns the versions of an entity from the cache, or loads them
+     * using the loader. The returned array is a copy.
+     */
+    public VersionInfo[] lookupEntityVersions(DBCollection collection, String entityName, Supplier<VersionInfo[]> loader) {
+        VersionInfo[] versions = lookupOrLoad(collection, entityVersions, entityName, true, loader);
+        return versions == null ? null : versions.clone();
+    }
+
+    /**
+     * If keyIsEntity is true, the key is an entity name, and the value
+     * is invalidated with that entity. Otherwise, the value is
+     * invalidated with any entity.
+     */
+    private <T> T lookupOrLoad(DBCollection collection,
+                               ConcurrentHashMap<String, CachedValue<T>> map,
+                               String key,
+                               boolean keyIsEntity,
+                               Supplier<T> loader) {
+        long now = System.currentTimeMillis();
+        if (isVersionLookupNeeded(now)) {
+            refreshCollectionVersion(collection, now);
+        }
+        CachedValue<T> cached = map.get(key);
+        if (cached != null && cached.loadTime + cacheTTLMsecs >= now) {
+            return cached.value;
+        }
+        Snapshot snapshot = keyIsEntity ? snapshot(key) : snapshot();
+        T value = loader.get();
+        if (value != null) {
+            cached = new CachedValue<>(value, now);
+            map.put(key, cached);
+            boolean current = keyIsEntity ? isCurrent(snapshot, key)
+                    : generation.get() == snapshot.generation && namesGeneration.get() == snapshot.namesGeneration;
+            if (!current) {
+                map.remove(key, cached);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Enables invalidation events. Metadata changes are written to the
+     * given capped collection, and the collection is tailed to
+     * invalidate changed entities. The collection is created if it
+     * does not exist.
+     */
+    public synchronized void enableInvalidationEvents(DB db, String eventsCollection, long size) {
+        CappedCollectionTailer tailer = eventTailer;
+        if (tailer != null) {
+            if (tailer.getCollection().getFullName().equals(db.getName() + "." + eventsCollection)) {
+                return;
+            }
+            tailer.stop();
+        }
+        DBCollection coll = CappedCollectionTailer.ensureCappedCollection(db, eventsCollection, size);
+        tailer = new CappedCollectionTailer(coll, new CappedCollectionTailer.Listener() {
+            @Override
+            public void onEvent(DBObject doc) {
+                Object name = doc.get(EVENT_ENTITY_NAME);
+                if (name != null) {
+                    LOGGER.debug("Invalidation event for {}", name);
+                    invalidate(name.toString());
+                }
+            }
+
+            @Override
+            public void onReconnect() {
+                // We may have missed some events
+                LOGGER.info("Metadata invalidation events reconnected, clearing cache");
+                clear();
+            }
+        });
+        eventTailer = tailer;
+        tailer.start();
+        LOGGER.info("Metadata invalidation events enabled using {}", coll.getFullName());
+    }
+
+    public synchronized void disableInvalidationEvents() {
+        if (eventTailer != null) {
+            eventTailer.stop();
+            eventTailer = null;
+        }
+    }
+
+    /**
+     * Returns true if invalidation events are enabled, and the event
+     * tailer is working
+     */
+    public boolean isInvalidationEventsHealthy() {
+        CappedCollectionTailer tailer = eventTailer;
+        return tailer != null && tailer.isHealthy();
+    }
+
+    private boolean isVersionLookupNeeded(long now) {
+        return lastVersionLookupTime + getVersionLookupPeriod() < now;
+    }
+
+    private long getVersionLookupPeriod() {
+        CappedCollectionTailer tailer = eventTailer;
+        if (tailer != null && tailer.isHealthy()) {
+            return versionLookupPeriodMsecs * EVENTS_VERSION_LOOKUP_FACTOR;
+        }
+        return versionLookupPeriodMsecs;
+    }
+
+    /**
+     * Called when an entity is changed. Updates the collection version
+     * and the entity change counter in db, writes an invalidation
+     * event if events are enabled, and invalidates the entity.
+     */
+    public void entityChanged(DBCollection collection, String entityName) {
+        CappedCollectionTailer tailer = eventTailer;
+        incrementCollectionVersion(collection, entityName);
+        if (tailer != null) {
+            // The collection version is still updated for nodes that
+            // don't use events
+            try {
+                tailer.getCollection().insert(new BasicDBObject(EVENT_ENTITY_NAME, entityName).
+                        append(EVENT_TIMESTAMP, new Date()), WriteConcern.ACKNOWLEDGED);
+            } catch (RuntimeException e) {
+                LOGGER.error("Cannot write invalidation event for {}", entityName, e);
+            }
+        }
+        invalidate(entityName);
+    }
+
+    /**
+     * Removes all cached data about an entity. Entity versions that
+     * were loaded by the cache are reloaded in the background.
+     */
+    public void invalidate(String entityName) {
+        entityGenerations.computeIfAbsent(entityName, k -> new AtomicLong()).incrementAndGet();
+        namesGeneration.incrementAndGet();
+        Map<EntityVersion, Supplier<EntityMetadata>> reload = new HashMap<>();
+        for (Map.Entry<EntityVersion, CacheEntry> e : cache.entrySet()) {
+            CacheEntry entry = e.getValue();
+            if (entityName.equals(entry.md.getName()) && cache.remove(e.getKey(), entry) && entry.loader != null) {
+                reload.put(e.getKey(), entry.loader);
+            }
+        }
+        entityInfos.remove(entityName);
+        entityVersions.remove(entityName);
+        entityNames.clear();
+        for (Map.Entry<EntityVersion, Supplier<EntityMetadata>> e : reload.entrySet()) {
+            reloadAsync(e.getKey(), e.getValue(), null);
+        }
+    }
+
+    /**
+     * Removes all entries from the cache
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+        entityInfos.clear();
+        entityNames.clear();
+        entityVersions.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.sum();
+    }
+
+    public long getTotalLoadTimeNanos() {
+        return loadTimeNanos.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of lookups that returned an expired entry
+     * while it was being refreshed
+     */
+    public long getStaleHitCount() {
+        return staleHits.sum();
     }
 
     /**
      * Update the collection version in db, and invalidate cache
      */
-    public synchronized void updateCollectionVersion(DBCollection collection) {
+    public void updateCollectionVersion(DBCollection collection) {
+        incrementCollectionVersion(collection, null);
+        clear();
+    }
+
+    /**
+     * Increments the collection version, and if entityName is not
+     * null, the change counter of that entity
+     */
+    private void incrementCollectionVersion(DBCollection collection, String entityName) {
         BasicDBObject query = new BasicDBObject(MongoMetadata.LITERAL_ID, LITERAL_COLL_VER);
-        BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject(LITERAL_COLL_VER, 1));
+        BasicDBObject inc = new BasicDBObject(LITERAL_COLL_VER, 1);
+        if (entityName != null) {
+            inc.append(LITERAL_ENTITY_VERSIONS + "." + escape(entityName), 1);
+        }
+        BasicDBObject update = new BasicDBObject("$inc", inc);
         int nUpdated;
         try {
             WriteResult r = collection.update(query, update);
@@ -126,13 +735,12 @@ public class MetadataCache {
             } catch (Exception e) {
             }
         }
-        cache.clear();
     }
 
     /**
      * Load the cache version from the db.
      */
-    private synchronized Long loadCacheVersion(DBCollection collection) {
+    private DBObject loadCacheVersion(DBCollection collection) {
         BasicDBObject query = new BasicDBObject("_id", "collectionVersion");
         DBObject obj = collection.findOne(query);
         if (obj == null) {
@@ -143,39 +751,99 @@ public class MetadataCache {
                 LOGGER.error("Cannot initialize metadata cache");
             }
         }
-        if (obj != null) {
-            return (Long) obj.get("collectionVersion");
-        } else {
-            return null;
+        return obj;
+    }
+
+    /**
+     * Entity names are used as field names in the collection version
+     * document, so '.' and '$' are escaped
+     */
+    private static String escape(String entityName) {
+        return entityName.replace("%", "%25").replace(".", "%2E").replace("$", "%24");
+    }
+
+    private static String unescape(String s) {
+        return s.replace("%24", "$").replace("%2E", ".").replace("%25", "%");
+    }
+
+    private static Map<String, Long> getEntityVersions(DBObject doc) {
+        Map<String, Long> map = new HashMap<>();
+        Object x = doc.get(LITERAL_ENTITY_VERSIONS);
+        if (x instanceof DBObject) {
+            DBObject versions = (DBObject) x;
+            for (String key : versions.keySet()) {
+                Object value = versions.get(key);
+                if (value instanceof Number) {
+                    map.put(key, ((Number) value).longValue());
+                }
+            }
         }
+        return map;
     }
 
-    private synchronized void fullRefresh(DBCollection collection, long now) {
-        if (lastCacheRefreshTime + cacheTTLMsecs < now) {
-            if (!refreshCollectionVersion(collection, now, true)) {
-                cache.clear();
+    /**
+     * Invalidates the entities whose change counters are different. If
+     * the changes to entity counters don't add up to the change in
+     * collection version, clears the cache.
+     */
+    private void invalidateChangedEntities(long versionDelta,
+                                           Map<String, Long> oldVersions,
+                                           Map<String, Long> newVersions) {
+        Set<String> keys = new HashSet<>(oldVersions.keySet());
+        keys.addAll(newVersions.keySet());
+        long delta = 0;
+        Set<String> changed = new HashSet<>();
+        for (String key : keys) {
+            Long o = oldVersions.get(key);
+            Long n = newVersions.get(key);
+            long d = (n == null ? 0 : n) - (o == null ? 0 : o);
+            if (d != 0) {
+                delta += d;
+                changed.add(unescape(key));
+            }
+        }
+        if (delta == versionDelta) {
+            LOGGER.debug("Invalidating {}", changed);
+            for (String entityName : changed) {
+                invalidate(entityName);
             }
-            lastCacheRefreshTime = now;
+        } else {
+            LOGGER.debug("Collection version changed by {}, entity versions changed by {}, clearing cache", versionDelta, delta);
+            clear();
         }
     }
 
     /**
-     * Refreshes the collection version. Returns true if the cache is
-     * invalidated
+     * Refreshes the collection version. Only one thread reads the
+     * collection version at a time, other threads continue using the
+     * cache. Returns true if the cache is invalidated
      */
-    private synchronized boolean refreshCollectionVersion(DBCollection collection, long now, boolean bypassRecheck) {
-        // Re-check if one of the timers really expired. One of the
-        // other threads might have already initialized it
+    private boolean refreshCollectionVersion(DBCollection collection, long now) {
         boolean ret = false;
-        if (bypassRecheck || lastVersionLookupTime + versionLookupPeriodMsecs < now) {
-            Long v = loadCacheVersion(collection);
-            if (v != null) {
-                if (v != expectedCollectionVersion) {
-                    cache.clear();
-                    expectedCollectionVersion = v;
-                    ret = true;
+        if (versionLookupInProgress.compareAndSet(false, true)) {
+            try {
+                // Re-check if the timer really expired. One of the
+                // other threads might have already refreshed it
+                if (isVersionLookupNeeded(now)) {
+                    DBObject doc = loadCacheVersion(collection);
+                    if (doc != null) {
+                        long v = ((Number) doc.get(LITERAL_COLL_VER)).longValue();
+                        Map<String, Long> entityVersions = getEntityVersions(doc);
+                        Map<String, Long> expected = expectedEntityVersions;
+                        if (expected == null) {
+                            clear();
+                            ret = true;
+                        } else if (v != expectedCollectionVersion) {
+                            invalidateChangedEntities(v - expectedCollectionVersion, expected, entityVersions);
+                            ret = true;
+                        }
+                        expectedCollectionVersion = v;
+                        expectedEntityVersions = entityVersions;
+                        lastVersionLookupTime = now;
+                    }
                 }
-                lastVersionLookupTime = now;
+            } finally {
+                versionLookupInProgress.set(false);
             }
         }
         return ret;
@@ -22,7 +22,9 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.mongodb.*;
+import com.mongodb.util.JSON;
 import com.redhat.lightblue.DataError;
+import com.redhat.lightblue.EntityVersion;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
@@ -36,8 +38,19 @@ import org.bson.BSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class MongoMetadata extends AbstractMetadata {
 
@@ -51,6 +64,17 @@ public class MongoMetadata extends AbstractMetadata {
     private static final String LITERAL_STATUS_VALUE = "status.value";
     private static final String LITERAL_NAME = "name";
     private static final char[] INVALID_COLLECTION_CHARS = {'-', ' ', '.'};
+
+    private static final int PARSER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_PENDING_PARSES = 256;
+
+    /**
+     * Parses metadata documents loaded in bulk. If all parser threads
+     * are busy and the queue is full, the caller parses the document
+     * itself.
+     */
+    private static final ThreadPoolExecutor parser = createParser();
+
     private final transient DBCollection collection;
     private final transient BSONParser mdParser;
     private final Factory factory;
@@ -85,37 +109,92 @@ public class MongoMetadata extends AbstractMetadata {
 
         Error.push("getEntityMetadata(" + entityName + ":" + version + ")");
         try {
-            EntityMetadata md;
+            if (cache != null && version != null && version.length() > 0) {
+                final String v = version;
+                return cache.lookupOrLoad(collection, entityName, version, () -> loadEntityMetadata(entityName, v));
+            }
+            EntityMetadata md = loadEntityMetadata(entityName, version);
             if (cache != null) {
-                md = cache.lookup(collection, entityName, version);
-                if (md != null) {
-                    return md;
-                }
+                cache.put(md);
             }
+            return md;
+        } catch (Error | IllegalArgumentException e) {
+            // rethrow lightblue error or IllegalArgumentException
+            throw e;
+        } catch (Exception e) {
+            throw analyzeException(e, MetadataConstants.ERR_ILL_FORMED_METADATA);
+        } finally {
+            Error.pop();
+        }
+    }
 
-            EntityInfo info = getEntityInfo(entityName);
-            if (version == null || version.length() == 0) {
-                if (info.getDefaultVersion() == null || info.getDefaultVersion().length() == 0) {
-                    throw new IllegalArgumentException(LITERAL_VERSION);
+    /**
+     * Returns metadata for all the given entity versions. Entity
+     * versions that are not in the cache are read from the db with a
+     * single query, and parsed in parallel by the parser threads.
+     * Entity versions without a version are resolved to their default
+     * versions one by one.
+     */
+    public List<EntityMetadata> getEntityMetadata(List<EntityVersion> entityVersions) {
+        Error.push("getEntityMetadata(" + entityVersions.size() + " entities)");
+        try {
+            EntityMetadata[] result = new EntityMetadata[entityVersions.size()];
+            List<Integer> missing = new ArrayList<>();
+            List<String> ids = new ArrayList<>();
+            for (int i = 0; i < result.length; i++) {
+                EntityVersion ev = entityVersions.get(i);
+                if (ev.getEntity() == null || ev.getEntity().length() == 0) {
+                    throw new IllegalArgumentException(LITERAL_ENTITY_NAME);
+                }
+                if (ev.getVersion() == null || ev.getVersion().length() == 0) {
+                    result[i] = getEntityMetadata(ev.getEntity(), ev.getVersion());
                 } else {
-                    version = info.getDefaultVersion();
+                    if (cache != null) {
+                        result[i] = cache.lookup(collection, ev.getEntity(), ev.getVersion());
+                    }
+                    if (result[i] == null) {
+                        missing.add(i);
+                        ids.add(ev.getEntity() + BSONParser.DELIMITER_ID);
+                        ids.add(ev.getEntity() + BSONParser.DELIMITER_ID + ev.getVersion());
+                    }
                 }
             }
-
-            EntitySchema schema;
-
-            BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID + version);
-            DBObject es = collection.findOne(query);
-            if (es != null) {
-                schema = mdParser.parseEntitySchema(es);
-            } else {
-                throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
-            }
-            md = new EntityMetadata(info, schema);
-            if (cache != null) {
-                cache.put(md);
+            if (!missing.isEmpty()) {
+                // Anything invalidated while loading is not cached
+                MetadataCache.Snapshot snapshot = null;
+                if (cache != null) {
+                    String[] names = new String[missing.size()];
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = entityVersions.get(missing.get(i)).getEntity();
+                    }
+                    snapshot = cache.snapshot(names);
+                }
+                Map<Object, DBObject> docs = new HashMap<>();
+                try (DBCursor cursor = collection.find(new BasicDBObject(LITERAL_ID, new BasicDBObject("$in", ids)))) {
+                    while (cursor.hasNext()) {
+                        DBObject doc = cursor.next();
+                        docs.put(doc.get(LITERAL_ID), doc);
+                    }
+                }
+                List<Callable<EntityMetadata>> parses = new ArrayList<>(missing.size());
+                for (Integer i : missing) {
+                    EntityVersion ev = entityVersions.get(i);
+                    parses.add(() -> parseEntityMetadata(ev.getEntity(), ev.getVersion(),
+                            docs.get(ev.getEntity() + BSONParser.DELIMITER_ID),
+                            docs.get(ev.getEntity() + BSONParser.DELIMITER_ID + ev.getVersion())));
+                }
+                List<EntityMetadata> parsed = parseAll(parses);
+                for (int n = 0; n < parsed.size(); n++) {
+                    result[missing.get(n)] = parsed.get(n);
+                }
+                if (cache != null) {
+                    for (Integer i : missing) {
+                        EntityVersion ev = entityVersions.get(i);
+                        cache.put(result[i], snapshot, () -> loadEntityMetadata(ev.getEntity(), ev.getVersion()));
+                    }
+                }
             }
-            return md;
+            return Arrays.asList(result);
         } catch (Error | IllegalArgumentException e) {
             // rethrow lightblue error or IllegalArgumentException
             throw e;
@@ -126,8 +205,232 @@ public class MongoMetadata extends AbstractMetadata {
         }
     }
 
+    /**
+     * Loads all active and deprecated entity versions into the cache.
+     * All metadata documents are read with one cursor, and parsed in
+     * parallel by the parser threads.
+     *
+     * If snapshotFile is not null, the metadata documents are also
+     * written to that file together with the collection version. If
+     * the file exists and was written for the current collection
+     * version, documents are read from the file instead of the db.
+     *
+     * @return The number of entity versions loaded into the cache
+     */
+    public int warmUp(File snapshotFile) {
+        if (cache == null) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        // Read the collection version before the documents, so any
+        // change after this point is detected by the cache
+        Long collectionVersion = cache.getCollectionVersion(collection);
+        // Anything invalidated while loading is not cached
+        MetadataCache.Snapshot snapshot = cache.snapshot();
+        List<DBObject> docs = null;
+        if (snapshotFile != null && collectionVersion != null) {
+            docs = readSnapshot(snapshotFile, collectionVersion);
+        }
+        if (docs == null) {
+            docs = new ArrayList<>();
+            try (DBCursor cursor = collection.find(new BasicDBObject(LITERAL_NAME, new BasicDBObject("$exists", 1)))) {
+                while (cursor.hasNext()) {
+                    docs.add(cursor.next());
+                }
+            }
+            if (snapshotFile != null && collectionVersion != null) {
+                writeSnapshot(snapshotFile, collectionVersion, docs);
+            }
+        }
+        Map<String, DBObject> infos = new HashMap<>();
+        List<DBObject> schemas = new ArrayList<>();
+        for (DBObject doc : docs) {
+            if (doc.get(LITERAL_VERSION) == null) {
+                infos.put((String) doc.get(LITERAL_NAME), doc);
+            } else {
+                Object status = doc.get(LITERAL_STATUS);
+                String statusValue = status instanceof DBObject ? (String) ((DBObject) status).get("value") : null;
+                if (!MetadataParser.toString(MetadataStatus.DISABLED).equals(statusValue)) {
+                    schemas.add(doc);
+                }
+            }
+        }
+        List<Callable<EntityMetadata>> parses = new ArrayList<>(schemas.size());
+        for (DBObject es : schemas) {
+            parses.add(() -> {
+                String name = (String) es.get(LITERAL_NAME);
+                try {
+                    EntitySchema schema = mdParser.parseEntitySchemaCached(es);
+                    DBObject ei = infos.get(name);
+                    return new EntityMetadata(ei == null ? null : mdParser.parseEntityInfo(ei), schema);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Cannot parse {}: {}", es.get(LITERAL_ID), e.toString());
+                    return null;
+                }
+            });
+        }
+        List<EntityMetadata> loaded = parseAll(parses).stream().filter(Objects::nonNull).collect(Collectors.toList());
+        for (EntityMetadata md : loaded) {
+            final String name = md.getName();
+            final String version = md.getVersion().getValue();
+            cache.put(md, snapshot, () -> loadEntityMetadata(name, version));
+        }
+        LOGGER.info("Loaded {} entity versions into metadata cache in {} msecs", loaded.size(), System.currentTimeMillis() - start);
+        return loaded.size();
+    }
+
+    private static final String SNAPSHOT_COLLECTION = "collection";
+    private static final String SNAPSHOT_VERSION = "collectionVersion";
+    private static final String SNAPSHOT_DOCS = "docs";
+
+    /**
+     * Reads metadata documents from the snapshot file. Returns null if
+     * the snapshot does not exist, cannot be read, or it is for another
+     * collection or collection version.
+     */
+    private List<DBObject> readSnapshot(File file, long collectionVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Object x = JSON.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if (x instanceof DBObject) {
+                DBObject snapshot = (DBObject) x;
+                Object v = snapshot.get(SNAPSHOT_VERSION);
+                if (collection.getFullName().equals(snapshot.get(SNAPSHOT_COLLECTION))
+                        && v instanceof Number
+                        && ((Number) v).longValue() == collectionVersion
+                        && snapshot.get(SNAPSHOT_DOCS) instanceof List) {
+                    List<DBObject> docs = new ArrayList<>();
+                    for (Object doc : (List) snapshot.get(SNAPSHOT_DOCS)) {
+                        docs.add((DBObject) doc);
+                    }
+                    LOGGER.info("Using metadata snapshot {} for collection version {}", file, collectionVersion);
+                    return docs;
+                }
+                LOGGER.info("Metadata snapshot {} is out of date", file);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot read metadata snapshot {}: {}", file, e.toString());
+        }
+        return null;
+    }
+
+    private void writeSnapshot(File file, long collectionVersion, List<DBObject> docs) {
+        BasicDBObject snapshot = new BasicDBObject(SNAPSHOT_COLLECTION, collection.getFullName()).
+                append(SNAPSHOT_VERSION, collectionVersion).
+                append(SNAPSHOT_DOCS, docs);
+        try {
+            // Write to a temp file first, so a partial snapshot is never read
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), JSON.serialize(snapshot).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Wrote metadata snapshot {} for collection version {}", file, collectionVersion);
+        } catch (Exception e) {
+            LOGGER.warn("Cannot write metadata snapshot {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Reads and parses the entity info and the entity schema from the
+     * db. If version is null, the default version is loaded. Otherwise,
+     * both documents are read with a single query.
+     */
+    private static ThreadPoolExecutor createParser() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PARSER_THREADS, PARSER_THREADS,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_PARSES),
+                r -> {
+                    Thread t = new Thread(r, "metadata-parser");
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Runs the parse tasks on the parser threads, and returns their
+     * results in order. If a task fails, its exception is rethrown.
+     */
+    private static <T> List<T> parseAll(List<Callable<T>> parses) {
+        List<Future<T>> futures = new ArrayList<>(parses.size());
+        for (Callable<T> x : parses) {
+            futures.add(parser.submit(x));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof java.lang.Error) {
+                throw (java.lang.Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<T> f : futures) {
+                f.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    private EntityMetadata loadEntityMetadata(String entityName, String version) {
+        if (version == null || version.length() == 0) {
+            EntityInfo info = getEntityInfo(entityName);
+            if (info.getDefaultVersion() == null || info.getDefaultVersion().length() == 0) {
+                throw new IllegalArgumentException(LITERAL_VERSION);
+            } else {
+                version = info.getDefaultVersion();
+            }
+        }
+
+        String infoId = entityName + BSONParser.DELIMITER_ID;
+        String schemaId = entityName + BSONParser.DELIMITER_ID + version;
+        DBObject ei = null;
+        DBObject es = null;
+        try (DBCursor cursor = collection.find(new BasicDBObject(LITERAL_ID, new BasicDBObject("$in", Arrays.asList(infoId, schemaId))))) {
+            while (cursor.hasNext()) {
+                DBObject doc = cursor.next();
+                if (infoId.equals(doc.get(LITERAL_ID))) {
+                    ei = doc;
+                } else {
+                    es = doc;
+                }
+            }
+        }
+        return parseEntityMetadata(entityName, version, ei, es);
+    }
+
+    private EntityMetadata parseEntityMetadata(String entityName, String version, DBObject ei, DBObject es) {
+        if (es == null) {
+            throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
+        }
+        EntityInfo info = ei == null ? null : mdParser.parseEntityInfo(ei);
+        EntitySchema schema = mdParser.parseEntitySchemaCached(es);
+        return new EntityMetadata(info, schema);
+    }
+
     @Override
     public EntityInfo getEntityInfo(String entityName) {
+        if (cache != null && entityName != null && entityName.length() > 0) {
+            return cache.lookupEntityInfo(collection, entityName, () -> readEntityInfo(entityName));
+        }
+        return readEntityInfo(entityName);
+    }
+
+    /**
+     * Reads the entity info from the db, bypassing the cache
+     */
+    private EntityInfo readEntityInfo(String entityName) {
         if (entityName == null || entityName.length() == 0) {
             throw new IllegalArgumentException(LITERAL_ENTITY_NAME);
         }
@@ -151,17 +454,30 @@ public class MongoMetadata extends AbstractMetadata {
         }
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public String[] getEntityNames(MetadataStatus... statuses) {
         LOGGER.debug("getEntityNames({})", statuses);
-        Error.push("getEntityNames");
         Set<MetadataStatus> statusSet = new HashSet<>();
         for (MetadataStatus x : statuses) {
             if (x != null) {
                 statusSet.add(x);
             }
         }
+        if (cache != null) {
+            // Build a key independent of the order of statuses
+            List<String> statusList = new ArrayList<>(statusSet.size());
+            for (MetadataStatus x : statusSet) {
+                statusList.add(MetadataParser.toString(x));
+            }
+            Collections.sort(statusList);
+            return cache.lookupEntityNames(collection, statusList.toString(), () -> readEntityNames(statusSet));
+        }
+        return readEntityNames(statusSet);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private String[] readEntityNames(Set<MetadataStatus> statusSet) {
+        Error.push("getEntityNames");
         try {
             if (statusSet.isEmpty()
                     || (statusSet.contains(MetadataStatus.ACTIVE)
@@ -205,6 +521,13 @@ public class MongoMetadata extends AbstractMetadata {
         if (entityName == null || entityName.length() == 0) {
             throw new IllegalArgumentException(LITERAL_ENTITY_NAME);
         }
+        if (cache != null) {
+            return cache.lookupEntityVersions(collection, entityName, () -> readEntityVersions(entityName));
+        }
+        return readEntityVersions(entityName);
+    }
+
+    private VersionInfo[] readEntityVersions(String entityName) {
         Error.push("getEntityVersions(" + entityName + ")");
         DBCursor cursor = null;
         try {
@@ -308,7 +631,7 @@ public class MongoMetadata extends AbstractMetadata {
                     throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
                 }
                 if (cache != null) {
-                    cache.updateCollectionVersion(collection);
+                    cache.entityChanged(collection, md.getName());
                 }
             } catch (Error e) {
                 // rethrow lightblue error
@@ -345,7 +668,7 @@ public class MongoMetadata extends AbstractMetadata {
         Error.push("updateEntityInfo(" + ei.getName() + ")");
         try {
             // Verify entity info exists
-            EntityInfo old = getEntityInfo(ei.getName());
+            EntityInfo old = readEntityInfo(ei.getName());
             if (null == old) {
                 throw Error.get(MongoMetadataConstants.ERR_MISSING_ENTITY_INFO, ei.getName());
             }
@@ -369,7 +692,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw analyzeException(e, MongoMetadataConstants.ERR_DB_ERROR);
             }
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.entityChanged(collection, ei.getName());
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -434,7 +757,7 @@ public class MongoMetadata extends AbstractMetadata {
 
         try {
             // verify entity info exists
-            EntityInfo info = getEntityInfo(md.getName());
+            EntityInfo info = readEntityInfo(md.getName());
 
             if (null == info) {
                 throw Error.get(MongoMetadataConstants.ERR_MISSING_ENTITY_INFO, md.getName());
@@ -462,7 +785,7 @@ public class MongoMetadata extends AbstractMetadata {
                 listener.afterCreateNewSchema(this, md);
             }
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.entityChanged(collection, md.getName());
             }
         } catch (DuplicateKeyException dke) {
             throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
@@ -516,7 +839,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
             }
 
-            EntityInfo info = getEntityInfo(entityName);
+            EntityInfo info = readEntityInfo(entityName);
             if (info.getDefaultVersion() != null && info.getDefaultVersion().contentEquals(version) && newStatus == MetadataStatus.DISABLED) {
                 throw Error.get(MongoMetadataConstants.ERR_DISABLED_DEFAULT_VERSION, entityName + ":" + version);
             }
@@ -534,7 +857,7 @@ public class MongoMetadata extends AbstractMetadata {
             query = new BasicDBObject(LITERAL_ID, md.get(LITERAL_ID));
             WriteResult result = collection.update(query, (DBObject) mdParser.convert(schema), false, false);
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.entityChanged(collection, entityName);
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -570,7 +893,7 @@ public class MongoMetadata extends AbstractMetadata {
             WriteResult r = collection.remove(query);
             LOGGER.debug("Removal result:{}", r);
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.entityChanged(collection, entityName);
             }
         } catch (Exception e) {
             LOGGER.error("Error during delete", e);
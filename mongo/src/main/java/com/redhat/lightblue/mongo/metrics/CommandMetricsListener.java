@@ -0,0 +1,173 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Driver command listener that attributes every command sent to the
+ * server to the operation running in the current thread. The
+ * synchronous driver calls the listener in the thread that runs the
+ * command, so the operation is kept in a thread local. Operations
+ * attach themselves when they start and detach when the controller
+ * returns, restoring the operation that was attached before. Streamed
+ * find results attach their operation only while they are iterated.
+ * Commands run when no operation is attached are not recorded.
+ *
+ * Computing reply sizes requires encoding the reply again, so it is
+ * disabled by default.
+ *
+ * There is one listener per JVM, so client options using it compare
+ * equal and clients can be shared.
+ */
+public class CommandMetricsListener implements CommandListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandMetricsListener.class);
+
+    private static final CommandMetricsListener INSTANCE = new CommandMetricsListener();
+
+    private static final ThreadLocal<OperationMetrics> current = new ThreadLocal<>();
+
+    /**
+     * Collection names of commands in progress in this thread, keyed by
+     * request id
+     */
+    private static final ThreadLocal<Map<Integer, String>> pending = ThreadLocal.withInitial(HashMap::new);
+
+    private volatile boolean recordReplySize = false;
+
+    public static CommandMetricsListener getInstance() {
+        return INSTANCE;
+    }
+
+    private CommandMetricsListener() {
+    }
+
+    public boolean isRecordReplySize() {
+        return recordReplySize;
+    }
+
+    public void setRecordReplySize(boolean b) {
+        recordReplySize = b;
+    }
+
+    /**
+     * Attributes commands run by this thread to the given operation.
+     * Returns the operation that was attached before, which must be
+     * passed to detach, so nested operations restore the outer one.
+     */
+    public static OperationMetrics attach(OperationMetrics metrics) {
+        OperationMetrics previous = current.get();
+        current.set(metrics);
+        return previous;
+    }
+
+    /**
+     * Returns the operation running in the current thread, or null
+     */
+    public static OperationMetrics current() {
+        return current.get();
+    }
+
+    /**
+     * Stops attributing commands to the given operation, if it is the
+     * one attached to this thread, and attaches the previous operation
+     * returned by attach
+     */
+    public static void detach(OperationMetrics metrics, OperationMetrics previous) {
+        if (current.get() == metrics) {
+            if (previous == null) {
+                current.remove();
+                pending.get().clear();
+            } else {
+                current.set(previous);
+            }
+        }
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        if (current.get() != null) {
+            pending.get().put(event.getRequestId(), getCollectionName(event.getCommand()));
+        }
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        OperationMetrics metrics = current.get();
+        if (metrics != null) {
+            String collection = pending.get().remove(event.getRequestId());
+            long replyBytes = recordReplySize ? sizeOf(event.getResponse()) : 0;
+            long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+            LOGGER.debug("{} {}: {} nsecs {} bytes", event.getCommandName(), collection, nanos, replyBytes);
+            metrics.commandCompleted(event.getCommandName(), collection, nanos, replyBytes);
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        OperationMetrics metrics = current.get();
+        if (metrics != null) {
+            String collection = pending.get().remove(event.getRequestId());
+            long nanos = event.getElapsedTime(TimeUnit.NANOSECONDS);
+            LOGGER.debug("{} {}: failed after {} nsecs", event.getCommandName(), collection, nanos);
+            metrics.commandCompleted(event.getCommandName(), collection, nanos, 0);
+        }
+    }
+
+    /**
+     * The first element of a command is the command name, with the
+     * collection name as its value for collection commands
+     */
+    private static String getCollectionName(BsonDocument command) {
+        if (command != null && !command.isEmpty()) {
+            BsonValue value = command.get(command.getFirstKey());
+            if (value instanceof BsonString) {
+                return ((BsonString) value).getValue();
+            }
+        }
+        return null;
+    }
+
+    private static long sizeOf(BsonDocument doc) {
+        if (doc == null) {
+            return 0;
+        }
+        try {
+            return new RawBsonDocument(doc, new BsonDocumentCodec()).getByteBuffer().remaining();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
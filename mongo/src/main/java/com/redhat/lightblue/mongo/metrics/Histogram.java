@@ -0,0 +1,132 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with exponential buckets. Bucket i
+ * counts the samples between 2^(i-1) and 2^i microseconds, so
+ * percentiles are accurate within a factor of two, which is good
+ * enough to tell a 5 msec query from a 500 msec one.
+ */
+public class Histogram {
+
+    public static final int NUM_BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records a sample, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+        long max;
+        do {
+            max = maxNanos.get();
+        } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return b >= NUM_BUCKETS ? NUM_BUCKETS - 1 : b;
+    }
+
+    /**
+     * Returns the upper bound of bucket b, in microseconds
+     */
+    public static long getBucketUpperBoundMicros(int b) {
+        return 1l << b;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sumNanos.sum() / n;
+    }
+
+    public long[] getBucketCounts() {
+        long[] ret = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            ret[i] = buckets.get(i);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns an estimate of the given percentile in nanoseconds. The
+     * estimate is the upper bound of the bucket containing the
+     * percentile, capped by the maximum recorded value.
+     *
+     * @param p A value between 0 and 1
+     */
+    public long getPercentileNanos(double p) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * total);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(getBucketUpperBoundMicros(i) * 1000, maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sumNanos.reset();
+        maxNanos.set(0);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps metrics in memory, and registers each timer and counter as an
+ * MBean with the platform MBean server. Timers are registered as
+ *
+ * <pre>
+ *   com.redhat.lightblue.mongo:type=CRUDMetrics,entity=<entity>,operation=<op>,phase=<phase>
+ * </pre>
+ *
+ * and counters as
+ *
+ * <pre>
+ *   com.redhat.lightblue.mongo:type=CRUDCounters,entity=<entity>,operation=<op>,name=<counter>
+ * </pre>
+ *
+ * MBean names are global, so there is one instance of this registry
+ * per JVM.
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JmxMetricsRegistry.class);
+
+    public static final String DOMAIN = "com.redhat.lightblue.mongo";
+
+    private static final JmxMetricsRegistry INSTANCE = new JmxMetricsRegistry();
+
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public static JmxMetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private JmxMetricsRegistry() {
+    }
+
+    @Override
+    public void recordTime(String entity, String operation, String phase, long nanos) {
+        getTimer(entity, operation, phase).record(nanos);
+    }
+
+    @Override
+    public void increment(String entity, String operation, String counter, long n) {
+        getCounter(entity, operation, counter).add(n);
+    }
+
+    public Timer getTimer(String entity, String operation, String phase) {
+        String name = "type=CRUDMetrics,entity=" + quote(entity) + ",operation=" + quote(operation) + ",phase=" + quote(phase);
+        return timers.computeIfAbsent(name, k -> register(k, new Timer()));
+    }
+
+    public Counter getCounter(String entity, String operation, String counter) {
+        String name = "type=CRUDCounters,entity=" + quote(entity) + ",operation=" + quote(operation) + ",name=" + quote(counter);
+        return counters.computeIfAbsent(name, k -> register(k, new Counter()));
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "\"\"";
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == ',' || c == '=' || c == ':' || c == '"' || c == '*' || c == '?' || c == '\n') {
+                return ObjectName.quote(s);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Registers the mbean. Failures are logged, the metric is still
+     * collected in memory.
+     */
+    private static <T> T register(String name, T mbean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName oname = new ObjectName(DOMAIN + ":" + name);
+            if (server.isRegistered(oname)) {
+                server.unregisterMBean(oname);
+            }
+            server.registerMBean(mbean, oname);
+        } catch (Exception e) {
+            LOGGER.warn("Cannot register mbean {}: {}", name, e.toString());
+        }
+        return mbean;
+    }
+}
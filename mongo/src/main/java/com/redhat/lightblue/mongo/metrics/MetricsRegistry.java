@@ -0,0 +1,70 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+/**
+ * Receives operation metrics from the mongo CRUD controller. Timings
+ * are recorded per entity, operation, and phase. Counters are recorded
+ * per entity and operation.
+ *
+ * Implementations must be thread safe, and should not block, since
+ * they are called in the request path.
+ */
+public interface MetricsRegistry {
+
+    String PHASE_TOTAL = "total";
+    String PHASE_TRANSLATE = "translate";
+    String PHASE_QUERY = "query";
+    String PHASE_ITERATE = "iterate";
+    String PHASE_BULK_WRITE = "bulkWrite";
+    String PHASE_PROJECT = "project";
+    /**
+     * Total time spent in driver commands, as seen by the client
+     */
+    String PHASE_COMMANDS = "commands";
+
+    String COUNTER_DOCUMENTS = "documents";
+    String COUNTER_BYTES = "bytes";
+    String COUNTER_ERRORS = "errors";
+    String COUNTER_ROUND_TRIPS = "roundTrips";
+    String COUNTER_REPLY_BYTES = "replyBytes";
+
+    /**
+     * A registry that drops everything
+     */
+    MetricsRegistry NOOP = new MetricsRegistry() {
+        @Override
+        public void recordTime(String entity, String operation, String phase, long nanos) {
+        }
+
+        @Override
+        public void increment(String entity, String operation, String counter, long n) {
+        }
+    };
+
+    /**
+     * Records the time spent in a phase of an operation
+     */
+    void recordTime(String entity, String operation, String phase, long nanos);
+
+    /**
+     * Adds n to the counter of an operation
+     */
+    void increment(String entity, String operation, String counter, long n);
+}
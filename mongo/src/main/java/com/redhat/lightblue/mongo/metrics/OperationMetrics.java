@@ -0,0 +1,285 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocumentStream;
+
+/**
+ * Collects the metrics of a single CRUD operation, and reports them
+ * to a registry. Phases that run once per operation are reported when
+ * they end. Phases that run once per document, such as iterating and
+ * projecting find results, are accumulated and reported as a single
+ * sample when the operation completes.
+ *
+ * An instance is stored in the operation context under PROP_METRICS,
+ * so code that is called by the controller can add to it. Instances
+ * are used by one request, they are not thread safe.
+ */
+public class OperationMetrics {
+
+    /**
+     * Name of the property for the operation context that keeps the
+     * metrics of the current operation
+     */
+    public static final String PROP_METRICS = "MongoCRUDController:metrics";
+
+    private final MetricsRegistry registry;
+    private final String entity;
+    private final String operation;
+    private final long startNanos;
+    private final Map<String, Long> phaseStart = new HashMap<>();
+    private final Map<String, Long> accumulated = new HashMap<>();
+    private long documents;
+    private long bytes;
+    private long errors;
+    private long roundTrips;
+    private long commandNanos;
+    private long replyBytes;
+    private final Map<String, Integer> commandCounts = new HashMap<>();
+    private boolean completed = false;
+    // The operation attached to the thread when this one started
+    private OperationMetrics outer;
+
+    public OperationMetrics(MetricsRegistry registry, String entity, String operation) {
+        this.registry = registry;
+        this.entity = entity;
+        this.operation = operation;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Creates the metrics for an operation, stores it in the context,
+     * and attaches it to the current thread. The caller must call
+     * detach when it returns.
+     */
+    public static OperationMetrics start(CRUDOperationContext ctx, MetricsRegistry registry, String operation) {
+        OperationMetrics m = new OperationMetrics(registry == null ? MetricsRegistry.NOOP : registry, ctx.getEntityName(), operation);
+        ctx.setProperty(PROP_METRICS, m);
+        m.outer = CommandMetricsListener.attach(m);
+        return m;
+    }
+
+    /**
+     * Detaches this operation from the current thread, and attaches the
+     * operation that was running when this one started. The operation
+     * may complete later, if its results are streamed.
+     */
+    public void detach() {
+        CommandMetricsListener.detach(this, outer);
+    }
+
+    /**
+     * Returns the metrics of the current operation. If the operation
+     * was not started with metrics, returns an instance that reports
+     * nowhere.
+     */
+    public static OperationMetrics get(CRUDOperationContext ctx) {
+        Object x = ctx.getProperty(PROP_METRICS);
+        return x instanceof OperationMetrics ? (OperationMetrics) x : new OperationMetrics(MetricsRegistry.NOOP, ctx.getEntityName(), null);
+    }
+
+    public String getEntity() {
+        return entity;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Starts timing a phase
+     */
+    public void begin(String phase) {
+        phaseStart.put(phase, System.nanoTime());
+    }
+
+    /**
+     * Ends a phase started with begin, and reports its duration
+     */
+    public void end(String phase) {
+        Long start = phaseStart.remove(phase);
+        if (start != null) {
+            registry.recordTime(entity, operation, phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Adds time to a phase that is reported when the operation
+     * completes
+     */
+    public void accumulate(String phase, long nanos) {
+        accumulated.merge(phase, nanos, Long::sum);
+    }
+
+    public void addDocuments(long n) {
+        documents += n;
+    }
+
+    public void addBytes(long n) {
+        bytes += n;
+    }
+
+    public void addErrors(long n) {
+        errors += n;
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Called by the command listener when a command sent to the server
+     * during this operation completes
+     */
+    public void commandCompleted(String commandName, String collection, long nanos, long replyBytes) {
+        roundTrips++;
+        commandNanos += nanos;
+        this.replyBytes += replyBytes;
+        commandCounts.merge(collection == null ? commandName : commandName + ":" + collection, 1, Integer::sum);
+    }
+
+    /**
+     * Number of commands sent to the server during this operation
+     */
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * Total time spent waiting for the server during this operation
+     */
+    public long getCommandNanos() {
+        return commandNanos;
+    }
+
+    public long getReplyBytes() {
+        return replyBytes;
+    }
+
+    /**
+     * Number of commands sent to the server, keyed by command name and
+     * collection name
+     */
+    public Map<String, Integer> getCommandCounts() {
+        return commandCounts;
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Reports the total time, accumulated phases, and counters. Only
+     * the first call has any effect.
+     */
+    public void complete() {
+        if (!completed) {
+            completed = true;
+            registry.recordTime(entity, operation, MetricsRegistry.PHASE_TOTAL, System.nanoTime() - startNanos);
+            if (roundTrips > 0) {
+                registry.recordTime(entity, operation, MetricsRegistry.PHASE_COMMANDS, commandNanos);
+                registry.increment(entity, operation, MetricsRegistry.COUNTER_ROUND_TRIPS, roundTrips);
+            }
+            if (replyBytes > 0) {
+                registry.increment(entity, operation, MetricsRegistry.COUNTER_REPLY_BYTES, replyBytes);
+            }
+            for (Map.Entry<String, Long> entry : accumulated.entrySet()) {
+                registry.recordTime(entity, operation, entry.getKey(), entry.getValue());
+            }
+            if (documents > 0) {
+                registry.increment(entity, operation, MetricsRegistry.COUNTER_DOCUMENTS, documents);
+            }
+            if (bytes > 0) {
+                registry.increment(entity, operation, MetricsRegistry.COUNTER_BYTES, bytes);
+            }
+            if (errors > 0) {
+                registry.increment(entity, operation, MetricsRegistry.COUNTER_ERRORS, errors);
+            }
+        }
+    }
+
+    /**
+     * Returns a stream that counts the documents returned, and completes
+     * the operation metrics when the stream is exhausted or closed. The
+     * operation is attached to the thread only while the stream is
+     * iterated.
+     */
+    public <T> DocumentStream<T> track(DocumentStream<T> stream) {
+        return new DocumentStream<T>() {
+            @Override
+            public boolean hasNext() {
+                OperationMetrics previous = CommandMetricsListener.attach(OperationMetrics.this);
+                try {
+                    boolean ret = stream.hasNext();
+                    if (!ret) {
+                        complete();
+                    }
+                    return ret;
+                } finally {
+                    CommandMetricsListener.detach(OperationMetrics.this, previous);
+                }
+            }
+
+            @Override
+            public T next() {
+                OperationMetrics previous = CommandMetricsListener.attach(OperationMetrics.this);
+                try {
+                    T ret = stream.next();
+                    documents++;
+                    return ret;
+                } finally {
+                    CommandMetricsListener.detach(OperationMetrics.this, previous);
+                }
+            }
+
+            @Override
+            public void close() {
+                OperationMetrics previous = CommandMetricsListener.attach(OperationMetrics.this);
+                try {
+                    stream.close();
+                } finally {
+                    CommandMetricsListener.detach(OperationMetrics.this, previous);
+                    complete();
+                }
+            }
+
+            @Override
+            public void addListener(Consumer<T> listener) {
+                stream.addListener(listener);
+            }
+        };
+    }
+}
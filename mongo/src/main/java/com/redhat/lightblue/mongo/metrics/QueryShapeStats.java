@@ -0,0 +1,251 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+
+/**
+ * Statistics per query shape: execution count, latency histogram,
+ * documents returned, and documents/keys examined from sampled
+ * explains. The statistics are cumulative since the last reset. Use
+ * it to find the query shapes that are worth indexing.
+ *
+ * The number of shapes is bounded. Once the limit is reached,
+ * executions of new shapes are recorded under OTHER_SHAPE.
+ *
+ * There is one instance per JVM, registered as
+ * com.redhat.lightblue.mongo:type=QueryShapes
+ */
+public class QueryShapeStats implements QueryShapeStatsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryShapeStats.class);
+
+    public static final int DEFAULT_MAX_SHAPES = 1000;
+    public static final String OTHER_SHAPE = "<other>";
+
+    private static final QueryShapeStats INSTANCE = new QueryShapeStats();
+
+    static {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JmxMetricsRegistry.DOMAIN + ":type=QueryShapes");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Cannot register query shape mbean: {}", e.toString());
+        }
+    }
+
+    /**
+     * Statistics of a single shape
+     */
+    public static class Shape {
+        private final String entity;
+        private final String shape;
+        private final Histogram latency = new Histogram();
+        private final LongAdder docsReturned = new LongAdder();
+        private final LongAdder explains = new LongAdder();
+        private final LongAdder docsExamined = new LongAdder();
+        private final LongAdder keysExamined = new LongAdder();
+        private final LongAdder explainReturned = new LongAdder();
+
+        Shape(String entity, String shape) {
+            this.entity = entity;
+            this.shape = shape;
+        }
+
+        public String getEntity() {
+            return entity;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        public long getDocsReturned() {
+            return docsReturned.sum();
+        }
+
+        public long getExplainCount() {
+            return explains.sum();
+        }
+
+        /**
+         * Documents examined in sampled explains
+         */
+        public long getDocsExamined() {
+            return docsExamined.sum();
+        }
+
+        /**
+         * Index keys examined in sampled explains
+         */
+        public long getKeysExamined() {
+            return keysExamined.sum();
+        }
+
+        /**
+         * Documents returned in sampled explains
+         */
+        public long getExplainReturned() {
+            return explainReturned.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("entity=%s count=%d p50=%.3fms p99=%.3fms total=%.3fms returned=%d explains=%d examined=%d keys=%d explainReturned=%d shape=%s",
+                    entity, getCount(),
+                    latency.getPercentileNanos(0.5) / 1000000.0,
+                    latency.getPercentileNanos(0.99) / 1000000.0,
+                    latency.getSumNanos() / 1000000.0,
+                    getDocsReturned(), getExplainCount(), getDocsExamined(), getKeysExamined(), getExplainReturned(), shape);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<>();
+    private volatile int maxShapes = DEFAULT_MAX_SHAPES;
+
+    public static QueryShapeStats getInstance() {
+        return INSTANCE;
+    }
+
+    private QueryShapeStats() {
+    }
+
+    public void setMaxShapes(int n) {
+        maxShapes = n;
+    }
+
+    private Shape getShape(String entity, String shape) {
+        String key = entity + " " + shape;
+        Shape s = shapes.get(key);
+        if (s == null) {
+            if (shapes.size() >= maxShapes) {
+                return shapes.computeIfAbsent(entity + " " + OTHER_SHAPE, k -> new Shape(entity, OTHER_SHAPE));
+            }
+            s = shapes.computeIfAbsent(key, k -> new Shape(entity, shape));
+        }
+        return s;
+    }
+
+    /**
+     * Records an execution of a query shape
+     */
+    public void record(String entity, String shape, long nanos, long docsReturned) {
+        Shape s = getShape(entity, shape);
+        s.latency.record(nanos);
+        s.docsReturned.add(docsReturned);
+    }
+
+    /**
+     * Returns true if the next execution of the shape should be
+     * explained, that is, if the shape was explained fewer than once
+     * per sampleRate executions. sampleRate <= 0 disables explains.
+     * The explain is counted when this returns true, because explains
+     * run in the background and are recorded later.
+     */
+    public boolean shouldExplain(String entity, String shape, int sampleRate) {
+        if (sampleRate <= 0) {
+            return false;
+        }
+        Shape s = getShape(entity, shape);
+        if (s.explains.sum() * sampleRate <= s.getCount()) {
+            s.explains.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the results of an explain. Both the 3.x (executionStats)
+     * and 2.6 (nscanned) explain formats are understood.
+     */
+    public void recordExplain(String entity, String shape, DBObject plan) {
+        Shape s = getShape(entity, shape);
+        Object stats = plan.get("executionStats");
+        if (stats instanceof DBObject) {
+            s.docsExamined.add(toLong(((DBObject) stats).get("totalDocsExamined")));
+            s.keysExamined.add(toLong(((DBObject) stats).get("totalKeysExamined")));
+            s.explainReturned.add(toLong(((DBObject) stats).get("nReturned")));
+        } else {
+            s.docsExamined.add(toLong(plan.get("nscannedObjects")));
+            s.keysExamined.add(toLong(plan.get("nscanned")));
+            s.explainReturned.add(toLong(plan.get("n")));
+        }
+    }
+
+    private static long toLong(Object x) {
+        return x instanceof Number ? ((Number) x).longValue() : 0;
+    }
+
+    public List<Shape> getShapes() {
+        return new ArrayList<>(shapes.values());
+    }
+
+    /**
+     * Returns the n shapes with the highest total time
+     */
+    public List<Shape> getTopShapes(int n) {
+        List<Shape> list = getShapes();
+        list.sort(Comparator.comparingLong((Shape s) -> s.latency.getSumNanos()).reversed());
+        return list.size() > n ? new ArrayList<>(list.subList(0, n)) : list;
+    }
+
+    @Override
+    public int getShapeCount() {
+        return shapes.size();
+    }
+
+    @Override
+    public String[] getTopShapesByTotalTime(int n) {
+        List<Shape> list = getTopShapes(n);
+        String[] ret = new String[list.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = list.get(i).toString();
+        }
+        return ret;
+    }
+
+    @Override
+    public void reset() {
+        shapes.clear();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+/**
+ * JMX view of the query shape statistics
+ */
+public interface QueryShapeStatsMBean {
+
+    int getShapeCount();
+
+    /**
+     * Returns the n shapes with the highest total time, one line per
+     * shape
+     */
+    String[] getTopShapesByTotalTime(int n);
+
+    void reset();
+}
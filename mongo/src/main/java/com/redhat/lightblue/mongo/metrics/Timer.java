@@ -0,0 +1,69 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+public class Timer implements TimerMBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final Histogram histogram = new Histogram();
+
+    public void record(long nanos) {
+        histogram.record(nanos);
+    }
+
+    public Histogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public long getCount() {
+        return histogram.getCount();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return histogram.getMeanNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return histogram.getMaxNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMedianMillis() {
+        return histogram.getPercentileNanos(0.5) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP95Millis() {
+        return histogram.getPercentileNanos(0.95) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return histogram.getPercentileNanos(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public void reset() {
+        histogram.reset();
+    }
+}
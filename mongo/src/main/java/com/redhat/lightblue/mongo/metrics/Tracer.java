@@ -0,0 +1,99 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+/**
+ * Emits trace events for the phases of CRUD operations, so profiles
+ * can be lined up with entities and document counts. The default
+ * implementation emits Java Flight Recorder events when the JVM
+ * supports them, and does nothing otherwise. See Tracing.
+ */
+public interface Tracer {
+
+    enum Phase {
+        TRANSLATE_QUERY,
+        CURSOR_FETCH,
+        TO_JSON,
+        TO_BSON,
+        MERGE,
+        BULK_WRITE,
+        RETRY,
+        LOCK,
+        SEQUENCE
+    }
+
+    /**
+     * A phase in progress. Closing the span ends the phase and emits
+     * the event.
+     */
+    interface Span extends AutoCloseable {
+        /**
+         * Returns true if the event will be recorded. Callers can use
+         * this to skip computing expensive attributes.
+         */
+        boolean isRecording();
+
+        Span documents(long n);
+
+        Span bytes(long n);
+
+        /**
+         * Phase specific detail, such as the lock resource or the
+         * sequence name
+         */
+        Span detail(String detail);
+
+        @Override
+        void close();
+    }
+
+    Span NOOP_SPAN = new Span() {
+        @Override
+        public boolean isRecording() {
+            return false;
+        }
+
+        @Override
+        public Span documents(long n) {
+            return this;
+        }
+
+        @Override
+        public Span bytes(long n) {
+            return this;
+        }
+
+        @Override
+        public Span detail(String detail) {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    Tracer NOOP = (phase, entity) -> NOOP_SPAN;
+
+    /**
+     * Starts a phase for the given entity. The entity may be null if
+     * not known.
+     */
+    Span begin(Phase phase, String entity);
+}
@@ -0,0 +1,92 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the tracer used by the CRUD implementation. If the JVM
+ * supports Java Flight Recorder, events are emitted as JFR events
+ * under the "Lightblue/Mongo" category. Otherwise, tracing is a
+ * no-op. JFR events can be disabled by setting the system property
+ * lightblue.mongo.jfr=false.
+ */
+public final class Tracing {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Tracing.class);
+
+    public static final String PROP_JFR = "lightblue.mongo.jfr";
+
+    private static final String JFR_TRACER = "com.redhat.lightblue.mongo.metrics.JfrTracer";
+
+    private static volatile Tracer tracer = createDefault();
+
+    private Tracing() {
+    }
+
+    private static Tracer createDefault() {
+        if (Boolean.valueOf(System.getProperty(PROP_JFR, "true"))) {
+            try {
+                // JfrTracer refers to jdk.jfr classes, so it is only
+                // loaded if they are there. It is only built by the
+                // jfr profile, on JDKs that have jdk.jfr
+                Class.forName("jdk.jfr.Event");
+                Tracer t = (Tracer) Class.forName(JFR_TRACER).newInstance();
+                LOGGER.debug("JFR events enabled");
+                return t;
+            } catch (Throwable t) {
+                LOGGER.debug("JFR events not available: {}", t.toString());
+            }
+        }
+        return Tracer.NOOP;
+    }
+
+    public static Tracer get() {
+        return tracer;
+    }
+
+    public static void set(Tracer t) {
+        tracer = t == null ? Tracer.NOOP : t;
+    }
+
+    /**
+     * Starts a phase for the given entity
+     */
+    public static Tracer.Span begin(Tracer.Phase phase, String entity) {
+        return tracer.begin(phase, entity);
+    }
+
+    /**
+     * Starts a phase for the entity of the operation running in this
+     * thread
+     */
+    public static Tracer.Span begin(Tracer.Phase phase) {
+        return tracer.begin(phase, currentEntity());
+    }
+
+    /**
+     * Returns the entity of the operation running in this thread, or
+     * null
+     */
+    public static String currentEntity() {
+        OperationMetrics m = CommandMetricsListener.current();
+        return m == null ? null : m.getEntity();
+    }
+}
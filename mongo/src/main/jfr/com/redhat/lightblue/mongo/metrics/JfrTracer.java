@@ -0,0 +1,177 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emits Java Flight Recorder events. This class refers to jdk.jfr,
+ * so it must only be loaded through Tracing, which checks that JFR
+ * is available. It is kept out of src/main/java, and only compiled by
+ * the jfr profile on JDKs that have jdk.jfr.
+ */
+public class JfrTracer implements Tracer {
+
+    @Category({"Lightblue", "Mongo"})
+    @StackTrace(false)
+    abstract static class PhaseEvent extends Event {
+        @Label("Entity")
+        String entity;
+
+        @Label("Documents")
+        long documents;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Detail")
+        String detail;
+    }
+
+    @Name("com.redhat.lightblue.mongo.TranslateQuery")
+    @Label("Query Translation")
+    @Description("Translation of a lightblue query to a mongo query")
+    static class TranslateQueryEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.CursorFetch")
+    @Label("Cursor Fetch")
+    @Description("Reading a document from a cursor, including getMore round trips")
+    static class CursorFetchEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.ToJson")
+    @Label("BSON to JSON")
+    @Description("Translation of a mongo document to a JSON document")
+    static class ToJsonEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.ToBson")
+    @Label("JSON to BSON")
+    @Description("Translation of a JSON document to a mongo document")
+    static class ToBsonEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.Merge")
+    @Label("Merge")
+    @Description("Copying hidden and invisible fields from the stored document")
+    static class MergeEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.BulkWrite")
+    @Label("Bulk Write")
+    @Description("Execution of a bulk write operation")
+    static class BulkWriteEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.Retry")
+    @Label("Concurrent Modification Retry")
+    @Description("Retrying documents that failed because of concurrent modifications")
+    static class RetryEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.Lock")
+    @Label("Lock")
+    @Description("A call to the lock collection")
+    static class LockEvent extends PhaseEvent {
+    }
+
+    @Name("com.redhat.lightblue.mongo.Sequence")
+    @Label("Sequence")
+    @Description("Getting the next value of a sequence")
+    static class SequenceEvent extends PhaseEvent {
+    }
+
+    private static final class JfrSpan implements Span {
+        private final PhaseEvent event;
+
+        JfrSpan(PhaseEvent event, String entity) {
+            this.event = event;
+            event.entity = entity;
+            event.begin();
+        }
+
+        @Override
+        public boolean isRecording() {
+            return event.isEnabled();
+        }
+
+        @Override
+        public Span documents(long n) {
+            event.documents += n;
+            return this;
+        }
+
+        @Override
+        public Span bytes(long n) {
+            event.bytes += n;
+            return this;
+        }
+
+        @Override
+        public Span detail(String detail) {
+            event.detail = detail;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public Span begin(Phase phase, String entity) {
+        PhaseEvent event = newEvent(phase);
+        return event.isEnabled() ? new JfrSpan(event, entity) : NOOP_SPAN;
+    }
+
+    private static PhaseEvent newEvent(Phase phase) {
+        switch (phase) {
+            case TRANSLATE_QUERY:
+                return new TranslateQueryEvent();
+            case CURSOR_FETCH:
+                return new CursorFetchEvent();
+            case TO_JSON:
+                return new ToJsonEvent();
+            case TO_BSON:
+                return new ToBsonEvent();
+            case MERGE:
+                return new MergeEvent();
+            case BULK_WRITE:
+                return new BulkWriteEvent();
+            case RETRY:
+                return new RetryEvent();
+            case LOCK:
+                return new LockEvent();
+            default:
+                return new SequenceEvent();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
 import com.redhat.lightblue.util.JsonUtils;
@@ -113,4 +114,29 @@ public class MongoConfigurationParseTest {
             assertEquals(12345, dataConfig.getMaxResultSetSize());
         }
     }
+
+    @Test
+    public void poolOptions() throws IOException {
+        try (InputStream is = Thread.currentThread().getContextClassLoader().getResourceAsStream("parse-test-datasources.json")) {
+            JsonNode node = JsonUtils.json(is);
+
+            MongoConfiguration dataConfig = new MongoConfiguration();
+            dataConfig.initializeFromJson(node.get("mongodata_pool"));
+
+            MongoClientOptions options = dataConfig.getMongoClientOptions();
+            assertEquals(50, options.getConnectionsPerHost());
+            assertEquals(10, options.getMinConnectionsPerHost());
+            assertEquals(20, options.getThreadsAllowedToBlockForConnectionMultiplier());
+            assertEquals(5000, options.getMaxWaitTime());
+            assertEquals(2000, options.getConnectTimeout());
+            assertEquals(60000, options.getSocketTimeout());
+            assertEquals(300000, options.getMaxConnectionIdleTime());
+            assertEquals(3600000, options.getMaxConnectionLifeTime());
+            assertEquals(5000, options.getHeartbeatFrequency());
+            assertEquals(250, options.getMinHeartbeatFrequency());
+            assertEquals(30, options.getLocalThreshold());
+            assertEquals(10000, options.getServerSelectionTimeout());
+            assertEquals(5, dataConfig.getPrewarmConnections());
+        }
+    }
 }
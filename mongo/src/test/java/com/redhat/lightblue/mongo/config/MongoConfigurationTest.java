@@ -128,4 +128,32 @@ public class MongoConfigurationTest {
 
         Assert.assertEquals(config.getDB().toString(), client.getDB("database").toString());
     }
+
+    @Test
+    public void testSharedMongoClient() throws UnknownHostException {
+        MongoConfiguration other = new MongoConfiguration();
+        other.setDatabase("otherDatabase");
+        other.setConnectionsPerHost(10);
+        other.addServerAddress("localhost", 27017);
+        // Same cluster and options, different database
+        Assert.assertSame(config.getDB().getMongo(), other.getDB().getMongo());
+        Assert.assertEquals("otherDatabase", other.getDB().getName());
+
+        // Different options
+        other.setConnectionsPerHost(20);
+        Assert.assertNotSame(config.getDB().getMongo(), other.getDB().getMongo());
+    }
+
+    @Test
+    public void testSharedMongoClientNoCertValidation() throws UnknownHostException {
+        config.setSsl(true);
+        config.setNoCertValidation(true);
+        MongoConfiguration other = new MongoConfiguration();
+        other.setDatabase("database");
+        other.setConnectionsPerHost(10);
+        other.addServerAddress("localhost", 27017);
+        other.setSsl(true);
+        other.setNoCertValidation(true);
+        Assert.assertEquals(config.getMongoClientOptions(), other.getMongoClientOptions());
+    }
 }
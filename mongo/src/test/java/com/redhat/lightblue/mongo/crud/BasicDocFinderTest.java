@@ -39,6 +39,7 @@ import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.metrics.QueryShapeStats;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.JsonUtils;
 
@@ -126,6 +127,39 @@ public class BasicDocFinderTest extends AbstractMongoCrudTest {
         Assert.assertEquals(3, documents.size());
     }
 
+    @Test
+    public void queryShapeStats() throws Exception {
+        insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", "shape1");
+        insert("{\"_id\":\"%s\",\"objectType\":\"test\"}", "shape2");
+        QueryShapeStats stats = QueryShapeStats.getInstance();
+        stats.reset();
+
+        BasicDocFinder finder = new BasicDocFinder(translator, null);
+        finder.setQueryShapeStats(stats);
+        finder.setExplainSampleRate(2);
+        for (String id : new String[]{"shape1", "shape2", "shape1"}) {
+            finder.find(ctx, coll, new BasicDBObject("_id", id), null, null, null, null);
+            streamToList(ctx);
+        }
+
+        Assert.assertEquals(1, stats.getShapeCount());
+        QueryShapeStats.Shape shape = stats.getShapes().get(0);
+        // Explains run in the background
+        for (int i = 0; i < 50 && shape.getExplainReturned() < 2; i++) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals("{_id:?}", shape.getShape());
+        Assert.assertEquals(3, shape.getCount());
+        Assert.assertEquals(3, shape.getDocsReturned());
+        Assert.assertEquals(2, shape.getExplainCount());
+        // Each explain looks up one _id key and one document
+        Assert.assertEquals(2, shape.getKeysExamined());
+        Assert.assertEquals(2, shape.getDocsExamined());
+        Assert.assertEquals(2, shape.getExplainReturned());
+        Assert.assertEquals(1, stats.getTopShapesByTotalTime(10).length);
+        stats.reset();
+    }
+
     @Test
     public void findOneOfMany() throws IOException, ProcessingException {
         String id = "findOneOfMany";
@@ -0,0 +1,116 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.util.Error;
+
+public class CollectionScanGuardTest extends AbstractMongoCrudTest {
+
+    private void insertDocs(int n) {
+        for (int i = 0; i < n; i++) {
+            coll.insert(new BasicDBObject("field1", "v" + i).append("field2", i));
+        }
+    }
+
+    @Test
+    public void rejectCollectionScan() {
+        insertDocs(10);
+        coll.createIndex(new BasicDBObject("field2", 1));
+        CollectionScanGuard guard = new CollectionScanGuard(CollectionScanGuard.Mode.reject, 5, 60000, 1, 0);
+
+        // Indexed
+        guard.check(null, coll, new BasicDBObject("field2", 1), null).close();
+        try {
+            guard.check(null, coll, new BasicDBObject("field1", "v1"), null);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_COLLECTION_SCAN, e.getErrorCode());
+        }
+
+        // Bypassed
+        ExecutionOptions options = new ExecutionOptions();
+        options.getOptions().put(MongoExecutionOptions.OPT_ALLOW_COLLECTION_SCAN, "true");
+        guard.check(options, coll, new BasicDBObject("field1", "v1"), null).close();
+    }
+
+    @Test
+    public void smallCollectionIsNotGuarded() {
+        insertDocs(3);
+        CollectionScanGuard guard = new CollectionScanGuard(CollectionScanGuard.Mode.reject, 5, 60000, 1, 0);
+        guard.check(null, coll, new BasicDBObject("field1", "v1"), null).close();
+
+        // The size is cached with the plan
+        insertDocs(10);
+        guard.check(null, coll, new BasicDBObject("field1", "v1"), null).close();
+        guard.invalidate();
+        try {
+            guard.check(null, coll, new BasicDBObject("field1", "v1"), null);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_COLLECTION_SCAN, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void throttleCollectionScan() {
+        insertDocs(10);
+        CollectionScanGuard guard = new CollectionScanGuard(CollectionScanGuard.Mode.throttle, 5, 60000, 1, 10);
+        CollectionScanGuard.Permit permit = guard.check(null, coll, new BasicDBObject("field1", "v1"), null);
+        try {
+            // Same shape, different value
+            guard.check(null, coll, new BasicDBObject("field1", "v2"), null);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_COLLECTION_SCAN, e.getErrorCode());
+        }
+        permit.close();
+        guard.check(null, coll, new BasicDBObject("field1", "v2"), null).close();
+    }
+
+    @Test
+    public void parsePlans() {
+        DBObject ixscan = new BasicDBObject("queryPlanner",
+                new BasicDBObject("winningPlan", new BasicDBObject("stage", "FETCH").
+                        append("inputStage", new BasicDBObject("stage", "IXSCAN"))));
+        Assert.assertFalse(CollectionScanGuard.isCollectionScan(ixscan));
+
+        DBObject collscan = new BasicDBObject("queryPlanner",
+                new BasicDBObject("winningPlan", new BasicDBObject("stage", "SORT").
+                        append("inputStage", new BasicDBObject("stage", "COLLSCAN"))));
+        Assert.assertTrue(CollectionScanGuard.isCollectionScan(collscan));
+
+        DBObject or = new BasicDBObject("queryPlanner",
+                new BasicDBObject("winningPlan", new BasicDBObject("stage", "SUBPLAN").
+                        append("inputStage", new BasicDBObject("stage", "OR").
+                                append("inputStages", Arrays.asList(new BasicDBObject("stage", "IXSCAN"),
+                                        new BasicDBObject("stage", "COLLSCAN"))))));
+        Assert.assertTrue(CollectionScanGuard.isCollectionScan(or));
+
+        Assert.assertTrue(CollectionScanGuard.isCollectionScan(new BasicDBObject("cursor", "BasicCursor")));
+        Assert.assertFalse(CollectionScanGuard.isCollectionScan(new BasicDBObject("cursor", "BtreeCursor field2_1")));
+    }
+}
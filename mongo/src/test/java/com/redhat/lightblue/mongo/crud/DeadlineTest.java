@@ -0,0 +1,149 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.WriteConcern;
+import com.redhat.lightblue.ExecutionOptions;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.Error;
+
+public class DeadlineTest extends AbstractMongoCrudTest {
+
+    private CRUDOperationContext ctx(String deadlineMS) {
+        ExecutionOptions options = new ExecutionOptions();
+        if (deadlineMS != null) {
+            options.getOptions().put(MongoExecutionOptions.OPT_DEADLINE_MS, deadlineMS);
+        }
+        return new CRUDOperationContext(CRUDOperation.UPDATE, COLL_NAME, factory, null, options) {
+            @Override
+            public EntityMetadata getEntityMetadata(String entityName) {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void noDeadlineTest() throws Exception {
+        CRUDOperationContext ctx = ctx(null);
+        Deadline d = Deadline.start(ctx);
+        try {
+            Assert.assertSame(Deadline.NONE, d);
+            Assert.assertSame(Deadline.NONE, Deadline.get(ctx));
+            Assert.assertSame(Deadline.NONE, Deadline.current());
+            Assert.assertFalse(d.isExpired());
+            Assert.assertEquals(500, d.maxTimeMS(500, "find"));
+            Assert.assertEquals(0, d.maxTimeMS(0, "find"));
+            Assert.assertNull(d.writeConcern(null, coll));
+            Assert.assertSame(WriteConcern.MAJORITY, d.writeConcern(WriteConcern.MAJORITY, coll));
+        } finally {
+            Deadline.end(d);
+        }
+    }
+
+    @Test
+    public void maxTimeTest() throws Exception {
+        CRUDOperationContext ctx = ctx("10000");
+        Deadline d = Deadline.start(ctx);
+        try {
+            Assert.assertTrue(d.isSet());
+            Assert.assertSame(d, Deadline.get(ctx));
+            Assert.assertSame(d, Deadline.current());
+            long t = d.maxTimeMS(0, "find");
+            Assert.assertTrue(t > 0 && t <= 10000);
+            Assert.assertEquals(100, d.maxTimeMS(100, "find"));
+            Assert.assertTrue(d.maxTimeMS(60000, "find") <= 10000);
+        } finally {
+            Deadline.end(d);
+        }
+        Assert.assertSame(Deadline.NONE, Deadline.current());
+    }
+
+    @Test
+    public void nestedTest() throws Exception {
+        Deadline outer = Deadline.start(ctx("10000"));
+        try {
+            Deadline inherited = Deadline.start(ctx(null));
+            Assert.assertTrue(inherited.isSet());
+            Assert.assertTrue(inherited.remainingMS() <= 10000);
+            Deadline.end(inherited);
+            Assert.assertSame(outer, Deadline.current());
+
+            // An inner operation cannot extend the outer deadline
+            Deadline inner = Deadline.start(ctx("60000"));
+            Assert.assertTrue(inner.remainingMS() <= 10000);
+            Deadline.end(inner);
+            Assert.assertSame(outer, Deadline.current());
+        } finally {
+            Deadline.end(outer);
+        }
+        Assert.assertSame(Deadline.NONE, Deadline.current());
+    }
+
+    @Test
+    public void expiredTest() throws Exception {
+        CRUDOperationContext ctx = ctx("1");
+        Deadline d = Deadline.start(ctx);
+        try {
+            Thread.sleep(10);
+            Assert.assertTrue(d.isExpired());
+            Assert.assertEquals(0, d.remainingMS());
+            Assert.assertTrue(d.expired(ctx, "update"));
+            Assert.assertTrue(d.expired(ctx, "update"));
+            // The error is reported once
+            Assert.assertEquals(1, ctx.getErrors().size());
+            Assert.assertEquals(MongoCrudConstants.ERR_DEADLINE_EXCEEDED, ctx.getErrors().get(0).getErrorCode());
+            try {
+                d.maxTimeMS(0, "find");
+                Assert.fail();
+            } catch (Error e) {
+                Assert.assertEquals(MongoCrudConstants.ERR_DEADLINE_EXCEEDED, e.getErrorCode());
+            }
+            // Lock waits end at the deadline
+            MongoLocking locking = new MongoLocking(db.getCollection("deadlineLocks"));
+            Assert.assertTrue(locking.acquire("caller1", "rsc", null));
+            long start = System.currentTimeMillis();
+            Assert.assertFalse(locking.acquire("caller2", "rsc", null, 5000));
+            Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+        } finally {
+            Deadline.end(d);
+        }
+    }
+
+    @Test
+    public void writeConcernTest() throws Exception {
+        Deadline d = Deadline.start(ctx("10000"));
+        try {
+            // Not replicated, unchanged
+            Assert.assertSame(WriteConcern.ACKNOWLEDGED, d.writeConcern(WriteConcern.ACKNOWLEDGED, coll));
+            WriteConcern wc = d.writeConcern(WriteConcern.MAJORITY, coll);
+            Assert.assertEquals("majority", wc.getWString());
+            Assert.assertTrue(wc.getWtimeout() > 0 && wc.getWtimeout() <= 10000);
+            // A shorter wtimeout is kept
+            WriteConcern shorter = new WriteConcern(2, 100);
+            Assert.assertSame(shorter, d.writeConcern(shorter, coll));
+        } finally {
+            Deadline.end(d);
+        }
+    }
+}
@@ -21,6 +21,7 @@ package com.redhat.lightblue.mongo.crud;
 import com.fasterxml.jackson.databind.JsonNode;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -79,4 +80,18 @@ public class GeneratorSupportTest extends AbstractMongoCrudTest {
         value = ss.generateValue(md, vg);
         Assert.assertEquals("2", value.toString());
     }
+
+    @Test
+    public void testSeqValues() throws Exception {
+        MongoSequenceSupport ss = controller.getExtensionInstance(ValueGeneratorSupport.class);
+        EntityMetadata md = getMd("./testMetadata.json");
+        ValueGenerator vg = new ValueGenerator(ValueGenerator.ValueGeneratorType.IntSequence);
+        vg.getProperties().setProperty("name", "testValues");
+        vg.getProperties().setProperty("increment", "2");
+        List<Object> values = ss.generateValues(md, vg, 3);
+        Assert.assertEquals("[1, 3, 5]", values.toString());
+        Assert.assertEquals("7", ss.generateValue(md, vg).toString());
+        Assert.assertEquals(0, ss.generateValues(md, vg, 0).size());
+        Assert.assertEquals("9", ss.generateValue(md, vg).toString());
+    }
 }
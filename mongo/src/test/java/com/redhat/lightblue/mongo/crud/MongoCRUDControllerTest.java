@@ -28,6 +28,8 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.junit.Assert;
@@ -77,6 +79,7 @@ import com.redhat.lightblue.metadata.types.StringType;
 import com.redhat.lightblue.mongo.common.DBResolver;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
 import com.redhat.lightblue.mongo.config.MongoConfiguration;
+import com.redhat.lightblue.mongo.metrics.MetricsRegistry;
 import com.redhat.lightblue.query.Projection;
 import com.redhat.lightblue.query.QueryExpression;
 import com.redhat.lightblue.util.Error;
@@ -780,6 +783,50 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         return l;
     }
     
+    private static class RecordingRegistry implements MetricsRegistry {
+        final Map<String, Long> times = new ConcurrentHashMap<>();
+        final Map<String, Long> counters = new ConcurrentHashMap<>();
+
+        @Override
+        public void recordTime(String entity, String operation, String phase, long nanos) {
+            times.merge(entity + ":" + operation + ":" + phase, 1l, Long::sum);
+        }
+
+        @Override
+        public void increment(String entity, String operation, String counter, long n) {
+            counters.merge(entity + ":" + operation + ":" + counter, n, Long::sum);
+        }
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        RecordingRegistry registry = new RecordingRegistry();
+        controller.setMetricsRegistry(registry);
+        EntityMetadata md = getMd("./testMetadata.json");
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+        ctx.add(md);
+        addDocument(ctx, new JsonDoc(loadJsonNode("./testdata1.json")));
+        controller.insert(ctx, projection("{'field':'_id'}"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:insert:total"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:insert:translate"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:insert:bulkWrite"));
+        Assert.assertEquals(Long.valueOf(1), registry.counters.get("test:insert:documents"));
+
+        ctx = new TestCRUDOperationContext(CRUDOperation.FIND);
+        ctx.add(md);
+        controller.find(ctx, query("{'field':'field1','op':'=','rvalue':'f1'}"),
+                projection("{'field':'*','recursive':1}"), null, null, null);
+        // Find metrics are reported after the results are read
+        Assert.assertNull(registry.times.get("test:find:total"));
+        Assert.assertEquals(1, streamToList(ctx).size());
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:find:total"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:find:query"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:find:iterate"));
+        Assert.assertEquals(Long.valueOf(1), registry.times.get("test:find:project"));
+        Assert.assertEquals(Long.valueOf(1), registry.counters.get("test:find:documents"));
+        Assert.assertTrue(registry.counters.get("test:find:bytes") > 0);
+    }
+
     @Test
     public void insertTest() throws Exception {
         EntityMetadata md = getMd("./testMetadata.json");
@@ -0,0 +1,172 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.crud.CRUDHealth;
+import com.redhat.lightblue.mongo.common.DBResolver;
+import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.config.MongoConfiguration;
+
+public class MongoHealthCheckerTest extends AbstractMongoCrudTest {
+
+    /**
+     * Resolves every configuration to the test db, counting the calls,
+     * and delaying the ones for the slow database
+     */
+    private class TestResolver implements DBResolver {
+        private final List<MongoConfiguration> configs = new ArrayList<>();
+        private final AtomicInteger calls = new AtomicInteger();
+        private final String slowDatabase;
+        private final long delay;
+
+        TestResolver(String slowDatabase, long delay, String... databases) throws UnknownHostException {
+            this.slowDatabase = slowDatabase;
+            this.delay = delay;
+            for (String d : databases) {
+                MongoConfiguration cfg = new MongoConfiguration();
+                cfg.addServerAddress("localhost", 27777);
+                cfg.setDatabase(d);
+                configs.add(cfg);
+            }
+        }
+
+        @Override
+        public DB get(MongoDataStore store) {
+            calls.incrementAndGet();
+            if (store.getDatabaseName().equals(slowDatabase)) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return db;
+        }
+
+        @Override
+        public MongoConfiguration getConfiguration(MongoDataStore store) {
+            return configs.get(0);
+        }
+
+        @Override
+        public Collection<MongoConfiguration> getConfigurations() {
+            return configs;
+        }
+    }
+
+    @Test
+    public void healthIsCachedTest() throws Exception {
+        TestResolver resolver = new TestResolver(null, 0, "db1", "db2");
+        MongoHealthChecker checker = new MongoHealthChecker(resolver, 60000, 0, 1000, 0);
+        try {
+            Assert.assertTrue(checker.getHealth().isHealthy());
+            Assert.assertEquals(2, resolver.calls.get());
+            Assert.assertTrue(checker.getHealth().isHealthy());
+            Assert.assertEquals(2, resolver.calls.get());
+        } finally {
+            checker.stop();
+        }
+    }
+
+    @Test
+    public void noRefreshChecksEveryTimeTest() throws Exception {
+        TestResolver resolver = new TestResolver(null, 0, "db1");
+        MongoHealthChecker checker = new MongoHealthChecker(resolver, 0, 0, 1000, 0);
+        checker.getHealth();
+        checker.getHealth();
+        Assert.assertEquals(2, resolver.calls.get());
+    }
+
+    @Test
+    public void slowDatabaseDoesNotBlockTest() throws Exception {
+        TestResolver resolver = new TestResolver("slow", 2000, "slow", "fast");
+        MongoHealthChecker checker = new MongoHealthChecker(resolver, 0, 0, 200, 0);
+        long start = System.currentTimeMillis();
+        CRUDHealth health = checker.getHealth();
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        Assert.assertFalse(health.isHealthy());
+        // The pending check is reused, not started again
+        checker.getHealth();
+        Assert.assertEquals(3, resolver.calls.get());
+    }
+
+    @Test
+    public void staleHealthIsNotOkTest() throws Exception {
+        TestResolver resolver = new TestResolver(null, 0, "db1");
+        MongoHealthChecker checker = new MongoHealthChecker(resolver, 60000, 50, 1000, 0);
+        try {
+            Assert.assertTrue(checker.getHealth().isHealthy());
+            Thread.sleep(100);
+            Assert.assertFalse(checker.getHealth().isHealthy());
+        } finally {
+            checker.stop();
+        }
+    }
+
+    private static DBObject member(String name, int state, String stateStr, long optime) {
+        return new BasicDBObject("name", name).append("state", state).append("stateStr", stateStr).
+                append("health", 1.0).append("optimeDate", new Date(optime));
+    }
+
+    @Test
+    public void replicaSetDetailsTest() throws Exception {
+        List<DBObject> members = new ArrayList<>();
+        members.add(member("h1:27017", 1, "PRIMARY", 10000));
+        members.add(member("h2:27017", 2, "SECONDARY", 9000));
+        members.add(member("h3:27017", 2, "SECONDARY", 4000));
+
+        MongoHealthChecker.DatabaseHealth h = new MongoHealthChecker.DatabaseHealth();
+        List<String> details = MongoHealthChecker.replicaSetDetails("rs0", members, 0, h);
+        Assert.assertTrue(h.healthy);
+        Assert.assertEquals("replSet rs0", details.get(0));
+        Assert.assertEquals("member h1:27017:PRIMARY", details.get(1));
+        Assert.assertEquals("member h2:27017:SECONDARY lag=1000ms", details.get(2));
+        Assert.assertEquals("member h3:27017:SECONDARY lag=6000ms", details.get(3));
+
+        h = new MongoHealthChecker.DatabaseHealth();
+        details = MongoHealthChecker.replicaSetDetails("rs0", members, 5000, h);
+        Assert.assertFalse(h.healthy);
+        Assert.assertEquals("member h3:27017:SECONDARY lag=6000ms LAGGING", details.get(3));
+
+        members.remove(0);
+        h = new MongoHealthChecker.DatabaseHealth();
+        details = MongoHealthChecker.replicaSetDetails("rs0", members, 0, h);
+        Assert.assertFalse(h.healthy);
+        Assert.assertEquals("replSet rs0:NO_PRIMARY", details.get(0));
+    }
+
+    @Test
+    public void poolDetailsTest() {
+        Assert.assertEquals("pool h1:27017:inUse=5/100 (5%) waiting=0", MongoHealthChecker.poolDetails("h1:27017", 5, 100, 0));
+        Assert.assertEquals("pool h1:27017:inUse=100/100 (100%) waiting=3 SATURATED", MongoHealthChecker.poolDetails("h1:27017", 100, 100, 3));
+    }
+}
@@ -20,6 +20,9 @@ package com.redhat.lightblue.mongo.crud;
 
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
 import com.redhat.lightblue.mongo.crud.MongoLocking;
 
 import org.junit.Assert;
@@ -86,4 +89,75 @@ public class MongoLockingTest extends AbstractMongoCrudTest {
         locking.ping("1", "rsc1");
     }
 
+    @Test
+    public void blockingAcquireTimeoutTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        long t = System.currentTimeMillis();
+        Assert.assertFalse(locking.acquire("2", "rsc1", null, 200));
+        Assert.assertTrue(System.currentTimeMillis() - t >= 200);
+        Assert.assertTrue(locking.release("1", "rsc1"));
+    }
+
+    @Test
+    public void blockingAcquireReleaseTest() throws Exception {
+        final MongoLocking locking = new MongoLocking(coll, true);
+        // Make sure the waiter is woken up by the release, not by polling
+        locking.setPollInterval(60000);
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        final boolean[] result = new boolean[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                result[0] = locking.acquire("2", "rsc1", null, 10000);
+            }
+        };
+        long t = System.currentTimeMillis();
+        waiter.start();
+        Thread.sleep(100);
+        Assert.assertTrue(locking.release("1", "rsc1"));
+        waiter.join();
+        Assert.assertTrue(result[0]);
+        Assert.assertTrue(System.currentTimeMillis() - t < 5000);
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void blockingAcquireExpirationTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll, true);
+        locking.setPollInterval(60000);
+        Assert.assertTrue(locking.acquire("1", "rsc1", 100l));
+        long t = System.currentTimeMillis();
+        Assert.assertTrue(locking.acquire("2", "rsc1", null, 10000));
+        Assert.assertTrue(System.currentTimeMillis() - t < 5000);
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void blockingAcquireNoTimeoutTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll, true);
+        locking.setPollInterval(50);
+        Assert.assertTrue(locking.acquire("1", "rsc1", 300l));
+        // Long.MAX_VALUE waits until the lock expires
+        Assert.assertTrue(locking.acquire("2", "rsc1", null, Long.MAX_VALUE));
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void releaseEventTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll, true);
+        locking.enableReleaseEvents(db, "lockEvents", MongoLocking.DEFAULT_EVENTS_COLLECTION_SIZE);
+        DBCollection events = db.getCollection("lockEvents");
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertFalse(locking.release("1", "rsc1"));
+        Assert.assertTrue(locking.release("1", "rsc1"));
+        // Events are written unacknowledged
+        BasicDBObject q = new BasicDBObject(MongoLocking.RESOURCEID, "rsc1");
+        for (int i = 0; i < 20 && events.count(q) == 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, events.count(q));
+        Assert.assertEquals(coll.getFullName(), events.findOne(q).get(MongoLocking.COLLECTION));
+    }
 }
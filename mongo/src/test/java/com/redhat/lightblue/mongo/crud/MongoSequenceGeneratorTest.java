@@ -20,7 +20,11 @@ package com.redhat.lightblue.mongo.crud;
 
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+
 import com.redhat.lightblue.mongo.crud.MongoSequenceGenerator;
+import com.redhat.lightblue.mongo.metrics.Tracing;
+import com.redhat.lightblue.mongo.metrics.TracingTest;
 
 import org.junit.Assert;
 
@@ -38,4 +42,69 @@ public class MongoSequenceGeneratorTest extends AbstractMongoCrudTest {
         Assert.assertEquals(101, g.getNextSequenceValue("s2", 1234, 123));
         Assert.assertEquals(-990, g.getNextSequenceValue("s3", 123, 123));
     }
+
+    @Test
+    public void blockTest() throws Exception {
+        MongoSequenceGenerator g = new MongoSequenceGenerator(coll);
+
+        Assert.assertEquals(1, g.getNextSequenceValue("b1", 1, 1, 10));
+        // The whole block is reserved in the db
+        Assert.assertEquals(11l, coll.findOne(new BasicDBObject(MongoSequenceGenerator.NAME, "b1")).get(MongoSequenceGenerator.VALUE));
+        for (int i = 2; i <= 10; i++) {
+            Assert.assertEquals(i, g.getNextSequenceValue("b1", 1, 1, 10));
+        }
+        // Someone else takes a value
+        Assert.assertEquals(11, g.getNextSequenceValue("b1", 1, 1));
+        Assert.assertEquals(12, g.getNextSequenceValue("b1", 1, 1, 10));
+        Assert.assertEquals(22l, coll.findOne(new BasicDBObject(MongoSequenceGenerator.NAME, "b1")).get(MongoSequenceGenerator.VALUE));
+
+        Assert.assertEquals(100, g.getNextSequenceValue("b2", 100, 5, 3));
+        Assert.assertEquals(105, g.getNextSequenceValue("b2", 100, 5, 3));
+        Assert.assertEquals(110, g.getNextSequenceValue("b2", 100, 5, 3));
+        Assert.assertEquals(115, g.getNextSequenceValue("b2", 100, 5, 3));
+    }
+
+    @Test
+    public void blocksPerGeneratorTest() throws Exception {
+        MongoSequenceGenerator g1 = new MongoSequenceGenerator(coll);
+        MongoSequenceGenerator g2 = new MongoSequenceGenerator(coll);
+
+        Assert.assertEquals(1, g1.getNextSequenceValue("p1", 1, 1, 10));
+        // g2 does not use the block reserved by g1
+        Assert.assertEquals(11, g2.getNextSequenceValue("p1", 1, 1, 10));
+        Assert.assertEquals(2, g1.getNextSequenceValue("p1", 1, 1, 10));
+        Assert.assertEquals(12, g2.getNextSequenceValue("p1", 1, 1, 10));
+    }
+
+    @Test
+    public void incrementChangeTest() throws Exception {
+        MongoSequenceGenerator g = new MongoSequenceGenerator(coll);
+
+        Assert.assertEquals(1, g.getNextSequenceValue("c1", 1, 1));
+        Assert.assertEquals(2, g.getNextSequenceValue("c1", 1, 1));
+        coll.update(new BasicDBObject(MongoSequenceGenerator.NAME, "c1"),
+                new BasicDBObject("$set", new BasicDBObject(MongoSequenceGenerator.INC, 10l)));
+        Assert.assertEquals(3, g.getNextSequenceValue("c1", 1, 1));
+        Assert.assertEquals(13, g.getNextSequenceValue("c1", 1, 1));
+        // Sequence is removed, and recreated
+        coll.remove(new BasicDBObject(MongoSequenceGenerator.NAME, "c1"));
+        Assert.assertEquals(5, g.getNextSequenceValue("c1", 5, 1));
+        Assert.assertEquals(6, g.getNextSequenceValue("c1", 5, 1));
+    }
+
+    @Test
+    public void tracingTest() throws Exception {
+        TracingTest.RecordingTracer tracer = new TracingTest.RecordingTracer();
+        Tracing.set(tracer);
+        try {
+            MongoSequenceGenerator g = new MongoSequenceGenerator(coll);
+            g.getNextSequenceValue("t1", 1, 1);
+            g.getNextSequenceValues("t1", 1, 1, 5);
+        } finally {
+            Tracing.set(null);
+        }
+        Assert.assertEquals(2, tracer.spans.size());
+        Assert.assertEquals("SEQUENCE/null/0/t1:1", tracer.spans.get(0));
+        Assert.assertEquals("SEQUENCE/null/0/t1:5", tracer.spans.get(1));
+    }
 }
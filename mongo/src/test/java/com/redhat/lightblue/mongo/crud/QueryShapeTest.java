@@ -0,0 +1,56 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class QueryShapeTest {
+
+    private static DBObject json(String s) {
+        return (DBObject) JSON.parse(s);
+    }
+
+    @Test
+    public void literalsRemoved() {
+        Assert.assertEquals("{a:?,b:{$gt:?}}", QueryShape.of(json("{a:1,b:{$gt:5}}"), null));
+        Assert.assertEquals(QueryShape.of(json("{a:1,b:{$gt:5}}"), null),
+                QueryShape.of(json("{a:'x',b:{$gt:10}}"), null));
+    }
+
+    @Test
+    public void arraysCollapsed() {
+        Assert.assertEquals(QueryShape.of(json("{a:{$in:[1,2,3]}}"), null),
+                QueryShape.of(json("{a:{$in:[4]}}"), null));
+        Assert.assertEquals("{$or:[{a:?},{b:{$elemMatch:{c:?}}}]}",
+                QueryShape.of(json("{$or:[{a:1},{b:{$elemMatch:{c:2}}}]}"), null));
+    }
+
+    @Test
+    public void sortIncluded() {
+        Assert.assertEquals("{a:?} sort:{b:-1}", QueryShape.of(json("{a:1}"), new BasicDBObject("b", -1)));
+        Assert.assertNotEquals(QueryShape.of(json("{a:1}"), new BasicDBObject("b", -1)),
+                QueryShape.of(json("{a:1}"), new BasicDBObject("b", 1)));
+        Assert.assertEquals("{}", QueryShape.of(null, null));
+    }
+}
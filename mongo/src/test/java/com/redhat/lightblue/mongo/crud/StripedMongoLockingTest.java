@@ -0,0 +1,148 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.extensions.synch.InvalidLockException;
+
+public class StripedMongoLockingTest extends AbstractMongoCrudTest {
+
+    @Test
+    public void acquireExclusionTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertFalse(locking.acquire("2", "rsc1", null));
+        Assert.assertTrue(locking.release("1", "rsc1"));
+        Assert.assertTrue(locking.acquire("2", "rsc1", null));
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void reentrantTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        Assert.assertEquals(3, locking.getLockCount("1", "rsc1"));
+        // Reentrant acquisitions are counted locally
+        DBObject lock = coll.findOne(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1"));
+        Assert.assertEquals(1, ((Number) lock.get(MongoLocking.COUNT)).intValue());
+        Assert.assertFalse(locking.release("1", "rsc1"));
+        Assert.assertFalse(locking.release("1", "rsc1"));
+        Assert.assertEquals(1, locking.getLockCount("1", "rsc1"));
+        Assert.assertTrue(locking.release("1", "rsc1"));
+        Assert.assertNull(coll.findOne(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1")));
+    }
+
+    @Test
+    public void reentrantTTLTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", 100l));
+        // The new ttl applies to the lock
+        Assert.assertTrue(locking.acquire("1", "rsc1", 60l * 60l * 1000l));
+        Thread.sleep(150);
+        Assert.assertFalse(locking.acquire("2", "rsc1", null));
+        Assert.assertEquals(2, locking.getLockCount("1", "rsc1"));
+        Assert.assertFalse(locking.release("1", "rsc1"));
+        Assert.assertTrue(locking.release("1", "rsc1"));
+    }
+
+    @Test
+    public void sharedCollectionTest() throws Exception {
+        StripedMongoLocking l1 = new StripedMongoLocking(coll, true);
+        StripedMongoLocking l2 = new StripedMongoLocking(coll, false);
+        Assert.assertTrue(l1.acquire("1", "rsc1", null));
+        Assert.assertTrue(l2.acquire("1", "rsc1", null));
+        Assert.assertFalse(l2.acquire("2", "rsc1", null));
+        Assert.assertEquals(2, l2.getLockCount("1", "rsc1"));
+        // The lock is lost in the db, the release must report it
+        coll.remove(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1"));
+        try {
+            l2.release("1", "rsc1");
+            Assert.fail();
+        } catch (InvalidLockException e) {
+        }
+        // The local hold is gone as well
+        Assert.assertTrue(l1.acquire("2", "rsc1", null));
+        Assert.assertTrue(l1.release("2", "rsc1"));
+    }
+
+    @Test
+    public void lostLockTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", null));
+        coll.remove(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1"));
+        // The local hold of 1 does not block 2
+        Assert.assertTrue(locking.acquire("2", "rsc1", null));
+        Assert.assertFalse(locking.acquire("1", "rsc1", null));
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void expireTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        Assert.assertTrue(locking.acquire("1", "rsc1", 100l));
+        Thread.sleep(110);
+        Assert.assertTrue(locking.acquire("2", "rsc1", null));
+        try {
+            locking.release("1", "rsc1");
+            Assert.fail();
+        } catch (Exception e) {
+        }
+        Assert.assertTrue(locking.release("2", "rsc1"));
+    }
+
+    @Test
+    public void contentionTest() throws Exception {
+        StripedMongoLocking locking = new StripedMongoLocking(coll, true);
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String callerId = Integer.toString(i);
+            Thread t = new Thread(() -> {
+                for (int j = 0; j < 5; j++) {
+                    if (locking.acquire(callerId, "rsc1", null, 10000l)) {
+                        maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                        acquired.incrementAndGet();
+                        holders.decrementAndGet();
+                        locking.release(callerId, "rsc1");
+                    }
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(1, maxHolders.get());
+        Assert.assertEquals(40, acquired.get());
+        Assert.assertNull(coll.findOne(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1")));
+    }
+}
@@ -13,13 +13,20 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.EntitySchema;
 import com.redhat.lightblue.metadata.Enum;
 import com.redhat.lightblue.metadata.EnumValue;
 import com.redhat.lightblue.metadata.Enums;
+import com.redhat.lightblue.metadata.MetadataStatus;
+import com.redhat.lightblue.metadata.SimpleField;
+import com.redhat.lightblue.metadata.Version;
 import com.redhat.lightblue.metadata.parser.Extensions;
 import com.redhat.lightblue.metadata.parser.MetadataParser;
 import com.redhat.lightblue.metadata.parser.PropertyParser;
 import com.redhat.lightblue.metadata.types.DefaultTypes;
+import com.redhat.lightblue.metadata.types.StringType;
+import com.redhat.lightblue.mongo.common.MongoDataStore;
 import com.redhat.lightblue.mongo.metadata.BSONParser;
 import com.redhat.lightblue.test.metadata.parser.FakeDataStoreParser;
 
@@ -149,4 +156,27 @@ public class BSONParserTest {
         Assert.assertTrue(e.getEnumValues().contains(new EnumValue(enumValue2, enumDescription2)));
     }
 
+    @Test
+    public void testParseEntitySchemaCachedReturnsCopies() {
+        Extensions<Object> extensions = new Extensions<>();
+        extensions.addDefaultExtensions();
+        extensions.registerDataStoreParser("mongo", new MongoDataStoreParser<Object>());
+        BSONParser p = new BSONParser(extensions, new DefaultTypes());
+        EntityMetadata md = new EntityMetadata("cached");
+        md.setVersion(new Version("1.0.0", null, "test"));
+        md.setStatus(MetadataStatus.ACTIVE);
+        md.setDataStore(new MongoDataStore(null, null, "testCollection"));
+        md.getFields().put(new SimpleField("field1", StringType.TYPE));
+        Object doc = p.convert(md.getEntitySchema());
+
+        EntitySchema s1 = p.parseEntitySchemaCached(doc);
+        EntitySchema s2 = p.parseEntitySchemaCached(doc);
+        Assert.assertEquals(1, p.getParsedSchemaHitCount());
+        Assert.assertNotSame(s1, s2);
+        // Modifying a returned schema does not affect the cache
+        s2.getFields().put(new SimpleField("field2", StringType.TYPE));
+        EntitySchema s3 = p.parseEntitySchemaCached(doc);
+        Assert.assertNotNull(s3.getFields().getField("field1"));
+        Assert.assertNull(s3.getFields().getField("field2"));
+    }
 }
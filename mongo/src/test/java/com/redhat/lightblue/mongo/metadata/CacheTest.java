@@ -18,6 +18,10 @@
  */
 package com.redhat.lightblue.mongo.metadata;
 
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.redhat.lightblue.crud.*;
 import com.redhat.lightblue.metadata.*;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
@@ -56,12 +60,14 @@ public class CacheTest {
     private MongoMetadata md;
     private final MetadataCache cache = new MetadataCache();
     private DB db;
+    private Factory factory;
+    private Extensions<Object> x;
 
     @Before
     public void setup() throws Exception {
-        Factory factory = new Factory();
+        factory = new Factory();
         factory.addCRUDController("mongo", new TestCRUDController());
-        Extensions<Object> x = new Extensions<>();
+        x = new Extensions<>();
         x.addDefaultExtensions();
         x.registerDataStoreParser("mongo", new MongoDataStoreParser<Object>());
         // 50 msecs version lookup
@@ -181,4 +187,266 @@ public class CacheTest {
         Assert.assertNull(cache.lookup(coll, "testEntity", "1.0.0"));
     }
 
+    private EntityMetadata createEntity(String name, String version) {
+        EntityMetadata e = new EntityMetadata(name);
+        e.setVersion(new Version(version, null, "some text blah blah"));
+        e.setStatus(MetadataStatus.ACTIVE);
+        e.setDataStore(new MongoDataStore(null, null, "testCollection"));
+        e.getFields().put(new SimpleField("field1", StringType.TYPE));
+        return e;
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c = new MetadataCache();
+        c.setMaxSize(2);
+        // Initialize collection version
+        Assert.assertNull(c.lookup(coll, "e0", "1.0.0"));
+        c.put(createEntity("e1", "1.0.0"));
+        c.put(createEntity("e2", "1.0.0"));
+        Thread.sleep(2);
+        // e1 is used, so e2 is evicted
+        Assert.assertNotNull(c.lookup(coll, "e1", "1.0.0"));
+        c.put(createEntity("e3", "1.0.0"));
+        Assert.assertEquals(2, c.size());
+        Assert.assertEquals(1, c.getEvictionCount());
+        Assert.assertNotNull(c.lookup(coll, "e1", "1.0.0"));
+        Assert.assertNull(c.lookup(coll, "e2", "1.0.0"));
+        Assert.assertNotNull(c.lookup(coll, "e3", "1.0.0"));
+        Assert.assertEquals(3, c.getHitCount());
+        Assert.assertEquals(2, c.getMissCount());
+    }
+
+    @Test
+    public void singleFlightLoadTest() throws Exception {
+        final DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        final MetadataCache c = new MetadataCache();
+        // Initialize collection version
+        Assert.assertNull(c.lookup(coll, "e0", "1.0.0"));
+        final AtomicInteger nLoads = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final EntityMetadata[] results = new EntityMetadata[8];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[n] = c.lookupOrLoad(coll, "e1", "1.0.0", () -> {
+                        nLoads.incrementAndGet();
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                        }
+                        return createEntity("e1", "1.0.0");
+                    });
+                }
+            };
+            threads[i].start();
+        }
+        Thread.sleep(100);
+        latch.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(1, nLoads.get());
+        for (EntityMetadata x : results) {
+            Assert.assertSame(results[0], x);
+        }
+        Assert.assertEquals(1, c.getLoadCount());
+    }
+
+    @Test
+    public void invalidateDuringLoadTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c = new MetadataCache();
+        // Initialize collection version
+        Assert.assertNull(c.lookup(coll, "e0", "1.0.0"));
+        // Invalidating another entity while e1 is loaded does not discard e1
+        EntityMetadata e1 = c.lookupOrLoad(coll, "e1", "1.0.0", () -> {
+            c.invalidate("e2");
+            return createEntity("e1", "1.0.0");
+        });
+        Assert.assertSame(e1, c.lookup(coll, "e1", "1.0.0"));
+        // Invalidating e2 while it is loaded discards it
+        c.lookupOrLoad(coll, "e2", "1.0.0", () -> {
+            c.invalidate("e2");
+            return createEntity("e2", "1.0.0");
+        });
+        Assert.assertNull(c.lookup(coll, "e2", "1.0.0"));
+        Assert.assertSame(e1, c.lookup(coll, "e1", "1.0.0"));
+    }
+
+    @Test
+    public void entityInfoCacheTest() throws Exception {
+        md.createNewMetadata(createEntity("testEntity", "1.0.0"));
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+
+        Assert.assertNotNull(md.getEntityInfo("testEntity"));
+        Assert.assertEquals(1, md.getEntityNames().length);
+        Assert.assertEquals(1, md.getEntityVersions("testEntity").length);
+        // Remove the entity behind the cache's back
+        coll.remove(new BasicDBObject("name", "testEntity"));
+        Assert.assertNotNull(md.getEntityInfo("testEntity"));
+        Assert.assertEquals(1, md.getEntityNames().length);
+        Assert.assertEquals(1, md.getEntityVersions("testEntity").length);
+        // Update the version in db
+        coll.update(new BasicDBObject("_id", "collectionVersion"), new BasicDBObject("$inc", new BasicDBObject("collectionVersion", 1)));
+        Thread.sleep(51);
+        Assert.assertNull(md.getEntityInfo("testEntity"));
+        Assert.assertEquals(0, md.getEntityNames().length);
+        Assert.assertEquals(0, md.getEntityVersions("testEntity").length);
+    }
+
+    @Test
+    public void invalidationEventTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        // Another node with events enabled
+        MetadataCache other = new MetadataCache();
+        other.setCacheParams(50l, 100000l);
+        other.enableInvalidationEvents(db, "metadataEvents", MetadataCache.DEFAULT_EVENTS_COLLECTION_SIZE);
+        try {
+            cache.enableInvalidationEvents(db, "metadataEvents", MetadataCache.DEFAULT_EVENTS_COLLECTION_SIZE);
+            md.createNewMetadata(createEntity("e1", "1.0.0"));
+            md.createNewMetadata(createEntity("e2", "1.0.0"));
+            MongoMetadata otherMd = new MongoMetadata(db, x, new DefaultTypes(), factory, other);
+            Assert.assertNotNull(otherMd.getEntityMetadata("e1", "1.0.0"));
+            EntityMetadata e2 = otherMd.getEntityMetadata("e2", "1.0.0");
+            Assert.assertNotNull(other.lookup(coll, "e1", "1.0.0"));
+            Assert.assertNotNull(other.lookup(coll, "e2", "1.0.0"));
+            for (int i = 0; i < 50 && !other.isInvalidationEventsHealthy(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertTrue(other.isInvalidationEventsHealthy());
+
+            md.setMetadataStatus("e1", "1.0.0", MetadataStatus.DEPRECATED, "test");
+            // Only e1 is invalidated on the other node. It may be
+            // reloaded in the background
+            for (int i = 0; i < 50; i++) {
+                EntityMetadata e1 = other.lookup(coll, "e1", "1.0.0");
+                if (e1 == null || e1.getStatus() == MetadataStatus.DEPRECATED) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(MetadataStatus.DEPRECATED, otherMd.getEntityMetadata("e1", "1.0.0").getStatus());
+            Assert.assertSame(e2, other.lookup(coll, "e2", "1.0.0"));
+        } finally {
+            other.disableInvalidationEvents();
+            cache.disableInvalidationEvents();
+        }
+    }
+
+    @Test
+    public void perEntityInvalidationTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        // Another node, polling collection version
+        MetadataCache other = new MetadataCache();
+        other.setCacheParams(50l, 100000l);
+        MongoMetadata otherMd = new MongoMetadata(db, x, new DefaultTypes(), factory, other);
+        md.createNewMetadata(createEntity("e1", "1.0.0"));
+        md.createNewMetadata(createEntity("e2", "1.0.0"));
+        Assert.assertNotNull(otherMd.getEntityMetadata("e1", "1.0.0"));
+        EntityMetadata e2 = otherMd.getEntityMetadata("e2", "1.0.0");
+
+        md.setMetadataStatus("e1", "1.0.0", MetadataStatus.DEPRECATED, "test");
+        Thread.sleep(51);
+        // Only e1 is invalidated
+        Assert.assertSame(e2, other.lookup(coll, "e2", "1.0.0"));
+        Assert.assertEquals(MetadataStatus.DEPRECATED, otherMd.getEntityMetadata("e1", "1.0.0").getStatus());
+
+        // Collection version is changed without an entity, everything is invalidated
+        coll.update(new BasicDBObject("_id", "collectionVersion"), new BasicDBObject("$inc", new BasicDBObject("collectionVersion", 1)));
+        Thread.sleep(51);
+        Assert.assertNull(other.lookup(coll, "e2", "1.0.0"));
+    }
+
+    @Test
+    public void refreshAheadTest() throws Exception {
+        md.createNewMetadata(createEntity("e1", "1.0.0"));
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c = new MetadataCache();
+        // Don't poll collection version, 100 msec TTL
+        c.setCacheParams(1000000l, 100l);
+        MongoMetadata m = new MongoMetadata(db, x, new DefaultTypes(), factory, c);
+        EntityMetadata e1 = m.getEntityMetadata("e1", "1.0.0");
+        Thread.sleep(110);
+        // Expired entry is served while it is reloaded
+        Assert.assertSame(e1, c.lookup(coll, "e1", "1.0.0"));
+        Assert.assertEquals(1, c.getStaleHitCount());
+        EntityMetadata reloaded = null;
+        for (int i = 0; i < 50; i++) {
+            reloaded = c.lookup(coll, "e1", "1.0.0");
+            if (reloaded != e1) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        Assert.assertNotNull(reloaded);
+        Assert.assertNotSame(e1, reloaded);
+        Assert.assertEquals(2, c.getLoadCount());
+    }
+
+    @Test
+    public void warmUpTest() throws Exception {
+        md.createNewMetadata(createEntity("e1", "1.0.0"));
+        md.createNewMetadata(createEntity("e1", "2.0.0"));
+        md.createNewMetadata(createEntity("e2", "1.0.0"));
+        md.setMetadataStatus("e2", "1.0.0", MetadataStatus.DISABLED, "test");
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        File snapshot = File.createTempFile("metadata", ".json");
+        snapshot.delete();
+        try {
+            MetadataCache c = new MetadataCache();
+            c.setCacheParams(50l, 100000l);
+            MongoMetadata m = new MongoMetadata(db, x, new DefaultTypes(), factory, c);
+            Assert.assertEquals(2, m.warmUp(snapshot));
+            Assert.assertTrue(snapshot.exists());
+            Assert.assertNotNull(c.lookup(coll, "e1", "1.0.0"));
+            Assert.assertNotNull(c.lookup(coll, "e1", "2.0.0"));
+            Assert.assertNull(c.lookup(coll, "e2", "1.0.0"));
+            Assert.assertEquals(0, c.getLoadCount());
+
+            // Warm up from the snapshot
+            MetadataCache c2 = new MetadataCache();
+            c2.setCacheParams(50l, 100000l);
+            MongoMetadata m2 = new MongoMetadata(db, x, new DefaultTypes(), factory, c2);
+            coll.remove(new BasicDBObject("name", "e1").append("version.value", "2.0.0"));
+            Assert.assertEquals(2, m2.warmUp(snapshot));
+
+            // Snapshot is out of date after a metadata change
+            md.createNewMetadata(createEntity("e3", "1.0.0"));
+            MetadataCache c3 = new MetadataCache();
+            c3.setCacheParams(50l, 100000l);
+            MongoMetadata m3 = new MongoMetadata(db, x, new DefaultTypes(), factory, c3);
+            Assert.assertEquals(2, m3.warmUp(snapshot));
+            Assert.assertNotNull(c3.lookup(coll, "e3", "1.0.0"));
+            Assert.assertNull(c3.lookup(coll, "e1", "2.0.0"));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void parsedSchemaReuseTest() throws Exception {
+        md.createNewMetadata(createEntity("e1", "1.0.0"));
+        md.createNewMetadata(createEntity("e2", "1.0.0"));
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        EntityMetadata e1 = md.getEntityMetadata("e1", "1.0.0");
+        EntityMetadata e2 = md.getEntityMetadata("e2", "1.0.0");
+        // Collection version changes, but the schemas don't
+        cache.clear();
+        Assert.assertNull(cache.lookup(coll, "e1", "1.0.0"));
+        EntityMetadata e1Reloaded = md.getEntityMetadata("e1", "1.0.0");
+        Assert.assertNotSame(e1, e1Reloaded);
+        Assert.assertSame(e1.getEntitySchema(), e1Reloaded.getEntitySchema());
+
+        // A changed schema is parsed again
+        md.setMetadataStatus("e2", "1.0.0", MetadataStatus.DEPRECATED, "test");
+        cache.clear();
+        EntityMetadata e2Reloaded = md.getEntityMetadata("e2", "1.0.0");
+        Assert.assertNotSame(e2.getEntitySchema(), e2Reloaded.getEntitySchema());
+        Assert.assertEquals(MetadataStatus.DEPRECATED, e2Reloaded.getStatus());
+    }
 }
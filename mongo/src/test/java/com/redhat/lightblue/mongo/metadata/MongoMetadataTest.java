@@ -20,8 +20,10 @@ package com.redhat.lightblue.mongo.metadata;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import org.json.JSONException;
@@ -38,6 +40,7 @@ import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.util.JSON;
+import com.redhat.lightblue.EntityVersion;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.crud.CRUDController;
@@ -160,6 +163,35 @@ public class MongoMetadataTest {
         }
     }
 
+    @Test
+    public void bulkGetEntityMetadataTest() throws Exception {
+        for (String name : new String[]{"e1", "e2"}) {
+            EntityMetadata e = new EntityMetadata(name);
+            e.setVersion(new Version("1.0.0", null, "some text blah blah"));
+            e.setStatus(MetadataStatus.ACTIVE);
+            e.setDataStore(new MongoDataStore(null, null, "testCollection"));
+            e.getFields().put(new SimpleField("field1", StringType.TYPE));
+            e.getEntityInfo().setDefaultVersion("1.0.0");
+            md.createNewMetadata(e);
+        }
+        List<EntityMetadata> list = md.getEntityMetadata(Arrays.asList(new EntityVersion("e1", "1.0.0"),
+                new EntityVersion("e2", null),
+                new EntityVersion("e2", "1.0.0")));
+        Assert.assertEquals(3, list.size());
+        Assert.assertEquals("e1", list.get(0).getName());
+        Assert.assertEquals("1.0.0", list.get(0).getVersion().getValue());
+        Assert.assertEquals("1.0.0", list.get(0).getEntityInfo().getDefaultVersion());
+        Assert.assertEquals("e2", list.get(1).getName());
+        Assert.assertEquals("1.0.0", list.get(1).getVersion().getValue());
+        Assert.assertEquals("e2", list.get(2).getName());
+        try {
+            md.getEntityMetadata(Arrays.asList(new EntityVersion("e1", "2.0.0")));
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoMetadataConstants.ERR_UNKNOWN_VERSION, e.getErrorCode());
+        }
+    }
+
     @Test
     public void defaultVersionTest() throws Exception {
 
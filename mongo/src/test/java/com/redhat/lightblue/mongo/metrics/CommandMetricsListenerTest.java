@@ -0,0 +1,87 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ServerAddress;
+import com.redhat.lightblue.mongo.test.MongoServerExternalResource;
+
+public class CommandMetricsListenerTest {
+
+    @ClassRule
+    public static final MongoServerExternalResource mongo = new MongoServerExternalResource();
+
+    private static MongoClient client;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        client = new MongoClient(new ServerAddress("localhost", mongo.getPort()),
+                MongoClientOptions.builder().addCommandListener(CommandMetricsListener.getInstance()).build());
+    }
+
+    @AfterClass
+    public static void teardown() {
+        client.close();
+    }
+
+    @Test
+    public void attributionTest() throws Exception {
+        Map<String, Long> counters = new ConcurrentHashMap<>();
+        MetricsRegistry registry = new MetricsRegistry() {
+            @Override
+            public void recordTime(String entity, String operation, String phase, long nanos) {
+            }
+
+            @Override
+            public void increment(String entity, String operation, String counter, long n) {
+                counters.merge(counter, n, Long::sum);
+            }
+        };
+        DBCollection coll = client.getDB("mongo").getCollection("commandMetrics");
+        // Not attributed
+        coll.insert(new BasicDBObject("a", 1));
+
+        OperationMetrics metrics = new OperationMetrics(registry, "e", "find");
+        OperationMetrics previous = CommandMetricsListener.attach(metrics);
+        coll.insert(new BasicDBObject("a", 2));
+        coll.findOne(new BasicDBObject("a", 2));
+        CommandMetricsListener.detach(metrics, previous);
+        metrics.complete();
+        // Detached
+        coll.findOne(new BasicDBObject("a", 1));
+
+        Assert.assertEquals(2, metrics.getRoundTrips());
+        Assert.assertTrue(metrics.getCommandNanos() > 0);
+        Assert.assertEquals(Integer.valueOf(1), metrics.getCommandCounts().get("insert:commandMetrics"));
+        Assert.assertEquals(Long.valueOf(2), counters.get(MetricsRegistry.COUNTER_ROUND_TRIPS));
+        coll.drop();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void percentileTest() {
+        Histogram h = new Histogram();
+        Assert.assertEquals(0, h.getPercentileNanos(0.5));
+        // 90 samples at ~1 msec, 10 samples at ~100 msecs
+        for (int i = 0; i < 90; i++) {
+            h.record(1000000);
+        }
+        for (int i = 0; i < 10; i++) {
+            h.record(100000000);
+        }
+        Assert.assertEquals(100, h.getCount());
+        Assert.assertEquals(100000000, h.getMaxNanos());
+        long p50 = h.getPercentileNanos(0.5);
+        Assert.assertTrue(p50 >= 1000000 && p50 <= 2000000);
+        long p99 = h.getPercentileNanos(0.99);
+        Assert.assertTrue(p99 > 50000000 && p99 <= 100000000);
+        h.reset();
+        Assert.assertEquals(0, h.getCount());
+    }
+
+    @Test
+    public void jmxRegistryTest() throws Exception {
+        JmxMetricsRegistry registry = JmxMetricsRegistry.getInstance();
+        registry.recordTime("e,1", "find", "total", 5000000);
+        registry.increment("e,1", "find", "documents", 3);
+        Assert.assertEquals(1, registry.getTimer("e,1", "find", "total").getCount());
+        Assert.assertEquals(3, registry.getCounter("e,1", "find", "documents").getValue());
+        Assert.assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().
+                isRegistered(new javax.management.ObjectName("com.redhat.lightblue.mongo:type=CRUDMetrics,entity=\"e,1\",operation=find,phase=total")));
+    }
+}
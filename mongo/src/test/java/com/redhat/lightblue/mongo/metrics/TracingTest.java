@@ -0,0 +1,151 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.redhat.lightblue.crud.DocumentStream;
+import com.redhat.lightblue.crud.ListDocumentStream;
+
+public class TracingTest {
+
+    /**
+     * Records ended spans as phase/entity/documents/detail strings
+     */
+    public static class RecordingTracer implements Tracer {
+        public final List<String> spans = new ArrayList<>();
+
+        @Override
+        public Span begin(Phase phase, String entity) {
+            return new Span() {
+                long docs;
+                String detail;
+
+                @Override
+                public boolean isRecording() {
+                    return true;
+                }
+
+                @Override
+                public Span documents(long n) {
+                    docs += n;
+                    return this;
+                }
+
+                @Override
+                public Span bytes(long n) {
+                    return this;
+                }
+
+                @Override
+                public Span detail(String d) {
+                    detail = d;
+                    return this;
+                }
+
+                @Override
+                public void close() {
+                    spans.add(phase + "/" + entity + "/" + docs + "/" + detail);
+                }
+            };
+        }
+    }
+
+    @After
+    public void restore() {
+        Tracing.set(null);
+    }
+
+    @Test
+    public void currentEntityTest() {
+        RecordingTracer tracer = new RecordingTracer();
+        Tracing.set(tracer);
+        Tracing.begin(Tracer.Phase.LOCK).detail("x").close();
+
+        OperationMetrics metrics = new OperationMetrics(MetricsRegistry.NOOP, "e", "find");
+        OperationMetrics previous = CommandMetricsListener.attach(metrics);
+        try {
+            Tracing.begin(Tracer.Phase.BULK_WRITE).documents(3).close();
+        } finally {
+            CommandMetricsListener.detach(metrics, previous);
+            metrics.complete();
+        }
+        Tracing.begin(Tracer.Phase.TO_JSON, "other").documents(1).close();
+
+        Assert.assertEquals(3, tracer.spans.size());
+        Assert.assertEquals("LOCK/null/0/x", tracer.spans.get(0));
+        Assert.assertEquals("BULK_WRITE/e/3/null", tracer.spans.get(1));
+        Assert.assertEquals("TO_JSON/other/1/null", tracer.spans.get(2));
+    }
+
+    @Test
+    public void nestedOperationTest() {
+        OperationMetrics outer = new OperationMetrics(MetricsRegistry.NOOP, "outer", "find");
+        OperationMetrics inner = new OperationMetrics(MetricsRegistry.NOOP, "inner", "find");
+        OperationMetrics previous = CommandMetricsListener.attach(outer);
+        try {
+            OperationMetrics p = CommandMetricsListener.attach(inner);
+            Assert.assertSame(outer, p);
+            Assert.assertEquals("inner", Tracing.currentEntity());
+            CommandMetricsListener.detach(inner, p);
+            Assert.assertEquals("outer", Tracing.currentEntity());
+        } finally {
+            CommandMetricsListener.detach(outer, previous);
+        }
+        Assert.assertNull(Tracing.currentEntity());
+    }
+
+    @Test
+    public void trackedStreamTest() {
+        OperationMetrics find = new OperationMetrics(MetricsRegistry.NOOP, "found", "find");
+        List<String> seen = new ArrayList<>();
+        DocumentStream<String> stream = find.track(DocumentStream.map(new ListDocumentStream<>(Arrays.asList("a", "b")), d -> {
+            seen.add(Tracing.currentEntity());
+            return d;
+        }));
+        // The stream is consumed after the find returned, by another operation
+        OperationMetrics other = new OperationMetrics(MetricsRegistry.NOOP, "other", "update");
+        OperationMetrics previous = CommandMetricsListener.attach(other);
+        try {
+            while (stream.hasNext()) {
+                stream.next();
+                Assert.assertEquals("other", Tracing.currentEntity());
+            }
+        } finally {
+            CommandMetricsListener.detach(other, previous);
+        }
+        Assert.assertEquals(Arrays.asList("found", "found"), seen);
+        Assert.assertEquals(2, find.getDocuments());
+        Assert.assertTrue(find.isCompleted());
+    }
+
+    @Test
+    public void noopTest() {
+        Tracing.set(null);
+        Tracer.Span span = Tracing.begin(Tracer.Phase.CURSOR_FETCH);
+        Assert.assertFalse(span.isRecording());
+        span.documents(1).bytes(10).close();
+    }
+}
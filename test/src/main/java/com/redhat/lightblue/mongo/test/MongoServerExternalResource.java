@@ -31,6 +31,7 @@ import org.junit.rules.ExternalResource;
 import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
 
+import com.github.fakemongo.Fongo;
 import com.mongodb.MongoClient;
 
 import de.flapdoodle.embed.mongo.MongodExecutable;
@@ -66,6 +67,13 @@ import de.flapdoodle.embed.process.runtime.Network;
  * mongo instance. This can be achieved by placing a breakpoint in the unit test
  * and then running <code>mongo --host localhost --port 27777</code> from your
  * console.<p>
+ * <p>
+ * Tests that only use {@link #getConnection()} can run against an
+ * in-process Fongo database instead of mongod by setting
+ * <code>inProcess=true</code> on the annotation, or the system property
+ * <code>lightblue.mongo.test.inProcess=true</code>. This is much faster,
+ * and removes the server from performance measurements, but Fongo does not
+ * implement everything mongod does, so not every test can use it.</p>
  *
  * @author dcrissman
  */
@@ -74,6 +82,12 @@ public class MongoServerExternalResource extends ExternalResource {
     public static final int DEFAULT_PORT = 27777;
     public static final Version DEFAULT_VERSION = Version.V3_1_6;
 
+    /**
+     * System property that overrides the inProcess setting of the
+     * annotation
+     */
+    public static final String PROP_IN_PROCESS = "lightblue.mongo.test.inProcess";
+
     @Retention(RetentionPolicy.RUNTIME)
     @Target({ElementType.METHOD, ElementType.TYPE})
     @Inherited
@@ -88,12 +102,18 @@ public class MongoServerExternalResource extends ExternalResource {
          * Version of Mongo to use.
          */
         Version version() default Version.V3_1_6;
+
+        /**
+         * Use an in-process Fongo database instead of starting mongod.
+         */
+        boolean inProcess() default false;
     }
 
     private InMemoryMongoServer immsAnnotation = null;
     private MongodExecutable mongodExe;
     private MongodProcess mongod;
     private MongoClient client;
+    private Fongo fongo;
 
     public MongoServerExternalResource() {
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -120,6 +140,10 @@ public class MongoServerExternalResource extends ExternalResource {
 
     @Override
     protected void before() throws IOException {
+        if (isInProcess()) {
+            fongo = new Fongo("in-process:" + getPort());
+            return;
+        }
         MongodStarter runtime = MongodStarter.getDefaultInstance();
         IMongodConfig config = new MongodConfigBuilder().
                 version(getMongoVersion()).
@@ -142,6 +166,7 @@ public class MongoServerExternalResource extends ExternalResource {
         }
 
         client = null;
+        fongo = null;
         mongod = null;
         mongodExe = null;
     }
@@ -154,7 +179,7 @@ public class MongoServerExternalResource extends ExternalResource {
      */
     public MongoClient getConnection() throws UnknownHostException {
         if (client == null) {
-            client = new MongoClient("localhost", getPort());
+            client = fongo == null ? new MongoClient("localhost", getPort()) : fongo.getMongo();
         }
         return client;
     }
@@ -166,6 +191,18 @@ public class MongoServerExternalResource extends ExternalResource {
         return (immsAnnotation == null) ? DEFAULT_PORT : immsAnnotation.port();
     }
 
+    /**
+     * @return true if the database is in-process instead of a mongod.
+     * There is nothing listening on {@link #getPort()} then.
+     */
+    public boolean isInProcess() {
+        String value = System.getProperty(PROP_IN_PROCESS);
+        if (value != null) {
+            return Boolean.valueOf(value);
+        }
+        return immsAnnotation != null && immsAnnotation.inProcess();
+    }
+
     /**
      * @return the mongo version being run.
      */
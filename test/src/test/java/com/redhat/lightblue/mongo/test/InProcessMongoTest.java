@@ -0,0 +1,105 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Checks that the in-process database supports the operations issued
+ * by lightblue-mongo
+ */
+@MongoServerExternalResource.InMemoryMongoServer(inProcess = true)
+public class InProcessMongoTest {
+
+    @ClassRule
+    public static final MongoServerExternalResource mongo = new MongoServerExternalResource();
+
+    private DBCollection coll;
+
+    @Before
+    public void setup() throws Exception {
+        Assert.assertTrue(mongo.isInProcess());
+        coll = mongo.getConnection().getDB("test").getCollection("inprocess");
+        coll.drop();
+        for (int i = 0; i < 10; i++) {
+            coll.insert(new BasicDBObject("_id", i).
+                    append("name", "Name" + i).
+                    append("n", i % 3).
+                    append("arr", Arrays.asList(new BasicDBObject("x", i), new BasicDBObject("x", i + 1))));
+        }
+    }
+
+    @Test
+    public void findOperators() {
+        Assert.assertEquals(3, coll.find(new BasicDBObject("_id", new BasicDBObject("$in", Arrays.asList(1, 2, 3)))).count());
+        Assert.assertEquals(4, coll.find(new BasicDBObject("_id", new BasicDBObject("$gte", 6))).count());
+        Assert.assertEquals(1, coll.find(new BasicDBObject("name", Pattern.compile("^name5$", Pattern.CASE_INSENSITIVE))).count());
+        Assert.assertEquals(2, coll.find(new BasicDBObject("arr", new BasicDBObject("$elemMatch", new BasicDBObject("x", 5)))).count());
+        Assert.assertEquals(3, coll.find(new BasicDBObject("$and", Arrays.asList(new BasicDBObject("n", 1),
+                new BasicDBObject("name", new BasicDBObject("$exists", true))))).count());
+        Assert.assertEquals(2, coll.find(new BasicDBObject("$or", Arrays.asList(new BasicDBObject("_id", 0),
+                new BasicDBObject("_id", 9)))).count());
+        Assert.assertEquals(6, coll.find(new BasicDBObject("n", new BasicDBObject("$ne", 0))).count());
+        List<DBObject> sorted = coll.find().sort(new BasicDBObject("_id", -1)).skip(1).limit(2).toArray();
+        Assert.assertEquals(8, sorted.get(0).get("_id"));
+        Assert.assertEquals(7, sorted.get(1).get("_id"));
+    }
+
+    @Test
+    public void bulkWrite() {
+        BulkWriteOperation bw = coll.initializeUnorderedBulkOperation();
+        bw.insert(new BasicDBObject("_id", 100));
+        bw.find(new BasicDBObject("_id", 1)).replaceOne(new BasicDBObject("_id", 1).append("name", "replaced"));
+        bw.find(new BasicDBObject("_id", 2)).remove();
+        BulkWriteResult result = bw.execute();
+        Assert.assertEquals(1, result.getInsertedCount());
+        Assert.assertEquals(1, result.getMatchedCount());
+        Assert.assertEquals(1, result.getRemovedCount());
+        Assert.assertEquals("replaced", coll.findOne(new BasicDBObject("_id", 1)).get("name"));
+    }
+
+    @Test
+    public void findAndModify() {
+        DBObject old = coll.findAndModify(new BasicDBObject("_id", 3), new BasicDBObject("$inc", new BasicDBObject("n", 10)));
+        Assert.assertEquals(0, old.get("n"));
+        Assert.assertEquals(10, coll.findOne(new BasicDBObject("_id", 3)).get("n"));
+    }
+
+    @Test
+    public void indexCountDistinct() {
+        coll.createIndex(new BasicDBObject("name", 1), new BasicDBObject("unique", true));
+        Assert.assertEquals(2, coll.getIndexInfo().size());
+        Assert.assertEquals(10, coll.count());
+        Assert.assertEquals(4, coll.count(new BasicDBObject("n", 0)));
+        Assert.assertEquals(3, coll.distinct("n").size());
+    }
+}